@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.BatchDecoder;
+import be.romaincambier.lorawan.Direction;
+import be.romaincambier.lorawan.MACPayload;
+import be.romaincambier.lorawan.SessionKeys;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BatchDecoder throughput by pool parallelism, for a batch from a single
+ * device (one hot key) and from many devices with keys of their own.
+ * Compare the time per frame across parallelism values to see how the
+ * decoder scales on the machine running it.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchDecodeBenchmark {
+
+    private static final int BATCH = 4096;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    @Param({"1", "1024"})
+    public int devices;
+
+    private ForkJoinPool pool;
+    private BatchDecoder decoder;
+    private ByteBuffer[] frames;
+
+    @Setup
+    public void setup() {
+        SessionKeys[] keys = new SessionKeys[devices];
+        for (int i = 0; i < devices; i++) {
+            keys[i] = new SessionKeys(deviceKey(Corpus.NWK_S_KEY, i), deviceKey(Corpus.APP_S_KEY, i));
+        }
+        frames = new ByteBuffer[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            int device = i % devices;
+            frames[i] = ByteBuffer.wrap(Corpus.data(0x40, Direction.UP, Corpus.DEV_ADDR + device,
+                    keys[device].getNwkSKey(), keys[device].getAppSKey(), 51, 0, i / devices));
+        }
+        pool = new ForkJoinPool(parallelism);
+        decoder = new BatchDecoder(pool, phy -> keys[((MACPayload) phy.getMessage()).getFhdr().getDevAddrInt() - Corpus.DEV_ADDR], 64);
+    }
+
+    private static byte[] deviceKey(byte[] _key, int _device) {
+        byte[] key = _key.clone();
+        key[0] ^= _device;
+        key[1] ^= _device >> 8;
+        return key;
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public BatchDecoder.Result[] decode() {
+        return decoder.decode(frames);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.Direction;
+import be.romaincambier.lorawan.capture.CaptureReader;
+import be.romaincambier.lorawan.capture.CaptureWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appending frames to a capture, and replaying one DevAddr or the whole
+ * capture. The capture holds 512k frames of 10k devices, in 1MB segments.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CaptureBenchmark {
+
+    private static final int FRAMES = 1 << 19;
+    private static final int DEVICES = 10000;
+    private static final long START = 1_500_000_000_000L;
+
+    private Path captured;
+    private Path appended;
+    private CaptureReader reader;
+    private CaptureWriter writer;
+    private ByteBuffer frame;
+    private long now = START;
+    private int devAddr;
+
+    @Setup
+    public void setup() throws IOException {
+        captured = Files.createTempDirectory("capture");
+        Random random = new Random(42);
+        byte[][] frames = new byte[DEVICES][];
+        for (int i = 0; i < DEVICES; i++) {
+            frames[i] = Corpus.data(0x40, Direction.UP, 0x26000000 + i, 11, 0, 1);
+        }
+        try (CaptureWriter capture = new CaptureWriter(captured, 1 << 20, 0)) {
+            for (int i = 0; i < FRAMES; i++) {
+                byte[] raw = frames[random.nextInt(DEVICES)];
+                capture.append(START + i, 1, raw, 0, raw.length);
+            }
+        }
+        reader = new CaptureReader(captured);
+        devAddr = 0x26000000 + DEVICES / 2;
+        appended = Files.createTempDirectory("capture");
+        writer = new CaptureWriter(appended);
+        frame = ByteBuffer.wrap(Corpus.dataUp(11, 0, 1));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.close();
+        delete(captured);
+        delete(appended);
+    }
+
+    private static void delete(Path _directory) throws IOException {
+        try (Stream<Path> files = Files.walk(_directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        return writer.append(now++, 1, frame);
+    }
+
+    @Benchmark
+    public long replayDevAddr() throws IOException {
+        return reader.replay(devAddr, Long.MIN_VALUE, Long.MAX_VALUE, (receivedAt, gatewayEui, raw) -> true);
+    }
+
+    @Benchmark
+    public long replayAll() throws IOException {
+        return reader.replay((receivedAt, gatewayEui, raw) -> true);
+    }
+}
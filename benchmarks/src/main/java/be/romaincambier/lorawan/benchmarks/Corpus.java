@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.CryptoContext;
+import be.romaincambier.lorawan.Direction;
+import be.romaincambier.lorawan.FRMPayload;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Valid frames built with fixed keys, so every benchmark run processes the
+ * same bytes.
+ *
+ * @author Romain Cambier
+ */
+public final class Corpus {
+
+    public static final byte[] NWK_S_KEY = hex("44024241ed4ce9a68c6a8bc055233fd3");
+    public static final byte[] APP_S_KEY = hex("ec925802ae430ca77fd3dd73cb2cc588");
+    public static final byte[] APP_KEY = hex("b6b53f4a168a7a88bdf7ea135ce9cfca");
+    public static final int DEV_ADDR = 0x49be7df1;
+
+    private Corpus() {
+    }
+
+    /**
+     * Builds an unconfirmed data uplink.
+     *
+     * @param _payloadSize FRMPayload length, 0 for a frame without FPort
+     * @param _fOptsLength FOpts length, 0 to 15
+     * @param _fCnt the frame counter
+     * @return the raw frame
+     */
+    public static byte[] dataUp(int _payloadSize, int _fOptsLength, int _fCnt) {
+        return data(0x40, Direction.UP, DEV_ADDR, _payloadSize, _fOptsLength, _fCnt);
+    }
+
+    public static byte[] data(int _mhdr, Direction _direction, int _devAddr, int _payloadSize, int _fOptsLength, int _fCnt) {
+        return data(_mhdr, _direction, _devAddr, NWK_S_KEY, APP_S_KEY, _payloadSize, _fOptsLength, _fCnt);
+    }
+
+    public static byte[] data(int _mhdr, Direction _direction, int _devAddr, byte[] _nwkSKey, byte[] _appSKey, int _payloadSize, int _fOptsLength, int _fCnt) {
+        int length = 1 + 7 + _fOptsLength + (_payloadSize > 0 ? 1 + _payloadSize : 0);
+        ByteBuffer bb = ByteBuffer.allocate(length + 4);
+        bb.put((byte) _mhdr);
+        putInt(bb, _devAddr);
+        bb.put((byte) _fOptsLength);
+        bb.put((byte) _fCnt);
+        bb.put((byte) (_fCnt >> 8));
+        for (int i = 0; i < _fOptsLength; i++) {
+            bb.put((byte) 0x02);
+        }
+        if (_payloadSize > 0) {
+            bb.put((byte) 1);
+            byte[] clear = new byte[_payloadSize];
+            for (int i = 0; i < clear.length; i++) {
+                clear[i] = (byte) i;
+            }
+            FRMPayload.encryptInto(bb, ByteBuffer.wrap(clear), _appSKey, _direction, _devAddr, _fCnt & 0xffff);
+        }
+        putInt(bb, new CryptoContext(_nwkSKey).dataMic(_direction, _devAddr, _fCnt & 0xffff, bb.array(), 0, length));
+        return bb.array();
+    }
+
+    /**
+     * @param _devNonce the DevNonce
+     * @return a join request signed with {@link #APP_KEY}
+     */
+    public static byte[] joinRequest(int _devNonce) {
+        ByteBuffer bb = ByteBuffer.allocate(23);
+        bb.put((byte) 0x00);
+        for (int i = 0; i < 8; i++) {
+            bb.put((byte) (0x70 + i));
+        }
+        for (int i = 0; i < 8; i++) {
+            bb.put((byte) (0x10 + i));
+        }
+        bb.put((byte) _devNonce);
+        bb.put((byte) (_devNonce >> 8));
+        putInt(bb, new CryptoContext(APP_KEY).mic(bb.array(), 0, 19));
+        return bb.array();
+    }
+
+    /**
+     * @param _withCfList whether the 16 bytes CFList is present
+     * @return a join accept encrypted with {@link #APP_KEY}
+     */
+    public static byte[] joinAccept(boolean _withCfList) {
+        int length = 1 + 12 + (_withCfList ? 16 : 0);
+        ByteBuffer bb = ByteBuffer.allocate(length + 4);
+        bb.put((byte) 0x20);
+        bb.put(new byte[]{0x01, 0x02, 0x03});
+        bb.put(new byte[]{0x13, 0x00, 0x00});
+        putInt(bb, DEV_ADDR);
+        bb.put((byte) 0x00);
+        bb.put((byte) 0x01);
+        if (_withCfList) {
+            for (int i = 0; i < 16; i++) {
+                bb.put((byte) (0x18 + i));
+            }
+        }
+        putInt(bb, new CryptoContext(APP_KEY).mic(bb.array(), 0, length));
+        byte[] raw = bb.array();
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(APP_KEY, "AES"));
+            byte[] encrypted = cipher.doFinal(raw, 1, raw.length - 1);
+            System.arraycopy(encrypted, 0, raw, 1, encrypted.length);
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("Could not encrypt join accept", ex);
+        }
+        return raw;
+    }
+
+    private static void putInt(ByteBuffer _bb, int _value) {
+        _bb.put((byte) _value);
+        _bb.put((byte) (_value >> 8));
+        _bb.put((byte) (_value >> 16));
+        _bb.put((byte) (_value >> 24));
+    }
+
+    static byte[] hex(String _hex) {
+        byte[] bytes = new byte[_hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(_hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.BatchDecryptor;
+import be.romaincambier.lorawan.FRMPayload;
+import be.romaincambier.lorawan.MACPayload;
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FRMPayload decryption, one frame at a time and by batches of 64 frames
+ * sharing the same AppSKey.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecryptBenchmark {
+
+    private static final int BATCH = 64;
+
+    @Param({"11", "51", "115", "222", "242"})
+    public int payloadSize;
+
+    private FRMPayload payload;
+    private MACPayload[] batch;
+    private final ByteBuffer clear = ByteBuffer.allocateDirect(256);
+    private final BatchDecryptor decryptor = new BatchDecryptor();
+
+    @Setup
+    public void setup() throws MalformedPacketException {
+        batch = new MACPayload[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            batch[i] = (MACPayload) PhyPayload.parse(ByteBuffer.wrap(Corpus.dataUp(payloadSize, 0, i))).getMessage();
+        }
+        payload = batch[0].getFRMPayload();
+    }
+
+    @Benchmark
+    public byte[] getClearPayLoad() throws Exception {
+        return payload.getClearPayLoad(Corpus.NWK_S_KEY, Corpus.APP_S_KEY);
+    }
+
+    @Benchmark
+    public ByteBuffer decryptInto() throws MalformedPacketException {
+        clear.clear();
+        payload.decryptInto(clear, Corpus.NWK_S_KEY, Corpus.APP_S_KEY);
+        return clear;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public byte[][] batch() throws MalformedPacketException {
+        for (MACPayload mac : batch) {
+            decryptor.add(mac, Corpus.NWK_S_KEY, Corpus.APP_S_KEY);
+        }
+        return decryptor.decrypt();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.MACPayload;
+import be.romaincambier.lorawan.MType;
+import be.romaincambier.lorawan.Message;
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creation of the {@link Message} of a frame through the MType parser table,
+ * against the reflective construction PhyPayload used before.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    private ByteBuffer frame;
+    private byte mhdr;
+
+    @Setup
+    public void setup() {
+        byte[] raw = Corpus.dataUp(11, 0, 1);
+        mhdr = raw[0];
+        frame = ByteBuffer.wrap(raw, 1, raw.length - 1).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public Message table() throws MalformedPacketException {
+        frame.clear();
+        return MType.from(mhdr).getParser().parse(null, frame);
+    }
+
+    @Benchmark
+    public Message reflective() throws Exception {
+        frame.clear();
+        MType mType = null;
+        byte value = (byte) ((mhdr >> 5) & 0x07);
+        for (MType v : MType.values()) {
+            if (v.value() == value) {
+                mType = v;
+            }
+        }
+        Constructor<? extends Message> constructor = mType.getMapper().getDeclaredConstructor(PhyPayload.class, ByteBuffer.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(null, frame);
+    }
+}
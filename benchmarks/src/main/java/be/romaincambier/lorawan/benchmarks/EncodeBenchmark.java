@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.DownlinkEncoder;
+import be.romaincambier.lorawan.FHDR;
+import be.romaincambier.lorawan.FRMPayload;
+import be.romaincambier.lorawan.MACPayload;
+import be.romaincambier.lorawan.MHDR;
+import be.romaincambier.lorawan.MType;
+import be.romaincambier.lorawan.MajorVersion;
+import be.romaincambier.lorawan.PhyPayload;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downlink encoding through the PhyPayload builders and through a reused
+ * DownlinkEncoder.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    @Param({"0", "11", "51", "115", "222", "242"})
+    public int payloadSize;
+
+    @Param({"0", "15"})
+    public int fOptsLength;
+
+    private byte[] clear;
+    private byte[] fOpts;
+    private final ByteBuffer out = ByteBuffer.allocate(512);
+    private final DownlinkEncoder encoder = new DownlinkEncoder().setNwkSKey(Corpus.NWK_S_KEY).setAppSKey(Corpus.APP_S_KEY);
+
+    @Setup
+    public void setup() {
+        // 242 bytes with 15 bytes of FOpts would exceed the 255 bytes limit
+        clear = new byte[Math.min(payloadSize, DownlinkEncoder.MAX_LENGTH - 1 - 7 - fOptsLength - 1 - 4)];
+        fOpts = new byte[fOptsLength];
+    }
+
+    @Benchmark
+    public ByteBuffer builder() throws Exception {
+        PhyPayload phy = PhyPayload.newBuilder()
+                .setMhdr(MHDR.newBuilder().setMType(MType.UNCONF_DATA_DOWN).setMajorVersion(MajorVersion.LORAWAN_R_1))
+                .setMacPayload(MACPayload.newBuilder()
+                        .setFhdr(FHDR.newBuilder().setDevAddr(new byte[]{1, 2, 3, 4}).setFCtrl((byte) fOptsLength).setFCnt((short) 1).setFOpts(fOpts))
+                        .setFport((byte) 1)
+                        .setPayload(FRMPayload.newBuilder().setPayload(clear).setNwkSKey(Corpus.NWK_S_KEY).setAppSKey(Corpus.APP_S_KEY)))
+                .build();
+        out.clear();
+        phy.binarize(out);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer encoder() {
+        encoder.reset()
+                .setMType(MType.UNCONF_DATA_DOWN)
+                .setDevAddr(0x04030201)
+                .setfCnt(1)
+                .setfOpts(fOpts, 0, fOptsLength)
+                .setPayload(1, clear, 0, clear.length);
+        out.clear();
+        encoder.encode(out);
+        return out;
+    }
+}
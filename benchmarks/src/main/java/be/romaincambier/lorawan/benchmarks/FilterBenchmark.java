@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.Direction;
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import be.romaincambier.lorawan.filter.PrefixFilter;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of a corpus mixing owned and foreign DevAddrs, with and without
+ * routing the frames through a {@link PrefixFilter} first.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    private static final int CORPUS_SIZE = 1024;
+
+    /**
+     * Percentage of frames of neighbouring networks.
+     */
+    @Param({"0", "40", "80"})
+    public int foreign;
+
+    private ByteBuffer[] frames;
+    private int next;
+    private PrefixFilter filter;
+
+    @Setup
+    public void setup() {
+        filter = PrefixFilter.newBuilder().addLocalNetId(0x000024).addRoamingNetId(0x000013).build();
+        Random random = new Random(42);
+        frames = new ByteBuffer[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            int devAddr = random.nextInt(100) < foreign ? 0x28000000 | random.nextInt(1 << 25) : Corpus.DEV_ADDR;
+            frames[i] = ByteBuffer.wrap(Corpus.data(0x40, Direction.UP, devAddr, 11, 0, i));
+        }
+    }
+
+    private ByteBuffer nextFrame() {
+        ByteBuffer frame = frames[next];
+        next = (next + 1) & (CORPUS_SIZE - 1);
+        frame.clear();
+        return frame;
+    }
+
+    @Benchmark
+    public PhyPayload parse() throws MalformedPacketException {
+        return PhyPayload.parse(nextFrame());
+    }
+
+    @Benchmark
+    public PhyPayload filterThenParse() throws MalformedPacketException {
+        ByteBuffer frame = nextFrame();
+        if (filter.route(frame) != PrefixFilter.Route.LOCAL) {
+            return null;
+        }
+        return PhyPayload.parse(frame);
+    }
+}
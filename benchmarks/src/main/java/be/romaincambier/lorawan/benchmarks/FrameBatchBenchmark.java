@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.Direction;
+import be.romaincambier.lorawan.FrameBatch;
+import be.romaincambier.lorawan.MACPayload;
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting the frames of a NetID in an FCnt range, over a {@link FrameBatch}
+ * and over parsed {@link PhyPayload}s.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class FrameBatchBenchmark {
+
+    private static final int FRAMES = 1 << 18;
+
+    private FrameBatch batch;
+    private PhyPayload[] parsed;
+    private byte[] mask;
+
+    @Setup
+    public void setup() throws MalformedPacketException {
+        Random random = new Random(42);
+        batch = new FrameBatch(FRAMES, FRAMES * 32);
+        parsed = new PhyPayload[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = Corpus.data(0x40, Direction.UP, random.nextInt(), random.nextInt(52), 0, random.nextInt(1 << 16));
+            batch.add(frame, 0, frame.length);
+            parsed[i] = PhyPayload.parse(ByteBuffer.wrap(frame));
+        }
+        mask = new byte[FRAMES];
+    }
+
+    @Benchmark
+    public int columns() {
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = 1;
+        }
+        batch.filterDevAddrPrefix(mask, 0x26000000, 7);
+        batch.filterFCnt(mask, 1000, 30000);
+        return batch.count(mask);
+    }
+
+    @Benchmark
+    public int objects() {
+        int count = 0;
+        for (PhyPayload phy : parsed) {
+            MACPayload mac = (MACPayload) phy.getMessage();
+            int fCnt = mac.getFhdr().getfCnt() & 0xffff;
+            if ((mac.getFhdr().getDevAddrInt() & 0xfe000000) == 0x26000000 && fCnt >= 1000 && fCnt <= 30000) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
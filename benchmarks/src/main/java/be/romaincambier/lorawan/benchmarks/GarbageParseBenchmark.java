@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.PacketView;
+import be.romaincambier.lorawan.ParseResult;
+import be.romaincambier.lorawan.ParseStatus;
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of a corpus where half of the frames are RF noise: random bytes
+ * and truncated frames. Compares the throwing parse, with and without stack
+ * traces, to the non-throwing one.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GarbageParseBenchmark {
+
+    private static final int CORPUS_SIZE = 1024;
+
+    private ByteBuffer[] frames;
+    private int next;
+    private final PacketView view = new PacketView();
+    private final ParseResult result = new ParseResult();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        frames = new ByteBuffer[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            byte[] valid = Corpus.dataUp(random.nextInt(52), random.nextInt(16), i);
+            byte[] frame;
+            if (i % 2 == 0) {
+                frame = valid;
+            } else if (i % 4 == 1) {
+                frame = Arrays.copyOf(valid, random.nextInt(12));
+            } else {
+                frame = new byte[random.nextInt(32)];
+                random.nextBytes(frame);
+            }
+            frames[i] = ByteBuffer.wrap(frame);
+        }
+    }
+
+    private ByteBuffer nextFrame() {
+        ByteBuffer frame = frames[next];
+        next = (next + 1) & (CORPUS_SIZE - 1);
+        frame.clear();
+        return frame;
+    }
+
+    @Benchmark
+    public PhyPayload parse() {
+        try {
+            return PhyPayload.parse(nextFrame());
+        } catch (MalformedPacketException ex) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dlorawan.stacklessExceptions=true")
+    public PhyPayload parseStackless() {
+        try {
+            return PhyPayload.parse(nextFrame());
+        } catch (MalformedPacketException ex) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public PhyPayload tryParse() {
+        return PhyPayload.tryParse(nextFrame(), result).getPhyPayload();
+    }
+
+    @Benchmark
+    public ParseStatus tryWrap() {
+        return view.tryWrap(nextFrame());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.PacketView;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import be.romaincambier.lorawan.ingest.SemtechUdpServer;
+import be.romaincambier.lorawan.ingest.StandInGateway;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PUSH_DATA round trips between a {@link StandInGateway} and a
+ * {@link SemtechUdpServer} on the loopback interface, every frame being
+ * wrapped in a {@link PacketView} by the handler.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IngestBenchmark {
+
+    @Param({"1", "8"})
+    public int rxpkCount;
+
+    private SemtechUdpServer server;
+    private Thread serverThread;
+    private StandInGateway gateway;
+
+    @Setup
+    public void setup() throws IOException {
+        PacketView view = new PacketView();
+        server = new SemtechUdpServer(new InetSocketAddress("127.0.0.1", 0), (frame, metadata) -> {
+            try {
+                view.wrap(frame);
+            } catch (MalformedPacketException ex) {
+                throw new IllegalStateException(ex);
+            } finally {
+                server.release(frame);
+            }
+        });
+        serverThread = new Thread(server, "semtech-udp");
+        serverThread.start();
+        gateway = new StandInGateway(server.getLocalAddress(), Corpus.dataUp(11, 0, 1), rxpkCount);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        gateway.close();
+        server.close();
+        serverThread.join();
+    }
+
+    @Benchmark
+    public void pushData() throws IOException {
+        gateway.push();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.JoinAcceptPayload;
+import be.romaincambier.lorawan.JoinRequestPayload;
+import be.romaincambier.lorawan.PacketView;
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import be.romaincambier.lorawan.join.JoinServer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Join request MIC, join accept decryption and the full JoinServer path.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JoinBenchmark {
+
+    @Param({"false", "true"})
+    public boolean cfList;
+
+    private PhyPayload request;
+    private byte[] accept;
+    private byte[] rawRequest;
+    private JoinServer server;
+    private final PacketView view = new PacketView();
+    private final JoinServer.Join join = new JoinServer.Join();
+
+    @Setup
+    public void setup() throws MalformedPacketException {
+        request = PhyPayload.parse(ByteBuffer.wrap(Corpus.joinRequest(0x1234)));
+        accept = Corpus.joinAccept(cfList);
+        rawRequest = Corpus.joinRequest(0x1234);
+        server = JoinServer.newBuilder()
+                .setAppKeyLookup(devEUI -> Corpus.APP_KEY)
+                .setNetId(0x000013)
+                .setCfList(cfList ? new byte[16] : null)
+                .build();
+    }
+
+    @Benchmark
+    public byte[] joinRequestComputeMic() throws MalformedPacketException {
+        return ((JoinRequestPayload) request.getMessage()).computeMic(Corpus.APP_KEY);
+    }
+
+    @Benchmark
+    public boolean joinRequestVerifyMic() throws MalformedPacketException {
+        return request.verifyMic(Corpus.APP_KEY);
+    }
+
+    @Benchmark
+    public JoinAcceptPayload.ClearPayload joinAcceptClearPayload() throws Exception {
+        return ((JoinAcceptPayload) PhyPayload.parse(ByteBuffer.wrap(accept)).getMessage()).getClearPayload(Corpus.APP_KEY);
+    }
+
+    @Benchmark
+    public JoinServer.Status joinServer() throws MalformedPacketException {
+        return server.process(view.wrap(rawRequest, 0, rawRequest.length), 0x26011234, join);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.benchmarks;
+
+import be.romaincambier.lorawan.MACPayload;
+import be.romaincambier.lorawan.PacketView;
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MIC computation of data uplinks: the re-serializing
+ * FRMPayload.computeMic against the verification over the wire bytes.
+ *
+ * @author Romain Cambier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MicBenchmark {
+
+    @Param({"0", "11", "51", "115", "222", "242"})
+    public int payloadSize;
+
+    @Param({"0", "15"})
+    public int fOptsLength;
+
+    private PhyPayload phy;
+    private MACPayload mac;
+    private final PacketView view = new PacketView();
+
+    @Setup
+    public void setup() throws MalformedPacketException {
+        byte[] raw = Corpus.dataUp(payloadSize, fOptsLength, 1);
+        phy = PhyPayload.parse(ByteBuffer.wrap(raw));
+        mac = (MACPayload) phy.getMessage();
+        view.wrap(raw, 0, raw.length);
+    }
+
+    @Benchmark
+    public byte[] computeMic() throws MalformedPacketException {
+        return mac.getFRMPayload().computeMic(Corpus.NWK_S_KEY);
+    }
+
+    @Benchmark
+    public boolean verifyMic() throws MalformedPacketException {
+        return phy.verifyMic(Corpus.NWK_S_KEY);
+    }
+
+    @Benchmark
+    public boolean verifyMicView() {
+        return view.verifyMic(Corpus.NWK_S_KEY);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import be.romaincambier.lorawan.session.FrameCounterTracker;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses, verifies and decrypts batches of uplink data frames in parallel.
+ * <p>
+ * A batch is split in ranges processed by the tasks of a
+ * {@link ForkJoinPool}. Results are returned in input order.
+ * <p>
+ * A {@link CryptoContext} is locked while it is used, and the shared
+ * {@link CryptoContextCache} locks one of its stripes on every lookup. To
+ * keep workers from waiting on each other for the keys they keep seeing,
+ * such as a device sending a burst or a multicast group, each worker
+ * thread gives a key its own context from its second consecutive use. Other
+ * keys go through the shared cache, where workers can still contend on a
+ * stripe or on the context of a key.
+ * <p>
+ * The 32 bits FCnt of each frame is rebuilt from the last FCnt of its
+ * session. The decoder does not record the FCnt of the frames it accepts,
+ * this is left to the caller.
+ *
+ * @author Romain Cambier
+ */
+public final class BatchDecoder {
+
+    /**
+     * Resolves the session keys of a parsed frame.
+     */
+    public static interface KeyLookup {
+
+        /**
+         * @param _phy the frame
+         * @return the keys and last FCnt of the device, or null if it is
+         * unknown
+         */
+        public SessionKeys lookup(PhyPayload _phy);
+    }
+
+    public static enum Status {
+        OK,
+        MALFORMED,
+        UNSUPPORTED_MTYPE,
+        UNKNOWN_DEVICE,
+        /**
+         * The key lookup threw an exception.
+         */
+        LOOKUP_FAILED,
+        MIC_FAILED
+    }
+
+    public static final class Result {
+
+        private final Status status;
+        private final PhyPayload phy;
+        private final byte[] clearPayload;
+
+        private Result(Status _status, PhyPayload _phy, byte[] _clearPayload) {
+            status = _status;
+            phy = _phy;
+            clearPayload = _clearPayload;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the parsed frame, null if it is malformed or unsupported
+         */
+        public PhyPayload getPhyPayload() {
+            return phy;
+        }
+
+        /**
+         * @return the decrypted FRMPayload if the status is OK
+         */
+        public byte[] getClearPayload() {
+            return clearPayload;
+        }
+    }
+
+    private static final Result MALFORMED = new Result(Status.MALFORMED, null, null);
+    private static final Result UNSUPPORTED_MTYPE = new Result(Status.UNSUPPORTED_MTYPE, null, null);
+
+    private final ForkJoinPool pool;
+    private final KeyLookup keyLookup;
+    private final int threshold;
+    private final ThreadLocal<WorkerContexts> contexts = ThreadLocal.withInitial(WorkerContexts::new);
+
+    public BatchDecoder(KeyLookup _keyLookup) {
+        this(ForkJoinPool.commonPool(), _keyLookup, 64);
+    }
+
+    /**
+     * @param _pool the pool running the tasks
+     * @param _keyLookup resolves the keys of each frame, called concurrently
+     * @param _threshold number of frames under which a range is processed
+     * without being split
+     */
+    public BatchDecoder(ForkJoinPool _pool, KeyLookup _keyLookup, int _threshold) {
+        if (_pool == null) {
+            throw new IllegalArgumentException("Missing pool");
+        }
+        if (_keyLookup == null) {
+            throw new IllegalArgumentException("Missing keyLookup");
+        }
+        if (_threshold < 1) {
+            throw new IllegalArgumentException("Invalid threshold");
+        }
+        pool = _pool;
+        keyLookup = _keyLookup;
+        threshold = _threshold;
+    }
+
+    public Result[] decode(List<ByteBuffer> _frames) {
+        return decode(_frames.toArray(new ByteBuffer[_frames.size()]));
+    }
+
+    /**
+     * Decodes a batch of raw frames. The buffers are not modified and must
+     * not be modified while the batch is processed.
+     *
+     * @param _frames the raw frames
+     * @return one result per frame, in the same order
+     */
+    public Result[] decode(ByteBuffer[] _frames) {
+        Result[] results = new Result[_frames.length];
+        if (_frames.length > 0) {
+            pool.invoke(new DecodeTask(_frames, results, 0, _frames.length));
+        }
+        return results;
+    }
+
+    private Result decode(ByteBuffer _raw, ParseResult _parsed, WorkerContexts _contexts) {
+        if (!_raw.hasRemaining()) {
+            return MALFORMED;
+        }
+        int mType = (_raw.get(_raw.position()) >> 5) & 0x07;
+        if (mType < 0x02 || mType > 0x05) {
+            return UNSUPPORTED_MTYPE;
+        }
+        if (!PhyPayload.tryParse(_raw.duplicate(), _parsed).isOk()) {
+            return MALFORMED;
+        }
+        PhyPayload phy = _parsed.getPhyPayload();
+        SessionKeys keys;
+        try {
+            keys = keyLookup.lookup(phy);
+        } catch (RuntimeException ex) {
+            return new Result(Status.LOOKUP_FAILED, phy, null);
+        }
+        if (keys == null) {
+            return new Result(Status.UNKNOWN_DEVICE, phy, null);
+        }
+        MACPayload mac = (MACPayload) phy.getMessage();
+        long fCnt = FrameCounterTracker.reconstruct(keys.getLastFCnt(), mac.getFhdr().getfCnt());
+        if (fCnt > 0xffffffffL) {
+            return new Result(Status.MIC_FAILED, phy, null);
+        }
+        try {
+            if (!phy.verifyMic(_contexts.get(keys.getNwkSKey()), (int) fCnt)) {
+                return new Result(Status.MIC_FAILED, phy, null);
+            }
+            FRMPayload payload = mac.getFRMPayload();
+            byte[] clear = new byte[payload.length()];
+            CryptoContext context = mac.hasFPort() ? _contexts.get(payload.key(keys.getNwkSKey(), keys.getAppSKey())) : null;
+            payload.decryptInto(ByteBuffer.wrap(clear), context, (int) fCnt);
+            return new Result(Status.OK, phy, clear);
+        } catch (MalformedPacketException ex) {
+            return new Result(Status.MALFORMED, phy, null);
+        }
+    }
+
+    /**
+     * Contexts owned by one worker thread, in a small direct-mapped table. A
+     * key gets a slot on its second consecutive use, so that keys seen once
+     * do not pay for a context of their own.
+     */
+    private static final class WorkerContexts {
+
+        private static final int SLOTS = 64;
+
+        private final byte[][] keys = new byte[SLOTS][];
+        private final CryptoContext[] contexts = new CryptoContext[SLOTS];
+        private final byte[][] candidates = new byte[SLOTS][];
+
+        private CryptoContext get(byte[] _key) {
+            int slot = Arrays.hashCode(_key) & (SLOTS - 1);
+            if (Arrays.equals(keys[slot], _key)) {
+                return contexts[slot];
+            }
+            if (Arrays.equals(candidates[slot], _key)) {
+                contexts[slot] = new CryptoContext(_key);
+                keys[slot] = candidates[slot];
+                candidates[slot] = null;
+                return contexts[slot];
+            }
+            CryptoContext shared = CryptoContextCache.shared().get(_key);
+            candidates[slot] = _key.clone();
+            return shared;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class DecodeTask extends RecursiveAction {
+
+        private final ByteBuffer[] frames;
+        private final Result[] results;
+        private final int from;
+        private final int to;
+
+        private DecodeTask(ByteBuffer[] _frames, Result[] _results, int _from, int _to) {
+            frames = _frames;
+            results = _results;
+            from = _from;
+            to = _to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                ParseResult parsed = new ParseResult();
+                WorkerContexts local = contexts.get();
+                for (int i = from; i < to; i++) {
+                    results[i] = decode(frames[i], parsed, local);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DecodeTask(frames, results, from, middle), new DecodeTask(frames, results, middle, to));
+        }
+    }
+}
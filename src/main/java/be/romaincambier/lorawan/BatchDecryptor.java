@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Decrypts the FRMPayloads of many frames at once. Frames are grouped by
+ * key, and the A_i blocks of a whole group are encrypted by a single ECB
+ * call instead of one cipher call per frame.
+ * <p>
+ * A decryptor keeps its buffers between batches and is not thread-safe.
+ *
+ * @author Romain Cambier
+ */
+public final class BatchDecryptor {
+
+    private final CryptoContextCache cache;
+    private final IdentityHashMap<CryptoContext, Integer> groups = new IdentityHashMap<>();
+
+    private FRMPayload[] payloads = new FRMPayload[16];
+    private CryptoContext[] contexts = new CryptoContext[16];
+    private int[] fCnts = new int[16];
+    private int[] groupOf = new int[16];
+    private int[] order = new int[16];
+    private int count;
+
+    private byte[] blocks = new byte[1024];
+    private byte[] keystream = new byte[1024];
+
+    public BatchDecryptor() {
+        this(CryptoContextCache.shared());
+    }
+
+    public BatchDecryptor(CryptoContextCache _cache) {
+        if (_cache == null) {
+            throw new IllegalArgumentException("Missing cache");
+        }
+        cache = _cache;
+    }
+
+    /**
+     * Adds a frame to the current batch, decrypted with the 16 bits FCnt
+     * sent on air.
+     *
+     * @param _mac the frame
+     * @param _nwkSKey key used if FPort is 0
+     * @param _appSKey key used otherwise
+     * @return the index of the frame in the result of {@link #decrypt()}
+     */
+    public int add(MACPayload _mac, byte[] _nwkSKey, byte[] _appSKey) {
+        if (_mac == null) {
+            throw new IllegalArgumentException("Missing mac");
+        }
+        return add(_mac, _nwkSKey, _appSKey, _mac.getFhdr().getfCnt() & 0xffff);
+    }
+
+    /**
+     * Adds a frame to the current batch, decrypted with the full frame
+     * counter of its session.
+     *
+     * @param _mac the frame
+     * @param _nwkSKey key used if FPort is 0
+     * @param _appSKey key used otherwise
+     * @param _fCnt the 32 bits FCnt, whose 16 LSB must match the frame
+     * @return the index of the frame in the result of {@link #decrypt()}
+     */
+    public int add(MACPayload _mac, byte[] _nwkSKey, byte[] _appSKey, int _fCnt) {
+        if (_mac == null) {
+            throw new IllegalArgumentException("Missing mac");
+        }
+        if ((short) _fCnt != _mac.getFhdr().getfCnt()) {
+            throw new IllegalArgumentException("FCnt does not match the frame");
+        }
+        if (count == payloads.length) {
+            int size = count * 2;
+            payloads = Arrays.copyOf(payloads, size);
+            contexts = Arrays.copyOf(contexts, size);
+            fCnts = Arrays.copyOf(fCnts, size);
+            groupOf = new int[size];
+            order = new int[size];
+        }
+        FRMPayload payload = _mac.getFRMPayload();
+        payloads[count] = payload;
+        fCnts[count] = _fCnt;
+        contexts[count] = payload == null || !_mac.hasFPort() ? null : cache.get(payload.key(_nwkSKey, _appSKey));
+        return count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Decrypts every frame of the batch and clears it.
+     *
+     * @return the clear payloads, in the order the frames were added
+     * @throws MalformedPacketException if a frame has an invalid MHDR
+     */
+    public byte[][] decrypt() throws MalformedPacketException {
+        byte[][] clear = new byte[count][];
+        try {
+            int groupCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (contexts[i] == null) {
+                    groupOf[i] = -1;
+                    clear[i] = new byte[0];
+                    continue;
+                }
+                Integer group = groups.get(contexts[i]);
+                if (group == null) {
+                    group = groupCount++;
+                    groups.put(contexts[i], group);
+                }
+                groupOf[i] = group;
+            }
+            int[] starts = new int[groupCount + 1];
+            for (int i = 0; i < count; i++) {
+                if (groupOf[i] >= 0) {
+                    starts[groupOf[i] + 1]++;
+                }
+            }
+            for (int g = 0; g < groupCount; g++) {
+                starts[g + 1] += starts[g];
+            }
+            int[] next = Arrays.copyOf(starts, groupCount);
+            for (int i = 0; i < count; i++) {
+                if (groupOf[i] >= 0) {
+                    order[next[groupOf[i]]++] = i;
+                }
+            }
+            for (int g = 0; g < groupCount; g++) {
+                decryptGroup(starts[g], starts[g + 1], clear);
+            }
+        } finally {
+            clear();
+        }
+        return clear;
+    }
+
+    private void decryptGroup(int _from, int _to, byte[][] _clear) throws MalformedPacketException {
+        int blockCount = 0;
+        for (int o = _from; o < _to; o++) {
+            blockCount += (payloads[order[o]].length() + 15) >> 4;
+        }
+        if (blockCount == 0) {
+            for (int o = _from; o < _to; o++) {
+                _clear[order[o]] = new byte[0];
+            }
+            return;
+        }
+        int size = blockCount << 4;
+        if (blocks.length < size) {
+            blocks = new byte[Integer.highestOneBit(size - 1) << 1];
+            keystream = new byte[blocks.length];
+        }
+        int offset = 0;
+        for (int o = _from; o < _to; o++) {
+            FRMPayload payload = payloads[order[o]];
+            Direction direction = payload.direction();
+            int devAddr = payload.devAddr();
+            int fCnt = fCnts[order[o]];
+            int k = (payload.length() + 15) >> 4;
+            for (int i = 1; i <= k; i++) {
+                CryptoContext.aBlock(blocks, offset, direction, devAddr, fCnt, i);
+                offset += 16;
+            }
+        }
+        contexts[order[_from]].encrypt(blocks, 0, size, keystream, 0);
+        offset = 0;
+        for (int o = _from; o < _to; o++) {
+            byte[] cipher = payloads[order[o]].getPayload();
+            byte[] plain = new byte[cipher.length];
+            for (int i = 0; i < cipher.length; i++) {
+                plain[i] = (byte) (cipher[i] ^ keystream[offset + i]);
+            }
+            _clear[order[o]] = plain;
+            offset += ((cipher.length + 15) >> 4) << 4;
+        }
+    }
+
+    /**
+     * Drops the frames of the current batch.
+     */
+    public void clear() {
+        Arrays.fill(payloads, 0, count, null);
+        Arrays.fill(contexts, 0, count, null);
+        groups.clear();
+        count = 0;
+    }
+}
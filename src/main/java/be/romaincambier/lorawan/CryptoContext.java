@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-128 state bound to one key: an initialized AES/ECB cipher and the
+ * CMAC subkeys derived from it. Building a context runs the key schedule
+ * once, every later CMAC or keystream operation only costs the block
+ * encryptions themselves.
+ * <p>
+ * A context is thread-safe, concurrent callers of the same key are
+ * serialized. Contexts are usually obtained from a
+ * {@link CryptoContextCache}.
+ *
+ * @author Romain Cambier
+ */
+public final class CryptoContext {
+
+    private static final byte CONSTANT = (byte) 0x87;
+    private static final int BLOCK_SIZE = 16;
+
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private Cipher decryptCipher;
+    private final byte[] k1;
+    private final byte[] k2;
+
+    private final byte[] state = new byte[BLOCK_SIZE];
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] scratch = new byte[BLOCK_SIZE];
+    private final byte[] b0 = new byte[BLOCK_SIZE];
+    private final byte[] a = new byte[BLOCK_SIZE];
+    private final byte[] s = new byte[BLOCK_SIZE];
+    private int blockCount;
+
+    public CryptoContext(byte[] _key) {
+        if (_key == null) {
+            throw new IllegalArgumentException("Missing key");
+        }
+        if (_key.length != 16) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        try {
+            key = new SecretKeySpec(_key, "AES");
+            cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("Could not create AES cipher", ex);
+        }
+        byte[] k0 = new byte[BLOCK_SIZE];
+        encryptBlock(new byte[BLOCK_SIZE], k0);
+        k1 = doubleSubKey(k0);
+        k2 = doubleSubKey(k1);
+    }
+
+    private static byte[] doubleSubKey(byte[] _k) {
+        byte[] ret = new byte[_k.length];
+        for (int i = 0; i < _k.length; i++) {
+            ret[i] = (byte) (_k[i] << 1);
+            if (i + 1 < _k.length && ((_k[i + 1] & 0x80) != 0)) {
+                ret[i] |= 0x01;
+            }
+        }
+        if ((_k[0] & 0x80) != 0) {
+            ret[ret.length - 1] ^= CONSTANT;
+        }
+        return ret;
+    }
+
+    private void encryptBlock(byte[] _in, byte[] _out) {
+        try {
+            cipher.update(_in, 0, BLOCK_SIZE, _out, 0);
+        } catch (ShortBufferException ex) {
+            throw new RuntimeException("Could not encrypt block", ex);
+        }
+    }
+
+    /**
+     * Encrypts whole blocks in ECB mode. Input and output must not be the
+     * same array region.
+     *
+     * @param _in the clear blocks
+     * @param _inOffset offset in _in
+     * @param _length number of bytes, a multiple of 16
+     * @param _out where the encrypted blocks are written
+     * @param _outOffset offset in _out
+     */
+    public synchronized void encrypt(byte[] _in, int _inOffset, int _length, byte[] _out, int _outOffset) {
+        if ((_length & (BLOCK_SIZE - 1)) != 0) {
+            throw new IllegalArgumentException("Invalid length " + _length);
+        }
+        try {
+            cipher.update(_in, _inOffset, _length, _out, _outOffset);
+        } catch (ShortBufferException ex) {
+            throw new RuntimeException("Could not encrypt blocks", ex);
+        }
+    }
+
+    /**
+     * Decrypts whole blocks in ECB mode, as used to encrypt join accepts.
+     * Input and output may be the same array region.
+     *
+     * @param _in the encrypted blocks
+     * @param _inOffset offset in _in
+     * @param _length number of bytes, a multiple of 16
+     * @param _out where the decrypted blocks are written
+     * @param _outOffset offset in _out
+     */
+    public synchronized void decrypt(byte[] _in, int _inOffset, int _length, byte[] _out, int _outOffset) {
+        if ((_length & (BLOCK_SIZE - 1)) != 0) {
+            throw new IllegalArgumentException("Invalid length " + _length);
+        }
+        try {
+            if (decryptCipher == null) {
+                decryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+                decryptCipher.init(Cipher.DECRYPT_MODE, key);
+            }
+            decryptCipher.update(_in, _inOffset, _length, _out, _outOffset);
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("Could not decrypt blocks", ex);
+        }
+    }
+
+    /**
+     * Computes the AES-CMAC of a byte range.
+     *
+     * @param _data the message
+     * @param _offset offset of the message in _data
+     * @param _length length of the message
+     * @param _mac receives the first {@code min(16, _mac.length)} bytes of the
+     * CMAC
+     */
+    public synchronized void cmac(byte[] _data, int _offset, int _length, byte[] _mac) {
+        cmacReset();
+        cmacUpdate(_data, _offset, _length);
+        cmacFinish();
+        System.arraycopy(state, 0, _mac, 0, Math.min(BLOCK_SIZE, _mac.length));
+    }
+
+    /**
+     * Computes the MIC of a data frame: the CMAC of the B0 block followed by
+     * the MHDR and MACPayload bytes.
+     *
+     * @param _direction direction of the frame
+     * @param _devAddr DevAddr as read little-endian from the frame
+     * @param _fCnt the 32 bits frame counter
+     * @param _msg buffer holding the frame
+     * @param _offset offset of the MHDR in _msg
+     * @param _length length of MHDR and MACPayload, without the MIC
+     * @return the 4 MIC bytes read as a little-endian int
+     */
+    public synchronized int dataMic(Direction _direction, int _devAddr, int _fCnt, ByteBuffer _msg, int _offset, int _length) {
+        cmacReset();
+        cmacUpdate(b0(_direction, _devAddr, _fCnt, _length), 0, BLOCK_SIZE);
+        cmacUpdate(_msg, _offset, _length);
+        cmacFinish();
+        return mic();
+    }
+
+    public synchronized int dataMic(Direction _direction, int _devAddr, int _fCnt, byte[] _msg, int _offset, int _length) {
+        cmacReset();
+        cmacUpdate(b0(_direction, _devAddr, _fCnt, _length), 0, BLOCK_SIZE);
+        cmacUpdate(_msg, _offset, _length);
+        cmacFinish();
+        return mic();
+    }
+
+    /**
+     * Computes the MIC of a join frame: the CMAC of the MHDR and payload
+     * bytes.
+     *
+     * @param _msg buffer holding the frame
+     * @param _offset offset of the MHDR in _msg
+     * @param _length length of the frame without the MIC
+     * @return the 4 MIC bytes read as a little-endian int
+     */
+    public synchronized int mic(ByteBuffer _msg, int _offset, int _length) {
+        cmacReset();
+        cmacUpdate(_msg, _offset, _length);
+        cmacFinish();
+        return mic();
+    }
+
+    public synchronized int mic(byte[] _msg, int _offset, int _length) {
+        cmacReset();
+        cmacUpdate(_msg, _offset, _length);
+        cmacFinish();
+        return mic();
+    }
+
+    /**
+     * Encrypts or decrypts a FRMPayload by XORing it with the LoRaWAN
+     * keystream. Source and destination may be the same region.
+     *
+     * @param _direction direction of the frame
+     * @param _devAddr DevAddr as read little-endian from the frame
+     * @param _fCnt the 32 bits frame counter
+     * @param _src the input bytes
+     * @param _srcOffset offset of the input in _src
+     * @param _dst where the output is written
+     * @param _dstOffset offset of the output in _dst
+     * @param _length number of bytes to process
+     */
+    public void xorKeystream(Direction _direction, int _devAddr, int _fCnt, ByteBuffer _src, int _srcOffset, ByteBuffer _dst, int _dstOffset, int _length) {
+        xorKeystream(_direction, _devAddr, _fCnt, null, _src, _srcOffset, _dst, _dstOffset, _length);
+    }
+
+    public void xorKeystream(Direction _direction, int _devAddr, int _fCnt, byte[] _src, int _srcOffset, ByteBuffer _dst, int _dstOffset, int _length) {
+        xorKeystream(_direction, _devAddr, _fCnt, _src, null, _srcOffset, _dst, _dstOffset, _length);
+    }
+
+    private synchronized void xorKeystream(Direction _direction, int _devAddr, int _fCnt, byte[] _srcArray, ByteBuffer _srcBuffer, int _srcOffset, ByteBuffer _dst, int _dstOffset, int _length) {
+        for (int done = 0, i = 1; done < _length; i++) {
+            aBlock(a, 0, _direction, _devAddr, _fCnt, i);
+            encryptBlock(a, s);
+            int n = Math.min(BLOCK_SIZE, _length - done);
+            for (int j = 0; j < n; j++) {
+                byte in = _srcArray != null ? _srcArray[_srcOffset + done + j] : _srcBuffer.get(_srcOffset + done + j);
+                _dst.put(_dstOffset + done + j, (byte) (in ^ s[j]));
+            }
+            done += n;
+        }
+    }
+
+    /**
+     * Writes the A_i block used to generate the i-th keystream block of a
+     * FRMPayload.
+     */
+    static void aBlock(byte[] _out, int _offset, Direction _direction, int _devAddr, int _fCnt, int _i) {
+        _out[_offset] = 0x01;
+        _out[_offset + 1] = 0;
+        _out[_offset + 2] = 0;
+        _out[_offset + 3] = 0;
+        _out[_offset + 4] = 0;
+        _out[_offset + 5] = _direction.value();
+        putInt(_out, _offset + 6, _devAddr);
+        putInt(_out, _offset + 10, _fCnt);
+        _out[_offset + 14] = 0;
+        _out[_offset + 15] = (byte) _i;
+    }
+
+    private byte[] b0(Direction _direction, int _devAddr, int _fCnt, int _length) {
+        b0[0] = 0x49;
+        b0[1] = 0;
+        b0[2] = 0;
+        b0[3] = 0;
+        b0[4] = 0;
+        b0[5] = _direction.value();
+        putInt(b0, 6, _devAddr);
+        putInt(b0, 10, _fCnt);
+        b0[14] = 0;
+        b0[15] = (byte) _length;
+        return b0;
+    }
+
+    private int mic() {
+        return (state[0] & 0xff) | (state[1] & 0xff) << 8 | (state[2] & 0xff) << 16 | (state[3] & 0xff) << 24;
+    }
+
+    private static void putInt(byte[] _b, int _offset, int _value) {
+        _b[_offset] = (byte) _value;
+        _b[_offset + 1] = (byte) (_value >> 8);
+        _b[_offset + 2] = (byte) (_value >> 16);
+        _b[_offset + 3] = (byte) (_value >> 24);
+    }
+
+    private void cmacReset() {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            state[i] = 0;
+        }
+        blockCount = 0;
+    }
+
+    private void cmacUpdate(byte[] _data, int _offset, int _length) {
+        for (int i = 0; i < _length; i++) {
+            cmacUpdate(_data[_offset + i]);
+        }
+    }
+
+    private void cmacUpdate(ByteBuffer _data, int _offset, int _length) {
+        for (int i = 0; i < _length; i++) {
+            cmacUpdate(_data.get(_offset + i));
+        }
+    }
+
+    private void cmacUpdate(byte _b) {
+        if (blockCount == BLOCK_SIZE) {
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                scratch[i] = (byte) (state[i] ^ block[i]);
+            }
+            encryptBlock(scratch, state);
+            blockCount = 0;
+        }
+        block[blockCount++] = _b;
+    }
+
+    private void cmacFinish() {
+        byte[] subKey = k1;
+        if (blockCount < BLOCK_SIZE) {
+            block[blockCount] = (byte) 0x80;
+            for (int i = blockCount + 1; i < BLOCK_SIZE; i++) {
+                block[i] = 0;
+            }
+            subKey = k2;
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            scratch[i] = (byte) (state[i] ^ block[i] ^ subKey[i]);
+        }
+        encryptBlock(scratch, state);
+        blockCount = 0;
+    }
+}
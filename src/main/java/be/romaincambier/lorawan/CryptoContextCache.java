@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of {@link CryptoContext}s keyed by AES key.
+ * <p>
+ * The cache is split in independently locked stripes, each one evicting its
+ * least recently used context once it holds more than its share of the
+ * capacity. Lookups do not allocate when the context is present. Contexts
+ * must be invalidated when a device rejoins or its keys are rotated.
+ *
+ * @author Romain Cambier
+ */
+public final class CryptoContextCache {
+
+    private static final CryptoContextCache SHARED = new CryptoContextCache(Integer.getInteger("lorawan.crypto.cacheSize", 65536));
+
+    private final Stripe[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @return the cache used by the packet classes
+     */
+    public static CryptoContextCache shared() {
+        return SHARED;
+    }
+
+    public CryptoContextCache(int _capacity) {
+        if (_capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity");
+        }
+        int count = 1;
+        while (count < 64 && count * 256 < _capacity) {
+            count <<= 1;
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(Math.max(1, (_capacity + count - 1) / count));
+        }
+    }
+
+    /**
+     * Returns the context of a key, creating it on a miss.
+     *
+     * @param _key a 16 bytes AES key
+     * @return the context
+     */
+    public CryptoContext get(byte[] _key) {
+        if (_key == null) {
+            throw new IllegalArgumentException("Missing key");
+        }
+        if (_key.length != 16) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        long hi = readLong(_key, 0);
+        long lo = readLong(_key, 8);
+        Stripe stripe = stripeOf(hi, lo);
+        CryptoContext context;
+        synchronized (stripe) {
+            context = stripe.get(stripe.probe.set(hi, lo));
+        }
+        if (context != null) {
+            hits.increment();
+            return context;
+        }
+        misses.increment();
+        CryptoContext created = new CryptoContext(_key);
+        synchronized (stripe) {
+            context = stripe.putIfAbsent(new KeyId().set(hi, lo), created);
+        }
+        return context == null ? created : context;
+    }
+
+    /**
+     * Drops the context of a key, to be called when the key stops being used.
+     *
+     * @param _key a 16 bytes AES key
+     */
+    public void invalidate(byte[] _key) {
+        if (_key == null || _key.length != 16) {
+            return;
+        }
+        long hi = readLong(_key, 0);
+        long lo = readLong(_key, 8);
+        Stripe stripe = stripeOf(hi, lo);
+        synchronized (stripe) {
+            stripe.remove(stripe.probe.set(hi, lo));
+        }
+    }
+
+    public void invalidateAll() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private Stripe stripeOf(long _hi, long _lo) {
+        return stripes[KeyId.hash(_hi, _lo) & (stripes.length - 1)];
+    }
+
+    private static long readLong(byte[] _b, int _offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (_b[_offset + i] & 0xff);
+        }
+        return v;
+    }
+
+    @SuppressWarnings("serial")
+    private final class Stripe extends LinkedHashMap<KeyId, CryptoContext> {
+
+        private final int capacity;
+        private final KeyId probe = new KeyId();
+
+        private Stripe(int _capacity) {
+            super(16, 0.75f, true);
+            capacity = _capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<KeyId, CryptoContext> _eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class KeyId {
+
+        private long hi;
+        private long lo;
+
+        private KeyId set(long _hi, long _lo) {
+            hi = _hi;
+            lo = _lo;
+            return this;
+        }
+
+        private static int hash(long _hi, long _lo) {
+            long h = (_hi * 0x9E3779B97F4A7C15L) ^ _lo;
+            h ^= h >>> 31;
+            return (int) (h ^ (h >>> 17));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(hi, lo) * 31;
+        }
+
+        @Override
+        public boolean equals(Object _o) {
+            if (!(_o instanceof KeyId)) {
+                return false;
+            }
+            KeyId other = (KeyId) _o;
+            return hi == other.hi && lo == other.lo;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import be.romaincambier.lorawan.jfr.FrameEvent;
+import be.romaincambier.lorawan.jfr.FrameEvents;
+import be.romaincambier.lorawan.mac.MacCommandWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes data downlinks straight into a caller buffer.
+ * <p>
+ * Unlike {@link PhyPayload.Builder}, an encoder is reused: set the fields of
+ * a frame, {@link #encode(ByteBuffer)} it, then {@link #reset()} and set the
+ * next one. MHDR, FHDR, FPort and the encrypted payload are written in a
+ * single pass, and the MIC is computed over the written bytes. The clear
+ * payload is not copied, it must not be modified before the frame is
+ * encoded. An encoder is not thread-safe.
+ *
+ * @author Romain Cambier
+ */
+public final class DownlinkEncoder {
+
+    /**
+     * Largest PHYPayload, whose length must fit the length byte of B0.
+     */
+    public static final int MAX_LENGTH = 255;
+
+    private static final int NO_FPORT = -1;
+
+    private final ByteBuffer fOpts = ByteBuffer.allocate(MacCommandWriter.MAX_FOPTS_LENGTH);
+    private final MacCommandWriter fOptsWriter = new MacCommandWriter();
+
+    private MType mType;
+    private int devAddr;
+    private int fCnt;
+    private int fCtrl;
+    private int fPort;
+    private byte[] payloadArray;
+    private ByteBuffer payloadBuffer;
+    private int payloadOffset;
+    private int payloadLength;
+    private byte[] nwkSKey;
+    private byte[] appSKey;
+
+    public DownlinkEncoder() {
+        reset();
+    }
+
+    /**
+     * Clears every field, keeping the keys.
+     *
+     * @return this encoder
+     */
+    public DownlinkEncoder reset() {
+        mType = MType.UNCONF_DATA_DOWN;
+        devAddr = 0;
+        fCnt = 0;
+        fCtrl = 0;
+        fPort = NO_FPORT;
+        payloadArray = null;
+        payloadBuffer = null;
+        payloadOffset = 0;
+        payloadLength = 0;
+        fOpts.clear();
+        return this;
+    }
+
+    /**
+     * @param _mType {@link MType#UNCONF_DATA_DOWN} or
+     * {@link MType#CONF_DATA_DOWN}
+     * @return this encoder
+     */
+    public DownlinkEncoder setMType(MType _mType) {
+        if (_mType != MType.UNCONF_DATA_DOWN && _mType != MType.CONF_DATA_DOWN) {
+            throw new IllegalArgumentException("Invalid mType");
+        }
+        mType = _mType;
+        return this;
+    }
+
+    /**
+     * @param _devAddr DevAddr as read little-endian from a frame
+     * @return this encoder
+     */
+    public DownlinkEncoder setDevAddr(int _devAddr) {
+        devAddr = _devAddr;
+        return this;
+    }
+
+    /**
+     * @param _fCnt the 32 bits downlink FCnt, of which only the 16 LSB are
+     * sent
+     * @return this encoder
+     */
+    public DownlinkEncoder setfCnt(int _fCnt) {
+        fCnt = _fCnt;
+        return this;
+    }
+
+    public DownlinkEncoder setAdr(boolean _adr) {
+        fCtrl = _adr ? fCtrl | 0x80 : fCtrl & ~0x80;
+        return this;
+    }
+
+    public DownlinkEncoder setAck(boolean _ack) {
+        fCtrl = _ack ? fCtrl | 0x20 : fCtrl & ~0x20;
+        return this;
+    }
+
+    public DownlinkEncoder setFPending(boolean _fPending) {
+        fCtrl = _fPending ? fCtrl | 0x10 : fCtrl & ~0x10;
+        return this;
+    }
+
+    /**
+     * @return a writer appending MAC commands to FOpts
+     */
+    public MacCommandWriter fOpts() {
+        fOpts.clear();
+        return fOptsWriter.reset(fOpts, MacCommandWriter.MAX_FOPTS_LENGTH);
+    }
+
+    public DownlinkEncoder setfOpts(byte[] _fOpts, int _offset, int _length) {
+        if (_length > MacCommandWriter.MAX_FOPTS_LENGTH) {
+            throw new IllegalArgumentException("Invalid fOpts");
+        }
+        fOpts.clear();
+        fOpts.put(_fOpts, _offset, _length);
+        return this;
+    }
+
+    /**
+     * @param _fPort the FPort, 0 for MAC commands encrypted with the NwkSKey
+     * @param _payload the clear payload
+     * @param _offset offset of the payload
+     * @param _length length of the payload
+     * @return this encoder
+     */
+    public DownlinkEncoder setPayload(int _fPort, byte[] _payload, int _offset, int _length) {
+        checkFPort(_fPort);
+        checkPayloadLength(_length);
+        fPort = _fPort;
+        payloadArray = _payload;
+        payloadBuffer = null;
+        payloadOffset = _offset;
+        payloadLength = _length;
+        return this;
+    }
+
+    /**
+     * @param _fPort the FPort, 0 for MAC commands encrypted with the NwkSKey
+     * @param _payload the clear payload, from its position to its limit.
+     * The position is not modified.
+     * @return this encoder
+     */
+    public DownlinkEncoder setPayload(int _fPort, ByteBuffer _payload) {
+        checkFPort(_fPort);
+        checkPayloadLength(_payload.remaining());
+        fPort = _fPort;
+        payloadArray = null;
+        payloadBuffer = _payload;
+        payloadOffset = _payload.position();
+        payloadLength = _payload.remaining();
+        return this;
+    }
+
+    private static void checkFPort(int _fPort) {
+        if (_fPort < 0 || _fPort > 0xff) {
+            throw new IllegalArgumentException("Invalid fPort");
+        }
+    }
+
+    private void checkPayloadLength(int _length) {
+        if (_length < 0 || 1 + 7 + fOpts.position() + 1 + _length + 4 > MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid payload");
+        }
+    }
+
+    public DownlinkEncoder setNwkSKey(byte[] _nwkSKey) {
+        nwkSKey = _nwkSKey;
+        return this;
+    }
+
+    public DownlinkEncoder setAppSKey(byte[] _appSKey) {
+        appSKey = _appSKey;
+        return this;
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(ByteBuffer)} will write
+     */
+    public int encodedLength() {
+        return 1 + 7 + fOpts.position() + (fPort == NO_FPORT ? 0 : 1 + payloadLength) + 4;
+    }
+
+    /**
+     * Writes the frame at the position of the buffer, and advances it.
+     *
+     * @param _dst where the frame is written
+     * @return the number of bytes written
+     */
+    public int encode(ByteBuffer _dst) {
+        if (nwkSKey == null) {
+            throw new IllegalArgumentException("Missing nwkSKey");
+        }
+        if (fPort == 0 && fOpts.position() > 0) {
+            throw new IllegalArgumentException("Invalid fOpts, MAC commands can not be sent in both FOpts and FPort 0");
+        }
+        if (fPort > 0 && payloadLength > 0 && appSKey == null) {
+            throw new IllegalArgumentException("Missing appSKey");
+        }
+        int length = encodedLength();
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid payload, the frame is longer than " + MAX_LENGTH + " bytes");
+        }
+        if (_dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        FrameEvent event = FrameEvents.beginEncode();
+        int start = _dst.position();
+        int fOptsLength = fOpts.position();
+        _dst.put((byte) (mType.value() << 5));
+        _dst.put((byte) devAddr).put((byte) (devAddr >> 8)).put((byte) (devAddr >> 16)).put((byte) (devAddr >> 24));
+        _dst.put((byte) (fCtrl | fOptsLength));
+        _dst.put((byte) fCnt).put((byte) (fCnt >> 8));
+        _dst.put(fOpts.array(), 0, fOptsLength);
+        if (fPort != NO_FPORT) {
+            _dst.put((byte) fPort);
+            if (payloadLength > 0) {
+                CryptoContext context = CryptoContextCache.shared().get(fPort == 0 ? nwkSKey : appSKey);
+                if (payloadArray != null) {
+                    context.xorKeystream(Direction.DOWN, devAddr, fCnt, payloadArray, payloadOffset, _dst, _dst.position(), payloadLength);
+                } else {
+                    context.xorKeystream(Direction.DOWN, devAddr, fCnt, payloadBuffer, payloadOffset, _dst, _dst.position(), payloadLength);
+                }
+                _dst.position(_dst.position() + payloadLength);
+            }
+        }
+        int mic = CryptoContextCache.shared().get(nwkSKey).dataMic(Direction.DOWN, devAddr, fCnt, _dst, start, length - 4);
+        _dst.put((byte) mic).put((byte) (mic >> 8)).put((byte) (mic >> 16)).put((byte) (mic >> 24));
+        if (event != null) {
+            FrameEvents.end(event, mType, devAddr, length, FrameEvents.OK);
+        }
+        return length;
+    }
+}
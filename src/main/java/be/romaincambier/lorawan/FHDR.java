@@ -41,7 +41,7 @@ public class FHDR implements Binarizable {
     protected FHDR(MACPayload _macPayload, ByteBuffer _raw) throws MalformedPacketException {
         macPayload = _macPayload;
         if (_raw.remaining() < 7) {
-            throw new MalformedPacketException("can not read fhdr");
+            throw ParseStatus.TRUNCATED_FHDR.exception();
         }
         devAddr = new byte[4];
         _raw.get(devAddr);
@@ -49,7 +49,7 @@ public class FHDR implements Binarizable {
         fCnt = _raw.getShort();
         fOpts = new byte[fCtrl & 0xf];
         if (_raw.remaining() < fOpts.length) {
-            throw new MalformedPacketException("can not read fOpts");
+            throw ParseStatus.BAD_FOPTS_LEN.exception();
         }
         _raw.get(fOpts);
     }
@@ -66,6 +66,13 @@ public class FHDR implements Binarizable {
         return devAddr;
     }
 
+    /**
+     * @return the DevAddr read as a little-endian int, as transmitted
+     */
+    public int getDevAddrInt() {
+        return (devAddr[0] & 0xff) | (devAddr[1] & 0xff) << 8 | (devAddr[2] & 0xff) << 16 | (devAddr[3] & 0xff) << 24;
+    }
+
     public byte getfCtrl() {
         return fCtrl;
     }
@@ -24,18 +24,17 @@
 package be.romaincambier.lorawan;
 
 import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import be.romaincambier.lorawan.jfr.FrameEvent;
+import be.romaincambier.lorawan.jfr.FrameEvents;
+import be.romaincambier.lorawan.metrics.Metrics;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.Key;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  *
@@ -47,13 +46,31 @@ public class FRMPayload implements Binarizable {
     private final byte[] payload;
     private byte[] mic;
 
-    protected FRMPayload(MACPayload _mac, ByteBuffer _raw) {
+    protected FRMPayload(MACPayload _mac, ByteBuffer _raw) throws MalformedPacketException {
         mac = _mac;
+        if (_raw.remaining() < 4) {
+            throw ParseStatus.NO_MIC.exception();
+        }
         payload = new byte[_raw.remaining() - 4];
         _raw.get(payload);
     }
 
     public byte[] computeMic(byte[] _nwkSKey) throws MalformedPacketException {
+        return computeMic(_nwkSKey, mac.getFhdr().getfCnt() & 0xffff);
+    }
+
+    /**
+     * Computes the MIC using the full frame counter of the session.
+     *
+     * @param _nwkSKey the NwkSKey
+     * @param _fCnt the 32 bits FCnt, whose 16 LSB must match the frame
+     * @return the 4 bytes MIC
+     * @throws MalformedPacketException if the frame can not be serialized
+     */
+    public byte[] computeMic(byte[] _nwkSKey, int _fCnt) throws MalformedPacketException {
+        checkFCnt(_fCnt);
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        FrameEvent event = FrameEvents.beginMic();
         if (_nwkSKey == null) {
             throw new IllegalArgumentException("Missing nwkSKey");
         }
@@ -68,22 +85,22 @@ public class FRMPayload implements Binarizable {
         body.put(new byte[]{0x00, 0x00, 0x00, 0x00});
         body.put(mac.getPhyPayload().getMHDR().getMType().getDirection().value());
         body.put(mac.getFhdr().getDevAddr());
-        body.putInt(mac.getFhdr().getfCnt());
+        body.putInt(_fCnt);
         body.put((byte) 0x00);
         body.put((byte) (1 + mac.length()));
 
         mac.getPhyPayload().getMHDR().binarize(body);
         mac.binarize(body);
 
-        AesCmac aesCmac;
-        try {
-            aesCmac = new AesCmac();
-            aesCmac.init(new SecretKeySpec(_nwkSKey, "AES"));
-            aesCmac.updateBlock(body.array());
-            return Arrays.copyOfRange(aesCmac.doFinal(), 0, 4);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException ex) {
-            throw new RuntimeException("Could not compute AesCmac", ex);
+        byte[] mic = new byte[4];
+        CryptoContextCache.shared().get(_nwkSKey).cmac(body.array(), 0, body.capacity(), mic);
+        if (Metrics.ENABLED) {
+            Metrics.record(Metrics.Stage.MIC, mac.getPhyPayload().getMHDR().getMType(), start);
         }
+        if (event != null) {
+            FrameEvents.end(event, mac.getPhyPayload().getMHDR().getMType(), devAddr(), body.capacity() - 16, FrameEvents.OK);
+        }
+        return mic;
     }
 
     @Override
@@ -97,51 +114,91 @@ public class FRMPayload implements Binarizable {
     }
 
     public byte[] getClearPayLoad(byte[] _nwkSKey, byte[] _appSKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, MalformedPacketException {
-        byte[] key;
-        if (mac.getfPort() == 0) {
-            if (_nwkSKey == null) {
-                throw new IllegalArgumentException("Missing nwkSKey");
-            }
-            if (_nwkSKey.length != 16) {
-                throw new IllegalArgumentException("Invalid nwkSKey");
-            }
-            key = _nwkSKey;
-        } else {
-            if (_appSKey == null) {
-                throw new IllegalArgumentException("Missing appSKey");
-            }
-            if (_appSKey.length != 16) {
-                throw new IllegalArgumentException("Invalid appSKey");
-            }
-            key = _appSKey;
+        byte[] plainPayload = new byte[payload.length];
+        decryptInto(ByteBuffer.wrap(plainPayload), _nwkSKey, _appSKey);
+        return plainPayload;
+    }
+
+    /**
+     * Decrypts the payload at the position of the given buffer, and advances
+     * it by {@link #length()}.
+     *
+     * @param _dst where the clear payload is written
+     * @param _nwkSKey key used if FPort is 0
+     * @param _appSKey key used otherwise
+     * @throws MalformedPacketException if the MHDR is invalid
+     */
+    public void decryptInto(ByteBuffer _dst, byte[] _nwkSKey, byte[] _appSKey) throws MalformedPacketException {
+        decryptInto(_dst, _nwkSKey, _appSKey, mac.getFhdr().getfCnt() & 0xffff);
+    }
+
+    /**
+     * Decrypts the payload using the full frame counter of the session.
+     *
+     * @param _dst where the clear payload is written
+     * @param _nwkSKey key used if FPort is 0
+     * @param _appSKey key used otherwise
+     * @param _fCnt the 32 bits FCnt, whose 16 LSB must match the frame
+     * @throws MalformedPacketException if the MHDR is invalid
+     */
+    public void decryptInto(ByteBuffer _dst, byte[] _nwkSKey, byte[] _appSKey, int _fCnt) throws MalformedPacketException {
+        decryptInto(_dst, mac.hasFPort() ? CryptoContextCache.shared().get(key(_nwkSKey, _appSKey)) : null, _fCnt);
+    }
+
+    /**
+     * @param _context the context of {@link #key(byte[], byte[])}, null if
+     * the frame has no FPort
+     */
+    void decryptInto(ByteBuffer _dst, CryptoContext _context, int _fCnt) throws MalformedPacketException {
+        checkFCnt(_fCnt);
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        FrameEvent event = FrameEvents.beginDecrypt();
+        int position = _dst.position();
+        if (_dst.remaining() < payload.length) {
+            throw new BufferOverflowException();
         }
-        int k = (int) Math.ceil(payload.length / 16.0);
-        ByteBuffer a = ByteBuffer.allocate(16 * k);
-        a.order(ByteOrder.LITTLE_ENDIAN);
-        for (int i = 1; i <= k; i++) {
-            a.put((byte) 0x01);
-            a.put(new byte[]{0x00, 0x00, 0x00, 0x00});
-            a.put(mac.getPhyPayload().getMHDR().getMType().getDirection().value());
-            a.put(mac.getFhdr().getDevAddr());
-            a.putInt(mac.getFhdr().getfCnt());
-            a.put((byte) 0x00);
-            a.put((byte) i);
+        if (mac.hasFPort()) {
+            _context.xorKeystream(direction(), devAddr(), _fCnt, payload, 0, _dst, position, payload.length);
+            _dst.position(position + payload.length);
         }
-        Key aesKey = new SecretKeySpec(key, "AES");
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-        byte[] s = cipher.doFinal(a.array());
-        byte[] paddedPayload = new byte[16 * k];
-        System.arraycopy(payload, 0, paddedPayload, 0, payload.length);
-        byte[] plainPayload = new byte[payload.length];
-        for (int i = 0; i < payload.length; i++) {
-            plainPayload[i] = (byte) (s[i] ^ paddedPayload[i]);
+        if (Metrics.ENABLED) {
+            Metrics.record(Metrics.Stage.DECRYPT, mac.getPhyPayload().getMHDR().getMType(), start);
         }
-        return plainPayload;
+        if (event != null) {
+            FrameEvents.end(event, mac.getPhyPayload().getMHDR().getMType(), devAddr(), payload.length, FrameEvents.OK);
+        }
+    }
+
+    /**
+     * Encrypts the remaining bytes of _clear at the position of _dst. Both
+     * buffers are advanced.
+     *
+     * @param _dst where the encrypted payload is written
+     * @param _clear the clear payload
+     * @param _key the NwkSKey if FPort is 0, the AppSKey otherwise
+     * @param _direction direction of the frame
+     * @param _devAddr DevAddr as read little-endian from the frame
+     * @param _fCnt the frame counter
+     */
+    public static void encryptInto(ByteBuffer _dst, ByteBuffer _clear, byte[] _key, Direction _direction, int _devAddr, int _fCnt) {
+        int length = _clear.remaining();
+        if (_dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        CryptoContextCache.shared().get(_key)
+                .xorKeystream(_direction, _devAddr, _fCnt, _clear, _clear.position(), _dst, _dst.position(), length);
+        _clear.position(_clear.position() + length);
+        _dst.position(_dst.position() + length);
     }
 
     private byte[] encryptPayload(byte[] _data, byte[] _nwkSKey, byte[] _appSKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, MalformedPacketException {
-        byte[] key;
+        byte[] output = new byte[_data.length];
+        CryptoContextCache.shared().get(key(_nwkSKey, _appSKey))
+                .xorKeystream(direction(), devAddr(), mac.getFhdr().getfCnt() & 0xffff, _data, 0, ByteBuffer.wrap(output), 0, _data.length);
+        return output;
+    }
+
+    byte[] key(byte[] _nwkSKey, byte[] _appSKey) {
         if (mac.getfPort() == 0) {
             if (_nwkSKey == null) {
                 throw new IllegalArgumentException("Missing nwkSKey");
@@ -149,39 +206,29 @@ public class FRMPayload implements Binarizable {
             if (_nwkSKey.length != 16) {
                 throw new IllegalArgumentException("Invalid nwkSKey");
             }
-            key = _nwkSKey;
-        } else {
-            if (_appSKey == null) {
-                throw new IllegalArgumentException("Missing appSKey");
-            }
-            if (_appSKey.length != 16) {
-                throw new IllegalArgumentException("Invalid appSKey");
-            }
-            key = _appSKey;
+            return _nwkSKey;
         }
-        int k = (int) Math.ceil(_data.length / 16.0);
-        ByteBuffer a = ByteBuffer.allocate(16 * k);
-        a.order(ByteOrder.LITTLE_ENDIAN);
-        for (int i = 1; i <= k; i++) {
-            a.put((byte) 0x01);
-            a.put(new byte[]{0x00, 0x00, 0x00, 0x00});
-            a.put(mac.getPhyPayload().getMHDR().getMType().getDirection().value());
-            a.put(mac.getFhdr().getDevAddr());
-            a.putInt(mac.getFhdr().getfCnt());
-            a.put((byte) 0x00);
-            a.put((byte) i);
+        if (_appSKey == null) {
+            throw new IllegalArgumentException("Missing appSKey");
         }
-        Key aesKey = new SecretKeySpec(key, "AES");
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-        byte[] s = cipher.doFinal(a.array());
-        byte[] paddedPayload = new byte[16 * k];
-        System.arraycopy(_data, 0, paddedPayload, 0, _data.length);
-        byte[] output = new byte[_data.length];
-        for (int i = 0; i < _data.length; i++) {
-            output[i] = (byte) (s[i] ^ paddedPayload[i]);
+        if (_appSKey.length != 16) {
+            throw new IllegalArgumentException("Invalid appSKey");
         }
-        return output;
+        return _appSKey;
+    }
+
+    private void checkFCnt(int _fCnt) {
+        if ((short) _fCnt != mac.getFhdr().getfCnt()) {
+            throw new IllegalArgumentException("FCnt does not match the frame");
+        }
+    }
+
+    Direction direction() throws MalformedPacketException {
+        return mac.getPhyPayload().getMHDR().getMType().getDirection();
+    }
+
+    int devAddr() {
+        return mac.getFhdr().getDevAddrInt();
     }
 
     public MACPayload getMac() {
@@ -0,0 +1,371 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Columnar store of data frames, for analytics and bulk replay.
+ * <p>
+ * The header fields of each frame are decoded into parallel primitive
+ * columns (MType, DevAddr, FCnt, FCtrl, FPort), and the raw frames are
+ * copied back to back into one shared byte array. A frame therefore costs
+ * 15 bytes of columns plus its own length, and no object.
+ * <p>
+ * Queries work on selection masks: byte arrays holding 1 for the selected
+ * frames and 0 for the others, created by {@link #newMask()}. Each filter
+ * clears the frames it rejects, so filters compose by chaining them on the
+ * same mask. The filters are plain loops over the columns which never
+ * touch the raw frames. A batch holds at most 2GB of frames: split larger
+ * captures in several batches. A batch is not thread-safe, but filters may
+ * run concurrently on distinct masks once the batch is filled.
+ *
+ * @author Romain Cambier
+ */
+public final class FrameBatch {
+
+    private static final int MAX_DATA = Integer.MAX_VALUE - 8;
+
+    private final PacketView view = new PacketView();
+
+    private int size;
+    private byte[] mTypes;
+    private int[] devAddrs;
+    private int[] fCnts;
+    private byte[] fCtrls;
+    private byte[] fPorts;
+    private int[] offsets;
+    private byte[] data;
+    private int dataLength;
+
+    public FrameBatch() {
+        this(1024, 32 * 1024);
+    }
+
+    /**
+     * @param _frames initial number of frames
+     * @param _bytes initial size of the shared frame array
+     */
+    public FrameBatch(int _frames, int _bytes) {
+        if (_frames < 1) {
+            throw new IllegalArgumentException("Invalid frames");
+        }
+        if (_bytes < 1) {
+            throw new IllegalArgumentException("Invalid bytes");
+        }
+        mTypes = new byte[_frames];
+        devAddrs = new int[_frames];
+        fCnts = new int[_frames];
+        fCtrls = new byte[_frames];
+        fPorts = new byte[_frames];
+        offsets = new int[_frames + 1];
+        data = new byte[_bytes];
+    }
+
+    /**
+     * Appends the remaining bytes of the buffer, without modifying its
+     * position.
+     *
+     * @param _raw the frame
+     * @return false if the frame is malformed or not a data frame
+     */
+    public boolean add(ByteBuffer _raw) {
+        int length = _raw.remaining();
+        ensureData(length);
+        _raw.duplicate().get(data, dataLength, length);
+        return append(length);
+    }
+
+    public boolean add(byte[] _raw, int _offset, int _length) {
+        ensureData(_length);
+        System.arraycopy(_raw, _offset, data, dataLength, _length);
+        return append(_length);
+    }
+
+    private boolean append(int _length) {
+        if (view.scan(data, dataLength, _length) != ParseStatus.OK || !view.isDataFrame()) {
+            return false;
+        }
+        if (size == mTypes.length) {
+            int capacity = size * 2;
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            devAddrs = Arrays.copyOf(devAddrs, capacity);
+            fCnts = Arrays.copyOf(fCnts, capacity);
+            fCtrls = Arrays.copyOf(fCtrls, capacity);
+            fPorts = Arrays.copyOf(fPorts, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+        }
+        mTypes[size] = view.mType().value();
+        devAddrs[size] = view.devAddr();
+        fCnts[size] = view.fCnt16();
+        fCtrls[size] = view.fCtrl();
+        fPorts[size] = (byte) Math.max(view.fPort(), 0);
+        dataLength += _length;
+        offsets[++size] = dataLength;
+        return true;
+    }
+
+    private void ensureData(int _length) {
+        if (_length > MAX_DATA - dataLength) {
+            throw new IllegalStateException("FrameBatch is full");
+        }
+        if (dataLength + _length > data.length) {
+            data = Arrays.copyOf(data, (int) Math.min(MAX_DATA, Math.max((long) data.length * 2, dataLength + _length)));
+        }
+    }
+
+    /**
+     * Removes every frame, keeping the allocated columns.
+     */
+    public void clear() {
+        size = 0;
+        dataLength = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public MType mType(int _index) {
+        checkIndex(_index);
+        return MType.of(mTypes[_index] << 5);
+    }
+
+    /**
+     * @param _index the frame index
+     * @return DevAddr as read little-endian from the frame
+     */
+    public int devAddr(int _index) {
+        checkIndex(_index);
+        return devAddrs[_index];
+    }
+
+    /**
+     * @param _index the frame index
+     * @return the 16 bits FCnt
+     */
+    public int fCnt(int _index) {
+        checkIndex(_index);
+        return fCnts[_index];
+    }
+
+    public byte fCtrl(int _index) {
+        checkIndex(_index);
+        return fCtrls[_index];
+    }
+
+    public boolean hasFPort(int _index) {
+        return frameLength(_index) > 12 + (fCtrls[_index] & 0xf);
+    }
+
+    /**
+     * @param _index the frame index
+     * @return the FPort, or -1 if the frame does not carry one
+     */
+    public int fPort(int _index) {
+        return hasFPort(_index) ? fPorts[_index] & 0xff : -1;
+    }
+
+    /**
+     * @return the shared array holding the raw frames
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    public int frameOffset(int _index) {
+        checkIndex(_index);
+        return offsets[_index];
+    }
+
+    public int frameLength(int _index) {
+        checkIndex(_index);
+        return offsets[_index + 1] - offsets[_index];
+    }
+
+    /**
+     * @param _index the frame index
+     * @return the offset of the FRMPayload in {@link #data()}
+     */
+    public int payloadOffset(int _index) {
+        return frameOffset(_index) + 9 + (fCtrls[_index] & 0xf);
+    }
+
+    /**
+     * @param _index the frame index
+     * @return the length of the FRMPayload, 0 if the frame has no FPort
+     */
+    public int payloadLength(int _index) {
+        return Math.max(frameLength(_index) - 13 - (fCtrls[_index] & 0xf), 0);
+    }
+
+    /**
+     * Points a view at a frame, e.g. to verify its MIC or decrypt it.
+     *
+     * @param _index the frame index
+     * @param _view the view to re-point
+     * @return _view
+     */
+    public PacketView view(int _index, PacketView _view) {
+        try {
+            return _view.wrap(data, frameOffset(_index), frameLength(_index));
+        } catch (MalformedPacketException ex) {
+            throw new IllegalStateException("Frame " + _index + " was modified", ex);
+        }
+    }
+
+    private void checkIndex(int _index) {
+        if (_index < 0 || _index >= size) {
+            throw new IndexOutOfBoundsException("Invalid index " + _index);
+        }
+    }
+
+    /**
+     * @return a mask selecting every frame
+     */
+    public byte[] newMask() {
+        byte[] mask = new byte[size];
+        Arrays.fill(mask, (byte) 1);
+        return mask;
+    }
+
+    private void checkMask(byte[] _mask) {
+        if (_mask.length < size) {
+            throw new IllegalArgumentException("Invalid mask");
+        }
+    }
+
+    public void filterMType(byte[] _mask, MType _mType) {
+        checkMask(_mask);
+        int value = _mType.value();
+        for (int i = 0; i < size; i++) {
+            _mask[i] &= mTypes[i] == value ? 1 : 0;
+        }
+    }
+
+    public void filterDevAddr(byte[] _mask, int _devAddr) {
+        filterDevAddrPrefix(_mask, _devAddr, 32);
+    }
+
+    /**
+     * Keeps the frames whose DevAddr starts with the given bits, e.g. the
+     * DevAddrs of a NetID.
+     *
+     * @param _mask the selection
+     * @param _prefix DevAddr holding the prefix in its MSB
+     * @param _length number of bits of the prefix, 0 to 32
+     */
+    public void filterDevAddrPrefix(byte[] _mask, int _prefix, int _length) {
+        checkMask(_mask);
+        if (_length < 0 || _length > 32) {
+            throw new IllegalArgumentException("Invalid length");
+        }
+        int bits = _length == 0 ? 0 : -1 << (32 - _length);
+        int prefix = _prefix & bits;
+        for (int i = 0; i < size; i++) {
+            _mask[i] &= (devAddrs[i] & bits) == prefix ? 1 : 0;
+        }
+    }
+
+    /**
+     * Keeps the frames whose 16 bits FCnt is between the bounds.
+     *
+     * @param _mask the selection
+     * @param _min the inclusive lower bound
+     * @param _max the inclusive upper bound
+     */
+    public void filterFCnt(byte[] _mask, int _min, int _max) {
+        checkMask(_mask);
+        if (_min < 0 || _max > 0xffff || _min > _max) {
+            throw new IllegalArgumentException("Invalid fCnt range");
+        }
+        for (int i = 0; i < size; i++) {
+            _mask[i] &= ((fCnts[i] - _min) | (_max - fCnts[i])) >= 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Keeps the frames whose FCtrl has all the given bits set, e.g.
+     * 0x20 for ACK.
+     *
+     * @param _mask the selection
+     * @param _bits the bits
+     */
+    public void filterFCtrl(byte[] _mask, int _bits) {
+        checkMask(_mask);
+        int bits = _bits & 0xff;
+        for (int i = 0; i < size; i++) {
+            _mask[i] &= (fCtrls[i] & bits) == bits ? 1 : 0;
+        }
+    }
+
+    /**
+     * Keeps the frames with the given FPort. Frames without FPort never
+     * match.
+     *
+     * @param _mask the selection
+     * @param _fPort the FPort
+     */
+    public void filterFPort(byte[] _mask, int _fPort) {
+        checkMask(_mask);
+        for (int i = 0; i < size; i++) {
+            int payloadLength = offsets[i + 1] - offsets[i] - 13 - (fCtrls[i] & 0xf);
+            _mask[i] &= ((fPorts[i] & 0xff) == _fPort) & (payloadLength >= 0) ? 1 : 0;
+        }
+    }
+
+    /**
+     * @param _mask the selection
+     * @return the number of selected frames
+     */
+    public int count(byte[] _mask) {
+        checkMask(_mask);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += _mask[i];
+        }
+        return count;
+    }
+
+    /**
+     * Writes the indexes of the selected frames.
+     *
+     * @param _mask the selection
+     * @param _indexes where the indexes are written, at least
+     * {@link #count(byte[])} long
+     * @return the number of selected frames
+     */
+    public int select(byte[] _mask, int[] _indexes) {
+        checkMask(_mask);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (_mask[i] != 0) {
+                _indexes[count++] = i;
+            }
+        }
+        return count;
+    }
+}
@@ -24,18 +24,16 @@
 package be.romaincambier.lorawan;
 
 import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import be.romaincambier.lorawan.jfr.FrameEvent;
+import be.romaincambier.lorawan.jfr.FrameEvents;
+import be.romaincambier.lorawan.metrics.Metrics;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.Key;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  *
@@ -50,8 +48,9 @@ public class JoinAcceptPayload implements Message {
 
     protected JoinAcceptPayload(PhyPayload _phy, ByteBuffer _raw) throws MalformedPacketException {
         phy = _phy;
-        if (_raw.remaining() < 12) {
-            throw new MalformedPacketException("could not read joinAcceptPayload");
+        //encrypted payload and MIC are whole AES blocks
+        if (_raw.remaining() < 16 || (_raw.remaining() & 0xf) != 0) {
+            throw ParseStatus.TRUNCATED_JOIN_ACCEPT.exception();
         }
         encryptedPayload = new byte[_raw.remaining() - 4];
         _raw.get(encryptedPayload);
@@ -69,6 +68,8 @@ public class JoinAcceptPayload implements Message {
 
     public ClearPayload getClearPayload(byte[] _appKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
         if (payload == null) {
+            long start = Metrics.ENABLED ? System.nanoTime() : 0;
+            FrameEvent event = FrameEvents.beginDecrypt();
             if (_appKey == null) {
                 throw new RuntimeException("Missing appKey");
             }
@@ -79,11 +80,15 @@ public class JoinAcceptPayload implements Message {
             a.order(ByteOrder.LITTLE_ENDIAN);
             a.put(encryptedPayload);
             a.put(phy.getMic());
-            Key aesKey = new SecretKeySpec(_appKey, "AES");
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-            byte[] s = cipher.doFinal(a.array());
+            byte[] s = new byte[a.capacity()];
+            CryptoContextCache.shared().get(_appKey).encrypt(a.array(), 0, a.capacity(), s, 0);
             payload = new ClearPayload(s);
+            if (Metrics.ENABLED) {
+                Metrics.record(Metrics.Stage.DECRYPT, MType.JOIN_ACCEPT, start);
+            }
+            if (event != null) {
+                FrameEvents.end(event, MType.JOIN_ACCEPT, payload.getDevAddrInt(), encryptedPayload.length, FrameEvents.OK);
+            }
         }
         return payload;
     }
@@ -99,10 +104,9 @@ public class JoinAcceptPayload implements Message {
         a.order(ByteOrder.LITTLE_ENDIAN);
         payload.binarize(a);
         a.put(computeMic(_appKey));
-        Key aesKey = new SecretKeySpec(_appKey, "AES");
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, aesKey);
-        return cipher.doFinal(a.array());
+        byte[] encrypted = new byte[a.capacity()];
+        CryptoContextCache.shared().get(_appKey).decrypt(a.array(), 0, a.capacity(), encrypted, 0);
+        return encrypted;
     }
 
     public byte[] computeMic(byte[] _appKey) throws MalformedPacketException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
@@ -112,21 +116,20 @@ public class JoinAcceptPayload implements Message {
         if (_appKey.length != 16) {
             throw new IllegalArgumentException("Invalid appKey");
         }
+        FrameEvent event = FrameEvents.beginMic();
         //size = mhdr + length()
         ByteBuffer body = ByteBuffer.allocate(1 + length());
         body.order(ByteOrder.LITTLE_ENDIAN);
         phy.getMHDR().binarize(body);
-        getClearPayload(_appKey).binarize(body);
-
-        AesCmac aesCmac;
-        try {
-            aesCmac = new AesCmac();
-            aesCmac.init(new SecretKeySpec(_appKey, "AES"));
-            aesCmac.updateBlock(body.array());
-            return Arrays.copyOfRange(aesCmac.doFinal(), 0, 4);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException ex) {
-            throw new RuntimeException("Could not compute AesCmac", ex);
+        ClearPayload clear = getClearPayload(_appKey);
+        clear.binarize(body);
+
+        byte[] mic = new byte[4];
+        CryptoContextCache.shared().get(_appKey).cmac(body.array(), 0, body.capacity(), mic);
+        if (event != null) {
+            FrameEvents.end(event, MType.JOIN_ACCEPT, clear.getDevAddrInt(), body.capacity(), FrameEvents.OK);
         }
+        return mic;
     }
 
     @Override
@@ -169,6 +172,13 @@ public class JoinAcceptPayload implements Message {
             return devAddr;
         }
 
+        /**
+         * @return the DevAddr read as a little-endian int, as transmitted
+         */
+        public int getDevAddrInt() {
+            return (devAddr[0] & 0xff) | (devAddr[1] & 0xff) << 8 | (devAddr[2] & 0xff) << 16 | (devAddr[3] & 0xff) << 24;
+        }
+
         public byte getDlSettings() {
             return dlSettings;
         }
@@ -26,14 +26,11 @@ package be.romaincambier.lorawan;
 import be.romaincambier.lorawan.exceptions.MalformedPacketException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  *
@@ -50,7 +47,10 @@ public class JoinRequestPayload implements Message {
     protected JoinRequestPayload(PhyPayload _phy, ByteBuffer _raw) throws MalformedPacketException {
         phy = _phy;
         if (_raw.remaining() < 18) {
-            throw new MalformedPacketException("could not read joinRequestPayload");
+            throw ParseStatus.TRUNCATED_JOIN_REQUEST.exception();
+        }
+        if (_raw.remaining() > 18 + 4) {
+            throw ParseStatus.JOIN_REQUEST_TOO_LONG.exception();
         }
         appEUI = new byte[8];
         devEUI = new byte[8];
@@ -74,15 +74,9 @@ public class JoinRequestPayload implements Message {
         phy.getMHDR().binarize(body);
         binarize(body);
 
-        AesCmac aesCmac;
-        try {
-            aesCmac = new AesCmac();
-            aesCmac.init(new SecretKeySpec(_appKey, "AES"));
-            aesCmac.updateBlock(body.array());
-            return Arrays.copyOfRange(aesCmac.doFinal(), 0, 4);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException ex) {
-            throw new RuntimeException("Could not compute AesCmac", ex);
-        }
+        byte[] mic = new byte[4];
+        CryptoContextCache.shared().get(_appKey).cmac(body.array(), 0, body.capacity(), mic);
+        return mic;
     }
 
     @Override
@@ -40,13 +40,16 @@ public class MACPayload implements Message, Binarizable {
 
     private final FHDR fhdr;
     private final byte fPort;
+    private final boolean hasFPort;
     private final FRMPayload payload;
     private final PhyPayload phy;
 
     protected MACPayload(PhyPayload _phy, ByteBuffer _raw) throws MalformedPacketException {
         phy = _phy;
         fhdr = new FHDR(this, _raw);
-        fPort = _raw.get();
+        //a frame without FRMPayload does not carry a fPort
+        hasFPort = _raw.remaining() > 4;
+        fPort = hasFPort ? _raw.get() : 0;
         payload = new FRMPayload(this, _raw);
     }
 
@@ -54,7 +57,7 @@ public class MACPayload implements Message, Binarizable {
     public void binarize(ByteBuffer _bb) throws MalformedPacketException {
         _bb.order(ByteOrder.LITTLE_ENDIAN);
         fhdr.binarize(_bb);
-        if (payload != null && payload.hasPayload() ) {
+        if (hasFPort) {
             _bb.put(fPort);
             payload.binarize(_bb);
         }
@@ -64,10 +67,20 @@ public class MACPayload implements Message, Binarizable {
         return fhdr;
     }
 
+    /**
+     * @return the FPort, meaningless if {@link #hasFPort()} is false
+     */
     public byte getfPort() {
         return fPort;
     }
 
+    /**
+     * @return false if the frame carries neither FPort nor FRMPayload
+     */
+    public boolean hasFPort() {
+        return hasFPort;
+    }
+
     public FRMPayload getFRMPayload() {
         return payload;
     }
@@ -78,7 +91,7 @@ public class MACPayload implements Message, Binarizable {
 
     @Override
     public int length() {
-        return fhdr.length() + ((payload == null || !payload.hasPayload()) ? 0 : (1 + payload.length()));
+        return fhdr.length() + (hasFPort ? 1 + payload.length() : 0);
     }
 
     public static Builder newBuilder() {
@@ -103,6 +116,7 @@ public class MACPayload implements Message, Binarizable {
         } else {
             payload = null;
         }
+        hasFPort = payload != null && payload.hasPayload();
     }
 
     @Override
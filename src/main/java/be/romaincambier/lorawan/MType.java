@@ -24,6 +24,9 @@
 package be.romaincambier.lorawan;
 
 import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -50,14 +53,37 @@ public enum MType {
     private Class<? extends Message> mapper;
     private final Direction direction;
 
-    public static MType from(byte _mhdr) throws MalformedPacketException {
-        byte mType = (byte) ((_mhdr >> 5) & 0x07);
+    /**
+     * Indexed by the 3 mType bits of the MHDR.
+     */
+    private static final MType[] LOOKUP = new MType[8];
+
+    /**
+     * Indexed by the 3 mType bits of the MHDR. The array is replaced, never
+     * modified, when a handler is registered.
+     */
+    private static volatile Message.Parser[] parsers;
+
+    static {
         for (MType v : values()) {
-            if (v.value == mType) {
-                return v;
-            }
+            LOOKUP[v.value] = v;
         }
-        throw new MalformedPacketException("unknown mType");
+        Message.Parser[] table = new Message.Parser[8];
+        table[JOIN_REQUEST.value] = JoinRequestPayload::new;
+        table[JOIN_ACCEPT.value] = JoinAcceptPayload::new;
+        table[UNCONF_DATA_UP.value] = MACPayload::new;
+        table[UNCONF_DATA_DOWN.value] = MACPayload::new;
+        table[CONF_DATA_UP.value] = MACPayload::new;
+        table[CONF_DATA_DOWN.value] = MACPayload::new;
+        parsers = table;
+    }
+
+    public static MType from(byte _mhdr) throws MalformedPacketException {
+        return of(_mhdr);
+    }
+
+    static MType of(int _mhdr) {
+        return LOOKUP[(_mhdr >> 5) & 0x07];
     }
 
     public Direction getDirection() {
@@ -75,11 +101,70 @@ public enum MType {
         return mapper;
     }
 
+    public Message.Parser getParser() {
+        Message.Parser parser = parsers[value];
+        if (parser == null) {
+            throw new RuntimeException("Missing mapper for mType " + name());
+        }
+        return parser;
+    }
+
+    /**
+     * @return the parser, or null if none is registered
+     */
+    Message.Parser parser() {
+        return parsers[value];
+    }
+
     public void setRfuPayloadMapper(Class<? extends Message> _handler) {
+        registerParser(RFU, reflectiveParser(_handler));
         RFU.mapper = _handler;
     }
 
     public void setProprietaryPayloadMapper(Class<? extends Message> _handler) {
+        registerParser(PROPRIETARY, reflectiveParser(_handler));
         PROPRIETARY.mapper = _handler;
     }
+
+    /**
+     * Registers the parser used for {@link #RFU} or {@link #PROPRIETARY}
+     * frames. The other mTypes are bound to the LoRaWAN messages and can not
+     * be overridden.
+     *
+     * @param _mType RFU or PROPRIETARY
+     * @param _parser the parser, or null to remove the current one
+     */
+    public static synchronized void registerParser(MType _mType, Message.Parser _parser) {
+        if (_mType != RFU && _mType != PROPRIETARY) {
+            throw new IllegalArgumentException("Can not register a parser for mType " + _mType);
+        }
+        Message.Parser[] table = parsers.clone();
+        table[_mType.value] = _parser;
+        parsers = table;
+    }
+
+    private static Message.Parser reflectiveParser(Class<? extends Message> _handler) {
+        if (_handler == null) {
+            return null;
+        }
+        final Constructor<? extends Message> constructor;
+        try {
+            constructor = _handler.getDeclaredConstructor(PhyPayload.class, ByteBuffer.class);
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException | SecurityException ex) {
+            throw new RuntimeException("Could not create Message", ex);
+        }
+        return (PhyPayload _phy, ByteBuffer _raw) -> {
+            try {
+                return constructor.newInstance(_phy, _raw);
+            } catch (InvocationTargetException ex) {
+                if (ex.getCause() instanceof MalformedPacketException) {
+                    throw (MalformedPacketException) ex.getCause();
+                }
+                throw new RuntimeException("Could not create Message", ex);
+            } catch (InstantiationException | IllegalAccessException | IllegalArgumentException ex) {
+                throw new RuntimeException("Could not create Message", ex);
+            }
+        };
+    }
 }
@@ -50,7 +50,7 @@ public enum MajorVersion {
                 return v;
             }
         }
-        throw new MalformedPacketException("Unknown major version");
+        throw ParseStatus.UNKNOWN_MAJOR_VERSION.exception();
     }
 
 }
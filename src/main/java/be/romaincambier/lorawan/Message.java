@@ -24,6 +24,7 @@
 package be.romaincambier.lorawan;
 
 import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import javax.crypto.BadPaddingException;
@@ -40,6 +41,15 @@ public interface Message extends Binarizable {
 
         public Message build(PhyPayload _phy) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, MalformedPacketException;
     }
+
+    /**
+     * Creates the {@link Message} of a {@link PhyPayload} from the bytes
+     * following its MHDR.
+     */
+    public static interface Parser {
+
+        public Message parse(PhyPayload _phy, ByteBuffer _raw) throws MalformedPacketException;
+    }
     
     public byte[] getMic();
     
@@ -0,0 +1,401 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import be.romaincambier.lorawan.jfr.FrameEvent;
+import be.romaincambier.lorawan.jfr.FrameEvents;
+import be.romaincambier.lorawan.metrics.Metrics;
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view over a raw frame. A view copies nothing: it only records
+ * the offsets of the frame fields and reads them from the underlying buffer
+ * on demand, so a single instance can be re-pointed at every frame of a
+ * stream with {@link #wrap(ByteBuffer)}.
+ * <p>
+ * Multi-byte fields are decoded from their little-endian wire
+ * representation. Offsets are absolute indexes in the wrapped buffer or
+ * array. A view is not thread-safe.
+ *
+ * @author Romain Cambier
+ */
+public final class PacketView {
+
+    private byte[] array;
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    private int mhdr;
+    private int fOptsLength;
+    private int fPortOffset;
+    private int payloadOffset;
+    private int payloadLength;
+
+    /**
+     * Wraps the remaining bytes of the given buffer. The buffer position is
+     * not modified.
+     *
+     * @param _raw the frame
+     * @return this view
+     * @throws MalformedPacketException if the frame is not valid
+     */
+    public PacketView wrap(ByteBuffer _raw) throws MalformedPacketException {
+        return wrap(_raw, _raw.position(), _raw.remaining());
+    }
+
+    public PacketView wrap(ByteBuffer _raw, int _offset, int _length) throws MalformedPacketException {
+        return check(tryWrap(_raw, _offset, _length));
+    }
+
+    public PacketView wrap(byte[] _raw, int _offset, int _length) throws MalformedPacketException {
+        return check(tryWrap(_raw, _offset, _length));
+    }
+
+    private PacketView check(ParseStatus _status) throws MalformedPacketException {
+        if (_status != ParseStatus.OK) {
+            throw _status.exception();
+        }
+        return this;
+    }
+
+    /**
+     * Wraps the remaining bytes of the given buffer without throwing. The
+     * buffer position is not modified. The view must not be read unless the
+     * returned status is OK.
+     *
+     * @param _raw the frame
+     * @return the outcome of the checks
+     */
+    public ParseStatus tryWrap(ByteBuffer _raw) {
+        return tryWrap(_raw, _raw.position(), _raw.remaining());
+    }
+
+    public ParseStatus tryWrap(ByteBuffer _raw, int _offset, int _length) {
+        if (_raw.hasArray()) {
+            return tryWrap(_raw.array(), _raw.arrayOffset() + _offset, _length);
+        }
+        array = null;
+        buffer = _raw;
+        return index(_offset, _length);
+    }
+
+    public ParseStatus tryWrap(byte[] _raw, int _offset, int _length) {
+        array = _raw;
+        buffer = null;
+        return index(_offset, _length);
+    }
+
+    /**
+     * Checks the frame without recording metrics nor events.
+     */
+    ParseStatus scan(byte[] _raw, int _offset, int _length) {
+        array = _raw;
+        buffer = null;
+        return scan(_offset, _length);
+    }
+
+    ParseStatus scan(ByteBuffer _raw) {
+        if (_raw.hasArray()) {
+            array = _raw.array();
+            buffer = null;
+            return scan(_raw.arrayOffset() + _raw.position(), _raw.remaining());
+        }
+        array = null;
+        buffer = _raw;
+        return scan(_raw.position(), _raw.remaining());
+    }
+
+    private ParseStatus index(int _offset, int _length) {
+        FrameEvent event = FrameEvents.beginParse();
+        if (!Metrics.ENABLED && event == null) {
+            return scan(_offset, _length);
+        }
+        long start = System.nanoTime();
+        ParseStatus status = scan(_offset, _length);
+        if (status == ParseStatus.OK) {
+            if (Metrics.ENABLED) {
+                Metrics.record(Metrics.Stage.PARSE, MType.of(mhdr), start);
+            }
+            if (event != null) {
+                FrameEvents.end(event, MType.of(mhdr), isDataFrame() ? getInt(_offset + 1) : 0, _length, FrameEvents.OK);
+            }
+        } else {
+            if (Metrics.ENABLED) {
+                Metrics.failure(status);
+            }
+            if (event != null) {
+                FrameEvents.end(event, null, 0, _length, status.name());
+            }
+        }
+        return status;
+    }
+
+    private ParseStatus scan(int _offset, int _length) {
+        offset = _offset;
+        length = _length;
+        fOptsLength = 0;
+        fPortOffset = -1;
+        if (_length < 1) {
+            return ParseStatus.TRUNCATED_MHDR;
+        }
+        mhdr = get(_offset) & 0xff;
+        int remaining = _length - 1;
+        switch (MType.of(mhdr)) {
+            case JOIN_REQUEST:
+                if (remaining < 18) {
+                    return ParseStatus.TRUNCATED_JOIN_REQUEST;
+                }
+                if (remaining > 18 + 4) {
+                    return ParseStatus.JOIN_REQUEST_TOO_LONG;
+                }
+                payloadOffset = _offset + 1;
+                payloadLength = 18;
+                remaining -= 18;
+                break;
+            case JOIN_ACCEPT:
+                if (remaining < 16 || (remaining & 0xf) != 0) {
+                    return ParseStatus.TRUNCATED_JOIN_ACCEPT;
+                }
+                payloadOffset = _offset + 1;
+                payloadLength = remaining - 4;
+                remaining = 4;
+                break;
+            case RFU:
+            case PROPRIETARY:
+                payloadOffset = _offset + 1;
+                payloadLength = Math.max(remaining - 4, 0);
+                remaining -= payloadLength;
+                break;
+            default:
+                if (remaining < 7) {
+                    return ParseStatus.TRUNCATED_FHDR;
+                }
+                fOptsLength = get(_offset + 5) & 0xf;
+                remaining -= 7;
+                if (remaining < fOptsLength) {
+                    return ParseStatus.BAD_FOPTS_LEN;
+                }
+                remaining -= fOptsLength;
+                payloadOffset = _offset + 8 + fOptsLength;
+                payloadLength = 0;
+                if (remaining > 4) {
+                    fPortOffset = payloadOffset;
+                    payloadOffset++;
+                    payloadLength = remaining - 5;
+                    remaining = 4;
+                }
+                break;
+        }
+        if (remaining < 4) {
+            return ParseStatus.NO_MIC;
+        }
+        return ParseStatus.OK;
+    }
+
+    private byte get(int _index) {
+        return array != null ? array[_index] : buffer.get(_index);
+    }
+
+    private int getShort(int _index) {
+        return (get(_index) & 0xff) | (get(_index + 1) & 0xff) << 8;
+    }
+
+    private int getInt(int _index) {
+        return (get(_index) & 0xff) | (get(_index + 1) & 0xff) << 8 | (get(_index + 2) & 0xff) << 16 | (get(_index + 3) & 0xff) << 24;
+    }
+
+    private long getLong(int _index) {
+        return (getInt(_index) & 0xffffffffL) | ((long) getInt(_index + 4)) << 32;
+    }
+
+    /**
+     * @return the wrapped array, or null if a direct buffer is wrapped
+     */
+    public byte[] array() {
+        return array;
+    }
+
+    /**
+     * @return the wrapped direct buffer, or null if an array is wrapped
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte mhdr() {
+        return (byte) mhdr;
+    }
+
+    public MType mType() {
+        return MType.of(mhdr);
+    }
+
+    public boolean isDataFrame() {
+        int mType = mhdr >> 5;
+        return mType >= 0x02 && mType <= 0x05;
+    }
+
+    public int devAddr() {
+        checkDataFrame();
+        return getInt(offset + 1);
+    }
+
+    public byte fCtrl() {
+        checkDataFrame();
+        return get(offset + 5);
+    }
+
+    public int fCnt16() {
+        checkDataFrame();
+        return getShort(offset + 6);
+    }
+
+    public int fOptsOffset() {
+        checkDataFrame();
+        return offset + 8;
+    }
+
+    public int fOptsLen() {
+        return fOptsLength;
+    }
+
+    public boolean hasFPort() {
+        return fPortOffset >= 0;
+    }
+
+    /**
+     * @return the FPort, or -1 if the frame does not carry one
+     */
+    public int fPort() {
+        return fPortOffset < 0 ? -1 : get(fPortOffset) & 0xff;
+    }
+
+    /**
+     * @return the offset of the FRMPayload for data frames, of the
+     * join request/accept fields for join frames
+     */
+    public int payloadOffset() {
+        return payloadOffset;
+    }
+
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    public int micOffset() {
+        return offset + length - 4;
+    }
+
+    public int mic() {
+        return getInt(micOffset());
+    }
+
+    public long appEUI() {
+        checkJoinRequest();
+        return getLong(offset + 1);
+    }
+
+    public long devEUI() {
+        checkJoinRequest();
+        return getLong(offset + 9);
+    }
+
+    public int devNonce() {
+        checkJoinRequest();
+        return getShort(offset + 17);
+    }
+
+    /**
+     * Checks the MIC of the wrapped data frame or join request.
+     *
+     * @param _key the NwkSKey for data frames, the AppKey for join requests
+     * @return true if the received MIC matches
+     */
+    public boolean verifyMic(byte[] _key) {
+        return verifyMic(_key, isDataFrame() ? fCnt16() : 0);
+    }
+
+    /**
+     * Checks the MIC of the wrapped data frame using the full frame counter
+     * of the session.
+     *
+     * @param _key the NwkSKey
+     * @param _fCnt the 32 bits FCnt, whose 16 LSB must match the frame.
+     * Ignored for join requests.
+     * @return true if the received MIC matches
+     */
+    public boolean verifyMic(byte[] _key, int _fCnt) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        FrameEvent event = FrameEvents.beginMic();
+        CryptoContext context = CryptoContextCache.shared().get(_key);
+        MType mType = MType.of(mhdr);
+        int computed;
+        if (mType == MType.JOIN_REQUEST) {
+            computed = array != null ? context.mic(array, offset, length - 4) : context.mic(buffer, offset, length - 4);
+        } else if (isDataFrame()) {
+            if ((_fCnt & 0xffff) != fCnt16()) {
+                throw new IllegalArgumentException("FCnt does not match the frame");
+            }
+            int devAddr = devAddr();
+            computed = array != null
+                    ? context.dataMic(mType.getDirection(), devAddr, _fCnt, array, offset, length - 4)
+                    : context.dataMic(mType.getDirection(), devAddr, _fCnt, buffer, offset, length - 4);
+        } else {
+            throw new IllegalStateException("Can not verify the MIC of mType " + mType);
+        }
+        boolean valid = (computed ^ mic()) == 0;
+        if (Metrics.ENABLED) {
+            Metrics.record(Metrics.Stage.MIC, mType, start);
+            if (!valid) {
+                Metrics.micFailed(mType);
+            }
+        }
+        if (event != null) {
+            FrameEvents.end(event, mType, isDataFrame() ? devAddr() : 0, length, valid ? FrameEvents.OK : FrameEvents.MIC_FAILED);
+        }
+        return valid;
+    }
+
+    private void checkDataFrame() {
+        if (!isDataFrame()) {
+            throw new IllegalStateException("Not a data frame: " + mType());
+        }
+    }
+
+    private void checkJoinRequest() {
+        if (MType.of(mhdr) != MType.JOIN_REQUEST) {
+            throw new IllegalStateException("Not a join request: " + mType());
+        }
+    }
+}
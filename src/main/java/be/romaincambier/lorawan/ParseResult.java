@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+/**
+ * Reusable holder of the outcome of
+ * {@link PhyPayload#tryParse(java.nio.ByteBuffer, ParseResult)}. Not
+ * thread-safe.
+ *
+ * @author Romain Cambier
+ */
+public final class ParseResult {
+
+    final PacketView view = new PacketView();
+    private ParseStatus status;
+    private PhyPayload phy;
+
+    ParseResult set(ParseStatus _status, PhyPayload _phy) {
+        status = _status;
+        phy = _phy;
+        return this;
+    }
+
+    public boolean isOk() {
+        return status == ParseStatus.OK;
+    }
+
+    public ParseStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the parsed frame, null if the status is not OK
+     */
+    public PhyPayload getPhyPayload() {
+        return phy;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Outcome of the structural checks done while parsing a frame, returned by
+ * the non-throwing {@link PhyPayload#tryParse(ByteBuffer, ParseResult)} and
+ * {@link PacketView#tryWrap(byte[], int, int)}.
+ * <p>
+ * When the system property {@code lorawan.stacklessExceptions} is set, the
+ * throwing parse methods also stop building stack traces: they throw one
+ * preallocated {@link MalformedPacketException} per status.
+ *
+ * @author Romain Cambier
+ */
+public enum ParseStatus {
+
+    OK(null),
+    TRUNCATED_MHDR("can not read mhdr"),
+    TRUNCATED_JOIN_REQUEST("could not read joinRequestPayload"),
+    /**
+     * Join request followed by bytes after its MIC.
+     */
+    JOIN_REQUEST_TOO_LONG("joinRequest longer than 23 bytes"),
+    TRUNCATED_JOIN_ACCEPT("could not read joinAcceptPayload"),
+    TRUNCATED_FHDR("can not read fhdr"),
+    BAD_FOPTS_LEN("can not read fOpts"),
+    NO_MIC("can not read mic"),
+    /**
+     * RFU or proprietary frame without a registered parser.
+     */
+    UNKNOWN_MTYPE("unknown mType"),
+    UNKNOWN_MAJOR_VERSION("Unknown major version"),
+    /**
+     * Rejected by a registered RFU or proprietary parser.
+     */
+    MALFORMED_PAYLOAD("malformed payload");
+
+    public static final boolean STACKLESS = Boolean.getBoolean("lorawan.stacklessExceptions");
+
+    private final String message;
+    private final MalformedPacketException shared;
+
+    private ParseStatus(String _message) {
+        message = _message;
+        shared = _message == null ? null : new MalformedPacketException(_message, this, false);
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the exception to throw for this failure: a preallocated
+     * stackless instance in stackless mode, a new one otherwise
+     */
+    public MalformedPacketException exception() {
+        if (this == OK) {
+            throw new IllegalStateException("Not a failure");
+        }
+        return STACKLESS ? shared : new MalformedPacketException(message, this, true);
+    }
+}
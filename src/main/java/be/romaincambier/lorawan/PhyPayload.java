@@ -24,7 +24,9 @@
 package be.romaincambier.lorawan;
 
 import be.romaincambier.lorawan.exceptions.MalformedPacketException;
-import java.lang.reflect.InvocationTargetException;
+import be.romaincambier.lorawan.jfr.FrameEvent;
+import be.romaincambier.lorawan.jfr.FrameEvents;
+import be.romaincambier.lorawan.metrics.Metrics;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.InvalidKeyException;
@@ -42,29 +44,107 @@ public class PhyPayload implements Binarizable {
     private final MHDR mhdr;
     private final Message message;
     private final byte[] mic;
+    private final byte[] raw;
     private byte[] appKey;
 
     private PhyPayload(ByteBuffer _raw) throws MalformedPacketException {
         _raw.order(ByteOrder.LITTLE_ENDIAN);
+        int offset = _raw.position();
         if (_raw.remaining() < 1) {
-            throw new MalformedPacketException("can not read mhdr");
+            throw ParseStatus.TRUNCATED_MHDR.exception();
         }
         mhdr = new MHDR(this, _raw);
-        Class<? extends Message> mapper = mhdr.getMType().getMapper();
-        try {
-            message = mapper.getDeclaredConstructor(PhyPayload.class, ByteBuffer.class).newInstance(this, _raw);
-        } catch (NoSuchMethodException | SecurityException | InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
-            throw new RuntimeException("Could not create Message", ex);
+        Message.Parser parser = mhdr.getMType().parser();
+        if (parser == null) {
+            throw ParseStatus.UNKNOWN_MTYPE.exception();
         }
+        message = parser.parse(this, _raw);
         if (_raw.remaining() < 4) {
-            throw new MalformedPacketException("can not read mic");
+            throw ParseStatus.NO_MIC.exception();
         }
         mic = new byte[4];
         _raw.get(mic);
+        //copied, the received buffer may be reused once parsed
+        raw = new byte[_raw.position() - offset];
+        ByteBuffer bytes = _raw.duplicate();
+        bytes.position(offset);
+        bytes.get(raw);
     }
 
     public static PhyPayload parse(ByteBuffer _raw) throws MalformedPacketException {
-        return new PhyPayload(_raw);
+        FrameEvent event = FrameEvents.beginParse();
+        if (!Metrics.ENABLED && event == null) {
+            return new PhyPayload(_raw);
+        }
+        long start = System.nanoTime();
+        int length = _raw.remaining();
+        PhyPayload phy;
+        try {
+            phy = new PhyPayload(_raw);
+        } catch (MalformedPacketException ex) {
+            if (Metrics.ENABLED && ex.getStatus() == null) {
+                Metrics.failure(ex.getMessage());
+            }
+            parsed(event, start, length, ex.getStatus(), null);
+            throw ex;
+        }
+        parsed(event, start, length, ParseStatus.OK, phy);
+        return phy;
+    }
+
+    public static ParseResult tryParse(ByteBuffer _raw) {
+        return tryParse(_raw, new ParseResult());
+    }
+
+    /**
+     * Parses a frame without throwing on malformed input. The structure of
+     * the frame is checked before anything is allocated, so rejecting noise
+     * costs a few bound checks. On success the buffer is advanced past the
+     * frame, otherwise its position is unchanged.
+     *
+     * @param _raw the frame
+     * @param _result the holder to fill, reusable across calls
+     * @return _result
+     */
+    public static ParseResult tryParse(ByteBuffer _raw, ParseResult _result) {
+        FrameEvent event = FrameEvents.beginParse();
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        int position = _raw.position();
+        int length = _raw.remaining();
+        ParseStatus status = _result.view.scan(_raw);
+        if (status != ParseStatus.TRUNCATED_MHDR && _result.view.mType().parser() == null) {
+            status = ParseStatus.UNKNOWN_MTYPE;
+        }
+        PhyPayload phy = null;
+        if (status == ParseStatus.OK) {
+            try {
+                phy = new PhyPayload(_raw);
+            } catch (MalformedPacketException ex) {
+                status = ex.getStatus() != null ? ex.getStatus() : ParseStatus.MALFORMED_PAYLOAD;
+                _raw.position(position);
+            }
+        }
+        if (Metrics.ENABLED || event != null) {
+            parsed(event, start, length, status, phy);
+        }
+        return _result.set(status, phy);
+    }
+
+    private static void parsed(FrameEvent _event, long _start, int _length, ParseStatus _status, PhyPayload _phy) {
+        if (Metrics.ENABLED) {
+            if (_phy != null) {
+                Metrics.record(Metrics.Stage.PARSE, _phy.mType(), _start);
+            } else if (_status != null) {
+                Metrics.failure(_status);
+            }
+        }
+        if (_event != null) {
+            if (_phy != null) {
+                FrameEvents.end(_event, _phy.mType(), _phy.devAddr(), _phy.raw.length, FrameEvents.OK);
+            } else {
+                FrameEvents.end(_event, null, 0, _length, _status != null ? _status.name() : FrameEvents.MALFORMED);
+            }
+        }
     }
 
     @Override
@@ -75,6 +155,85 @@ public class PhyPayload implements Binarizable {
         _bb.put(mic);
     }
 
+    /**
+     * Checks the MIC of a data frame or join request against the bytes the
+     * frame was parsed from, without re-serializing it.
+     *
+     * @param _key the NwkSKey for data frames, the AppKey for join requests
+     * @return true if the received MIC matches
+     * @throws MalformedPacketException if the frame can not be serialized
+     */
+    public boolean verifyMic(byte[] _key) throws MalformedPacketException {
+        return verifyMic(_key, message instanceof MACPayload ? ((MACPayload) message).getFhdr().getfCnt() & 0xffff : 0);
+    }
+
+    /**
+     * Checks the MIC of a data frame using the full frame counter of the
+     * session.
+     *
+     * @param _key the NwkSKey
+     * @param _fCnt the 32 bits FCnt, whose 16 LSB must match the frame.
+     * Ignored for join requests.
+     * @return true if the received MIC matches
+     * @throws MalformedPacketException if the frame can not be serialized
+     */
+    public boolean verifyMic(byte[] _key, int _fCnt) throws MalformedPacketException {
+        return verifyMic(CryptoContextCache.shared().get(_key), _fCnt);
+    }
+
+    boolean verifyMic(CryptoContext _context, int _fCnt) throws MalformedPacketException {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        FrameEvent event = FrameEvents.beginMic();
+        byte[] bytes = raw;
+        if (bytes == null) {
+            ByteBuffer bb = ByteBuffer.allocate(length());
+            binarize(bb);
+            bytes = bb.array();
+        }
+        int len = bytes.length;
+        MType mType = mhdr.getMType();
+        int computed;
+        switch (mType) {
+            case JOIN_REQUEST:
+                computed = _context.mic(bytes, 0, len - 4);
+                break;
+            case UNCONF_DATA_UP:
+            case UNCONF_DATA_DOWN:
+            case CONF_DATA_UP:
+            case CONF_DATA_DOWN:
+                if ((short) _fCnt != ((MACPayload) message).getFhdr().getfCnt()) {
+                    throw new IllegalArgumentException("FCnt does not match the frame");
+                }
+                computed = _context.dataMic(mType.getDirection(), getInt(bytes, 1), _fCnt, bytes, 0, len - 4);
+                break;
+            default:
+                throw new IllegalStateException("Can not verify the MIC of mType " + mType);
+        }
+        boolean valid = (computed ^ getInt(bytes, len - 4)) == 0;
+        if (Metrics.ENABLED) {
+            Metrics.record(Metrics.Stage.MIC, mType, start);
+            if (!valid) {
+                Metrics.micFailed(mType);
+            }
+        }
+        if (event != null) {
+            FrameEvents.end(event, mType, devAddr(), len, valid ? FrameEvents.OK : FrameEvents.MIC_FAILED);
+        }
+        return valid;
+    }
+
+    private MType mType() {
+        return MType.of(raw[0]);
+    }
+
+    private int devAddr() {
+        return message instanceof MACPayload ? ((MACPayload) message).getFhdr().getDevAddrInt() : 0;
+    }
+
+    private static int getInt(byte[] _bytes, int _index) {
+        return (_bytes[_index] & 0xff) | (_bytes[_index + 1] & 0xff) << 8 | (_bytes[_index + 2] & 0xff) << 16 | (_bytes[_index + 3] & 0xff) << 24;
+    }
+
     public MHDR getMHDR() {
         return mhdr;
     }
@@ -111,6 +270,7 @@ public class PhyPayload implements Binarizable {
         if (_macPayload == null) {
             throw new IllegalArgumentException("Missing macPayload");
         }
+        raw = null;
         mhdr = _mhdr.build(this);
         message = _macPayload.build(this);
         mic = message.getMic();
@@ -141,7 +301,12 @@ public class PhyPayload implements Binarizable {
                 throw new RuntimeException("This builder has already been used");
             }
             used = true;
-            return new PhyPayload(mhdr, macPayload);
+            FrameEvent event = FrameEvents.beginEncode();
+            PhyPayload phy = new PhyPayload(mhdr, macPayload);
+            if (event != null) {
+                FrameEvents.end(event, phy.mhdr.getMType(), phy.devAddr(), phy.length(), FrameEvents.OK);
+            }
+            return phy;
         }
 
     }
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+/**
+ * The NwkSKey and AppSKey of a device session, with the last FCnt received
+ * in it.
+ *
+ * @author Romain Cambier
+ */
+public final class SessionKeys {
+
+    private final byte[] nwkSKey;
+    private final byte[] appSKey;
+    private final long lastFCnt;
+
+    public SessionKeys(byte[] _nwkSKey, byte[] _appSKey) {
+        this(_nwkSKey, _appSKey, -1);
+    }
+
+    /**
+     * @param _nwkSKey the NwkSKey
+     * @param _appSKey the AppSKey
+     * @param _lastFCnt the last 32 bits FCnt received in the session, or -1
+     * if none was received yet
+     */
+    public SessionKeys(byte[] _nwkSKey, byte[] _appSKey, long _lastFCnt) {
+        if (_nwkSKey == null) {
+            throw new IllegalArgumentException("Missing nwkSKey");
+        }
+        if (_nwkSKey.length != 16) {
+            throw new IllegalArgumentException("Invalid nwkSKey");
+        }
+        if (_appSKey == null) {
+            throw new IllegalArgumentException("Missing appSKey");
+        }
+        if (_appSKey.length != 16) {
+            throw new IllegalArgumentException("Invalid appSKey");
+        }
+        if (_lastFCnt < -1 || _lastFCnt > 0xffffffffL) {
+            throw new IllegalArgumentException("Invalid lastFCnt");
+        }
+        nwkSKey = _nwkSKey;
+        appSKey = _appSKey;
+        lastFCnt = _lastFCnt;
+    }
+
+    public byte[] getNwkSKey() {
+        return nwkSKey;
+    }
+
+    public byte[] getAppSKey() {
+        return appSKey;
+    }
+
+    /**
+     * @return the last 32 bits FCnt of the session, or -1
+     */
+    public long getLastFCnt() {
+        return lastFCnt;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replays the frames of a capture directory written by a
+ * {@link CaptureWriter}.
+ * <p>
+ * Segments are memory-mapped and frames are handed to the visitor as
+ * read-only views of the mapping, ready for
+ * {@link be.romaincambier.lorawan.PhyPayload#parse(ByteBuffer)} or
+ * {@link be.romaincambier.lorawan.PacketView#wrap(ByteBuffer)} without any
+ * copy. Selective replays use the index of each segment to skip the
+ * segments and blocks outside the time range or without frames of the
+ * DevAddr. Segments without index, such as the one being written or one
+ * left by a crash, are scanned entirely, and a truncated last record is
+ * ignored. Indexes are mapped once and kept. Replays may run concurrently.
+ *
+ * @author Romain Cambier
+ */
+public final class CaptureReader {
+
+    public static interface Visitor {
+
+        /**
+         * @param _receivedAt the reception time, in milliseconds since the
+         * epoch
+         * @param _gatewayEui the gateway which received the frame
+         * @param _frame the raw frame between its position and limit, only
+         * valid during the call
+         * @return false to stop the replay
+         */
+        public boolean visit(long _receivedAt, long _gatewayEui, ByteBuffer _frame);
+    }
+
+    private final Path directory;
+    private final ConcurrentHashMap<Long, SegmentIndex> indexes = new ConcurrentHashMap<>();
+
+    public CaptureReader(Path _directory) {
+        if (_directory == null) {
+            throw new IllegalArgumentException("Missing directory");
+        }
+        directory = _directory;
+    }
+
+    /**
+     * Replays every frame, in the order they were appended.
+     *
+     * @param _visitor receives the frames
+     * @return the number of visited frames
+     * @throws IOException if a segment can not be read
+     */
+    public long replay(Visitor _visitor) throws IOException {
+        return replay(Long.MIN_VALUE, Long.MAX_VALUE, _visitor);
+    }
+
+    /**
+     * @param _from the inclusive start of the time range, in milliseconds
+     * since the epoch
+     * @param _to the exclusive end of the time range
+     * @param _visitor receives the frames
+     * @return the number of visited frames
+     * @throws IOException if a segment can not be read
+     */
+    public long replay(long _from, long _to, Visitor _visitor) throws IOException {
+        return new Replay(false, 0, _from, _to, _visitor).run();
+    }
+
+    /**
+     * Replays the data frames of one DevAddr.
+     *
+     * @param _devAddr DevAddr as read little-endian from a frame
+     * @param _from the inclusive start of the time range, in milliseconds
+     * since the epoch
+     * @param _to the exclusive end of the time range
+     * @param _visitor receives the frames
+     * @return the number of visited frames
+     * @throws IOException if a segment can not be read
+     */
+    public long replay(int _devAddr, long _from, long _to, Visitor _visitor) throws IOException {
+        return new Replay(true, _devAddr, _from, _to, _visitor).run();
+    }
+
+    /**
+     * @return the numbers of the segments, in ascending order
+     * @throws IOException if the directory can not be listed
+     */
+    public List<Long> segments() throws IOException {
+        return segments(directory);
+    }
+
+    static List<Long> segments(Path _directory) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(_directory, "*.seg")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    numbers.add(Long.parseUnsignedLong(name.substring(0, name.length() - 4), 16));
+                } catch (NumberFormatException ex) {
+                    //not a segment
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    static long nextSegment(Path _directory) throws IOException {
+        List<Long> numbers = segments(_directory);
+        return numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1) + 1;
+    }
+
+    static Path segmentPath(Path _directory, long _number) {
+        return _directory.resolve(String.format("%016x.seg", _number));
+    }
+
+    static Path indexPath(Path _directory, long _number) {
+        return _directory.resolve(String.format("%016x.idx", _number));
+    }
+
+    private SegmentIndex index(long _number) throws IOException {
+        SegmentIndex index = indexes.get(_number);
+        if (index == null) {
+            Path path = indexPath(directory, _number);
+            index = Files.exists(path) ? SegmentIndex.read(path) : null;
+            if (index != null) {
+                indexes.put(_number, index);
+            }
+        }
+        return index;
+    }
+
+    private final class Replay {
+
+        private final boolean byDevAddr;
+        private final int devAddr;
+        private final long from;
+        private final long to;
+        private final Visitor visitor;
+        private long visited;
+        private boolean stopped;
+
+        private Replay(boolean _byDevAddr, int _devAddr, long _from, long _to, Visitor _visitor) {
+            if (_visitor == null) {
+                throw new IllegalArgumentException("Missing visitor");
+            }
+            byDevAddr = _byDevAddr;
+            devAddr = _devAddr;
+            from = _from;
+            to = _to;
+            visitor = _visitor;
+        }
+
+        private long run() throws IOException {
+            for (long number : segments()) {
+                if (stopped) {
+                    break;
+                }
+                SegmentIndex index = index(number);
+                if (index != null && (index.records == 0 || index.maxTime < from || index.minTime >= to)) {
+                    continue;
+                }
+                long blocks = index == null || !byDevAddr ? -1L : index.blocksOf(devAddr);
+                if (blocks != 0) {
+                    replay(segmentPath(directory, number), index, blocks);
+                }
+            }
+            return visited;
+        }
+
+        private void replay(Path _segment, SegmentIndex _index, long _blocks) throws IOException {
+            MappedByteBuffer map;
+            try (FileChannel channel = FileChannel.open(_segment, StandardOpenOption.READ)) {
+                if (channel.size() < SegmentIndex.SEGMENT_HEADER) {
+                    return;
+                }
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.getInt(0) != SegmentIndex.SEGMENT_MAGIC || map.getInt(4) != SegmentIndex.VERSION) {
+                throw new IOException("Invalid segment " + _segment);
+            }
+            ByteBuffer frame = map.duplicate();
+            if (_index == null) {
+                scan(map, frame, SegmentIndex.SEGMENT_HEADER, map.capacity());
+                return;
+            }
+            for (int block = 0; block < SegmentIndex.BLOCKS && !stopped; block++) {
+                long first = _index.firstRecords[block];
+                if ((_blocks & 1L << block) == 0 || first == SegmentIndex.NO_BLOCK || _index.maxTimes[block] < from || _index.minTimes[block] >= to) {
+                    continue;
+                }
+                long end = _index.end;
+                for (int next = block + 1; next < SegmentIndex.BLOCKS; next++) {
+                    if (_index.firstRecords[next] != SegmentIndex.NO_BLOCK) {
+                        end = _index.firstRecords[next];
+                        break;
+                    }
+                }
+                scan(map, frame, (int) first, (int) Math.min(end, map.capacity()));
+            }
+        }
+
+        private void scan(ByteBuffer _map, ByteBuffer _frame, int _start, int _end) {
+            int position = _start;
+            while (position <= _end - SegmentIndex.RECORD_HEADER && !stopped) {
+                int length = _map.getInt(position);
+                int offset = position + SegmentIndex.RECORD_HEADER;
+                if (length < 1 || length > _map.capacity() - offset) {
+                    return;
+                }
+                long receivedAt = _map.getLong(position + 4);
+                position = offset + length;
+                if (receivedAt < from || receivedAt >= to) {
+                    continue;
+                }
+                if (byDevAddr && !matches(_map, offset, length)) {
+                    continue;
+                }
+                _frame.limit(offset + length).position(offset);
+                visited++;
+                if (!visitor.visit(receivedAt, _map.getLong(offset - 8), _frame)) {
+                    stopped = true;
+                }
+            }
+        }
+
+        private boolean matches(ByteBuffer _map, int _offset, int _length) {
+            int mType = (_map.get(_offset) >> 5) & 0x07;
+            return mType >= 0x02 && mType <= 0x05 && _length >= 5 && _map.getInt(_offset + 1) == devAddr;
+        }
+    }
+}
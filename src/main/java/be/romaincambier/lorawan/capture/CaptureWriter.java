@@ -0,0 +1,384 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends raw frames to a capture directory, see {@link SegmentIndex} for
+ * the format.
+ * <p>
+ * Records are gathered in a memory buffer, written to the current segment
+ * when the buffer is full, and made durable by group commits: a single
+ * {@link FileChannel#force(boolean)} covers every record appended before
+ * it, while appends continue. Commits run every commit interval on a
+ * daemon thread, and on demand through {@link #sync(long)}. When a segment
+ * reaches its size, it is closed, its index is written, and a new segment
+ * is started. A writer never appends to the segments of a previous run.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @author Romain Cambier
+ */
+public final class CaptureWriter implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+    public static final long DEFAULT_COMMIT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long commitInterval;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Object commitLock = new Object();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final Thread committer;
+
+    private long segmentNumber;
+    private FileChannel channel;
+    private SegmentIndex index;
+    private long position;
+    private long appended;
+    private IOException failure;
+    private final AtomicLong durable = new AtomicLong();
+    private volatile boolean closed;
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder segments = new LongAdder();
+
+    public CaptureWriter(Path _directory) throws IOException {
+        this(_directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * @param _directory the capture directory, created if needed
+     * @param _segmentSize maximum size of a segment, in bytes
+     * @param _commitInterval nanoseconds between two background commits, 0
+     * to only commit on {@link #sync(long)} and {@link #close()}
+     * @throws IOException if the first segment can not be created
+     */
+    public CaptureWriter(Path _directory, int _segmentSize, long _commitInterval) throws IOException {
+        if (_directory == null) {
+            throw new IllegalArgumentException("Missing directory");
+        }
+        if (_segmentSize < SegmentIndex.SEGMENT_HEADER + SegmentIndex.BLOCKS || _segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segmentSize");
+        }
+        if (_commitInterval < 0) {
+            throw new IllegalArgumentException("Invalid commitInterval");
+        }
+        directory = _directory;
+        segmentSize = _segmentSize;
+        commitInterval = _commitInterval;
+        Files.createDirectories(_directory);
+        segmentNumber = CaptureReader.nextSegment(_directory);
+        openSegment();
+        if (_commitInterval > 0) {
+            committer = new Thread(this::run, "capture-committer");
+            committer.setDaemon(true);
+            committer.start();
+        } else {
+            committer = null;
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of a buffer, without modifying its
+     * position.
+     *
+     * @param _receivedAt the reception time, in milliseconds since the epoch
+     * @param _gatewayEui the gateway which received the frame
+     * @param _frame the raw frame
+     * @return the sequence of the record, to pass to {@link #sync(long)}
+     * @throws IOException if the record can not be written
+     */
+    public long append(long _receivedAt, long _gatewayEui, ByteBuffer _frame) throws IOException {
+        int length = _frame.remaining();
+        int offset = _frame.position();
+        if (length < 1 || length > segmentSize - SegmentIndex.SEGMENT_HEADER - SegmentIndex.RECORD_HEADER) {
+            throw new IllegalArgumentException("Invalid frame");
+        }
+        lock.lock();
+        try {
+            prepare(length);
+            buffer.putInt(length).putLong(_receivedAt).putLong(_gatewayEui);
+            if (length > buffer.remaining()) {
+                try {
+                    flushLocked();
+                    writeFully(_frame.duplicate());
+                } catch (IOException ex) {
+                    rollback(ex);
+                    throw ex;
+                }
+            } else {
+                buffer.put(_frame.duplicate());
+            }
+            index.add(position, length, _receivedAt, isDataFrame(_frame.get(offset), length), devAddr(_frame, offset, length));
+            return appended(length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long append(long _receivedAt, long _gatewayEui, byte[] _frame, int _offset, int _length) throws IOException {
+        return append(_receivedAt, _gatewayEui, ByteBuffer.wrap(_frame, _offset, _length));
+    }
+
+    private void prepare(int _length) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (failure != null) {
+            throw new IOException("Segment " + segmentNumber + " could not be rolled back", failure);
+        }
+        long size = SegmentIndex.RECORD_HEADER + (long) _length;
+        if (position + size > segmentSize && position > SegmentIndex.SEGMENT_HEADER) {
+            closeSegment();
+            segmentNumber++;
+            openSegment();
+        }
+        if (buffer.remaining() < SegmentIndex.RECORD_HEADER) {
+            flushLocked();
+        }
+    }
+
+    private long appended(int _length) {
+        position += SegmentIndex.RECORD_HEADER + _length;
+        records.increment();
+        return ++appended;
+    }
+
+    /**
+     * Drops the partially written record, so that the segment ends at
+     * {@link #position} again: the unwritten bytes are at the head of the
+     * buffer and follow the end of the file.
+     */
+    private void rollback(IOException _cause) {
+        //the channel can not be used while the thread is interrupted
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!channel.isOpen()) {
+                reopenSegment(_cause);
+            }
+            long size = channel.size();
+            if (size > position) {
+                channel.truncate(position);
+                buffer.clear();
+            } else {
+                buffer.position((int) (position - size));
+            }
+        } catch (IOException ex) {
+            _cause.addSuppressed(ex);
+            failure = _cause;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static boolean isDataFrame(byte _mhdr, int _length) {
+        int mType = (_mhdr >> 5) & 0x07;
+        return mType >= 0x02 && mType <= 0x05 && _length >= 5;
+    }
+
+    private static int devAddr(ByteBuffer _frame, int _offset, int _length) {
+        if (_length < 5) {
+            return 0;
+        }
+        return (_frame.get(_offset + 1) & 0xff) | (_frame.get(_offset + 2) & 0xff) << 8 | (_frame.get(_offset + 3) & 0xff) << 16 | (_frame.get(_offset + 4) & 0xff) << 24;
+    }
+
+    private void flushLocked() throws IOException {
+        buffer.flip();
+        try {
+            writeFully(buffer);
+        } finally {
+            //keeps what was not written
+            buffer.compact();
+        }
+    }
+
+    private void writeFully(ByteBuffer _bb) throws IOException {
+        try {
+            while (_bb.hasRemaining()) {
+                channel.write(_bb);
+            }
+        } catch (ClosedByInterruptException ex) {
+            reopenSegment(ex);
+            throw ex;
+        }
+    }
+
+    private void openSegment() throws IOException {
+        channel = FileChannel.open(CaptureReader.segmentPath(directory, segmentNumber), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        index = new SegmentIndex(Math.max(1, (segmentSize - SegmentIndex.SEGMENT_HEADER) / SegmentIndex.BLOCKS));
+        buffer.putInt(SegmentIndex.SEGMENT_MAGIC).putInt(SegmentIndex.VERSION);
+        position = SegmentIndex.SEGMENT_HEADER;
+        segments.increment();
+    }
+
+    // appends are written at the end, so the position of the closed channel is not needed
+    private void reopenSegment(IOException _cause) {
+        try {
+            channel = FileChannel.open(CaptureReader.segmentPath(directory, segmentNumber), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            _cause.addSuppressed(ex);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        flushLocked();
+        channel.force(false);
+        channel.close();
+        durable.accumulateAndGet(appended, Math::max);
+        index.write(CaptureReader.indexPath(directory, segmentNumber));
+    }
+
+    /**
+     * Makes the records up to the given sequence durable. Concurrent calls
+     * share the same force.
+     *
+     * @param _sequence a sequence returned by an append
+     * @throws IOException if the segment can not be forced, e.g.
+     * {@link java.nio.channels.ClosedByInterruptException} if the calling
+     * thread is interrupted, in which case the records are not durable yet
+     */
+    public void sync(long _sequence) throws IOException {
+        if (durable.get() < _sequence) {
+            commit();
+        }
+    }
+
+    private void commit() throws IOException {
+        synchronized (commitLock) {
+            FileChannel current;
+            long segment;
+            long upTo;
+            lock.lock();
+            try {
+                if (durable.get() >= appended || closed) {
+                    return;
+                }
+                flushLocked();
+                current = channel;
+                segment = segmentNumber;
+                upTo = appended;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                current.force(false);
+            } catch (ClosedChannelException ex) {
+                lock.lock();
+                try {
+                    if (segment == segmentNumber) {
+                        //not rotated: an interrupt of this thread closed the open segment
+                        if (!channel.isOpen()) {
+                            reopenSegment(ex);
+                        }
+                        throw ex;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                //the segment was forced when it was rotated
+            }
+            commits.increment();
+            durable.accumulateAndGet(upTo, Math::max);
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(commitInterval);
+                commit();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (IOException ex) {
+                //retried at the next interval, sync() reports the failure
+            }
+        }
+    }
+
+    /**
+     * @return the sequence of the last record known to be durable
+     */
+    public long getDurableSequence() {
+        return durable.get();
+    }
+
+    public long getRecordCount() {
+        return records.sum();
+    }
+
+    public long getCommitCount() {
+        return commits.sum();
+    }
+
+    public long getSegmentCount() {
+        return segments.sum();
+    }
+
+    /**
+     * Writes the pending records and the index of the current segment.
+     *
+     * @throws IOException if the segment can not be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (commitLock) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                closeSegment();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (committer != null) {
+            committer.interrupt();
+        }
+    }
+}
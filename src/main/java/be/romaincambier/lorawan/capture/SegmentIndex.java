@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Layout of the capture files, all little-endian.
+ * <p>
+ * A segment ({@code <n>.seg}) is a header followed by records:
+ * <pre>
+ * segment: magic(4) version(4) record*
+ * record:  length(4) receivedAt(8) gatewayEui(8) frame(length)
+ * </pre>
+ * Its sparse index ({@code <n>.idx}) is written when the segment is
+ * closed. The segment is split in {@link #BLOCKS} blocks of equal size, a
+ * record belonging to the block where it starts. The index holds the time
+ * range and first record of each block, and for each DevAddr seen in the
+ * segment a 64 bits mask of the blocks holding its frames:
+ * <pre>
+ * index:   magic(4) version(4) records(8) minTime(8) maxTime(8) end(8)
+ *          blockCount(4) block* devAddrCount(4) devAddr*
+ * block:   firstRecord(8) minTime(8) maxTime(8)
+ * devAddr: devAddr(4) blockMask(8), sorted by devAddr
+ * </pre>
+ *
+ * @author Romain Cambier
+ */
+final class SegmentIndex {
+
+    static final int SEGMENT_MAGIC = 0x4c574353;
+    static final int INDEX_MAGIC = 0x4c574349;
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER = 8;
+    static final int RECORD_HEADER = 20;
+    static final int BLOCKS = 64;
+    static final int NO_BLOCK = -1;
+
+    final int blockSize;
+    long records;
+    long minTime = Long.MAX_VALUE;
+    long maxTime = Long.MIN_VALUE;
+    long end = SEGMENT_HEADER;
+    final long[] firstRecords = new long[BLOCKS];
+    final long[] minTimes = new long[BLOCKS];
+    final long[] maxTimes = new long[BLOCKS];
+    int[] devAddrs;
+    long[] masks;
+    private boolean[] used;
+    int devAddrCount;
+    private ByteBuffer entries;
+
+    SegmentIndex(int _blockSize) {
+        blockSize = _blockSize;
+        Arrays.fill(firstRecords, NO_BLOCK);
+        Arrays.fill(minTimes, Long.MAX_VALUE);
+        Arrays.fill(maxTimes, Long.MIN_VALUE);
+        if (_blockSize > 0) {
+            devAddrs = new int[1024];
+            masks = new long[1024];
+            used = new boolean[1024];
+        }
+    }
+
+    /**
+     * Adds a record starting at the given position of the segment.
+     */
+    void add(long _position, int _length, long _receivedAt, boolean _hasDevAddr, int _devAddr) {
+        int block = block(_position);
+        if (firstRecords[block] == NO_BLOCK) {
+            firstRecords[block] = _position;
+        }
+        minTimes[block] = Math.min(minTimes[block], _receivedAt);
+        maxTimes[block] = Math.max(maxTimes[block], _receivedAt);
+        minTime = Math.min(minTime, _receivedAt);
+        maxTime = Math.max(maxTime, _receivedAt);
+        records++;
+        end = _position + RECORD_HEADER + _length;
+        if (_hasDevAddr) {
+            int slot = slot(_devAddr);
+            if (!used[slot]) {
+                used[slot] = true;
+                devAddrs[slot] = _devAddr;
+                if (++devAddrCount * 2 > used.length) {
+                    grow();
+                    slot = slot(_devAddr);
+                }
+            }
+            masks[slot] |= 1L << block;
+        }
+    }
+
+    int block(long _position) {
+        return (int) Math.min((_position - SEGMENT_HEADER) / blockSize, BLOCKS - 1);
+    }
+
+    private int slot(int _devAddr) {
+        int mask = used.length - 1;
+        // the top bits of the product are the best mixed ones
+        int slot = (_devAddr * 0x9e3779b9 >>> Integer.numberOfLeadingZeros(mask)) & mask;
+        while (used[slot] && devAddrs[slot] != _devAddr) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldDevAddrs = devAddrs;
+        long[] oldMasks = masks;
+        boolean[] oldUsed = used;
+        devAddrs = new int[oldUsed.length * 2];
+        masks = new long[oldUsed.length * 2];
+        used = new boolean[oldUsed.length * 2];
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                int slot = slot(oldDevAddrs[i]);
+                used[slot] = true;
+                devAddrs[slot] = oldDevAddrs[i];
+                masks[slot] = oldMasks[i];
+            }
+        }
+    }
+
+    void write(Path _path) throws IOException {
+        long[] entries = new long[devAddrCount];
+        int count = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                entries[count++] = (long) devAddrs[i] << 32 | i;
+            }
+        }
+        Arrays.sort(entries);
+        ByteBuffer bb = ByteBuffer.allocate(44 + BLOCKS * 24 + 4 + count * 12).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(INDEX_MAGIC).putInt(VERSION);
+        bb.putLong(records).putLong(minTime).putLong(maxTime).putLong(end);
+        bb.putInt(BLOCKS);
+        for (int i = 0; i < BLOCKS; i++) {
+            bb.putLong(firstRecords[i]).putLong(minTimes[i]).putLong(maxTimes[i]);
+        }
+        bb.putInt(count);
+        for (long entry : entries) {
+            bb.putInt((int) (entry >> 32)).putLong(masks[(int) entry]);
+        }
+        bb.flip();
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Maps an index file. Its DevAddr entries are searched in place, not
+     * copied on the heap.
+     *
+     * @return the index, or null if the file is not a valid index
+     */
+    static SegmentIndex read(Path _path) throws IOException {
+        ByteBuffer bb;
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (bb.remaining() < 44 || bb.getInt() != INDEX_MAGIC || bb.getInt() != VERSION) {
+            return null;
+        }
+        SegmentIndex index = new SegmentIndex(0);
+        index.records = bb.getLong();
+        index.minTime = bb.getLong();
+        index.maxTime = bb.getLong();
+        index.end = bb.getLong();
+        if (bb.getInt() != BLOCKS || bb.remaining() < BLOCKS * 24 + 4) {
+            return null;
+        }
+        for (int i = 0; i < BLOCKS; i++) {
+            index.firstRecords[i] = bb.getLong();
+            index.minTimes[i] = bb.getLong();
+            index.maxTimes[i] = bb.getLong();
+        }
+        int count = bb.getInt();
+        if (count < 0 || bb.remaining() < count * 12L) {
+            return null;
+        }
+        index.devAddrCount = count;
+        index.entries = bb.slice().order(ByteOrder.LITTLE_ENDIAN);
+        return index;
+    }
+
+    /**
+     * Only valid on an index returned by {@link #read(Path)}.
+     *
+     * @return the blocks holding frames of the DevAddr
+     */
+    long blocksOf(int _devAddr) {
+        int low = 0;
+        int high = devAddrCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = entries.getInt(middle * 12);
+            if (value < _devAddr) {
+                low = middle + 1;
+            } else if (value > _devAddr) {
+                high = middle - 1;
+            } else {
+                return entries.getLong(middle * 12 + 4);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.dedup;
+
+import be.romaincambier.lorawan.MACPayload;
+import be.romaincambier.lorawan.PhyPayload;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Merges the copies of an uplink received by several gateways into a single
+ * {@link UplinkEvent}, keyed by (DevAddr, FCnt, MIC).
+ * <p>
+ * An event stays open for a fixed window after its first copy, then
+ * {@link #expire(long)} hands it to the sink. The table is split
+ * in independently locked stripes and never holds more than maxEntries
+ * events: when a stripe is full its oldest event is handed to the sink
+ * early. Each open event costs about 100 bytes plus 16 bytes per recorded
+ * gateway, on top of its parsed payload.
+ *
+ * @author Romain Cambier
+ */
+public final class Deduplicator {
+
+    public static final int DEFAULT_MAX_GATEWAYS = 8;
+
+    private final Stripe[] stripes;
+    private final long window;
+    private final int maxGateways;
+    private final Consumer<UplinkEvent> sink;
+    private final LongAdder unique = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    public Deduplicator(long _window, int _maxEntries, Consumer<UplinkEvent> _sink) {
+        this(_window, _maxEntries, DEFAULT_MAX_GATEWAYS, _sink);
+    }
+
+    /**
+     * @param _window how long an event stays open after its first copy, in
+     * the unit of the timestamps given to {@link #offer}
+     * @param _maxEntries maximum number of open events
+     * @param _maxGateways maximum number of gateways recorded per event
+     * @param _sink receives the events once closed
+     */
+    public Deduplicator(long _window, int _maxEntries, int _maxGateways, Consumer<UplinkEvent> _sink) {
+        if (_window < 0) {
+            throw new IllegalArgumentException("Invalid window");
+        }
+        if (_maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid maxEntries");
+        }
+        if (_maxGateways < 1) {
+            throw new IllegalArgumentException("Invalid maxGateways");
+        }
+        if (_sink == null) {
+            throw new IllegalArgumentException("Missing sink");
+        }
+        int count = 1;
+        while (count < 64 && count * 256 < _maxEntries) {
+            count <<= 1;
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(Math.max(1, _maxEntries / count));
+        }
+        window = _window;
+        maxGateways = _maxGateways;
+        sink = _sink;
+    }
+
+    /**
+     * Records a copy of a data frame.
+     *
+     * @param _phy the parsed frame
+     * @param _gatewayId the gateway which received it
+     * @param _rssi the RSSI of the copy
+     * @param _snr the SNR of the copy
+     * @param _now the current time
+     * @return the event of the frame. The copy is the first one if
+     * {@link UplinkEvent#getReceptionCount()} is 1.
+     */
+    public UplinkEvent offer(PhyPayload _phy, long _gatewayId, float _rssi, float _snr, long _now) {
+        if (_phy == null) {
+            throw new IllegalArgumentException("Missing phyPayload");
+        }
+        if (!(_phy.getMessage() instanceof MACPayload)) {
+            throw new IllegalArgumentException("Not a data frame");
+        }
+        MACPayload mac = (MACPayload) _phy.getMessage();
+        int devAddr = mac.getFhdr().getDevAddrInt();
+        int fCnt = mac.getFhdr().getfCnt() & 0xffff;
+        byte[] m = _phy.getMic();
+        int mic = (m[0] & 0xff) | (m[1] & 0xff) << 8 | (m[2] & 0xff) << 16 | (m[3] & 0xff) << 24;
+
+        Stripe stripe = stripes[Key.hash(devAddr, fCnt, mic) & (stripes.length - 1)];
+        UplinkEvent event;
+        UplinkEvent evicted = null;
+        boolean created = false;
+        synchronized (stripe) {
+            event = stripe.get(stripe.probe.set(devAddr, fCnt, mic));
+            if (event == null) {
+                if (stripe.size() >= stripe.capacity) {
+                    Iterator<UplinkEvent> eldest = stripe.values().iterator();
+                    evicted = eldest.next();
+                    eldest.remove();
+                }
+                event = new UplinkEvent(_phy, devAddr, fCnt, mic, _now, maxGateways);
+                stripe.put(new Key().set(devAddr, fCnt, mic), event);
+                created = true;
+            }
+            //under the stripe lock, so expire can not hand the event over
+            //before this copy is recorded
+            event.addReception(_gatewayId, _rssi, _snr);
+        }
+        if (created) {
+            unique.increment();
+        } else {
+            duplicates.increment();
+        }
+        if (evicted != null) {
+            overflows.increment();
+            sink.accept(evicted);
+        }
+        return event;
+    }
+
+    /**
+     * Hands every event whose window is over to the sink. To be called
+     * periodically, with non-decreasing timestamps.
+     *
+     * @param _now the current time
+     * @return the number of closed events
+     */
+    public int expire(long _now) {
+        List<UplinkEvent> closed = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<UplinkEvent> it = stripe.values().iterator();
+                while (it.hasNext()) {
+                    UplinkEvent event = it.next();
+                    if (_now - event.getFirstSeen() < window) {
+                        break;
+                    }
+                    it.remove();
+                    closed.add(event);
+                }
+            }
+        }
+        for (UplinkEvent event : closed) {
+            sink.accept(event);
+        }
+        return closed.size();
+    }
+
+    /**
+     * Hands every open event to the sink.
+     *
+     * @return the number of closed events
+     */
+    public int flush() {
+        return expire(Long.MAX_VALUE);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long getUniqueCount() {
+        return unique.sum();
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    /**
+     * @return how many events were closed early because the table was full
+     */
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Stripe extends LinkedHashMap<Key, UplinkEvent> {
+
+        private final int capacity;
+        private final Key probe = new Key();
+
+        private Stripe(int _capacity) {
+            capacity = _capacity;
+        }
+    }
+
+    private static final class Key {
+
+        private int devAddr;
+        private int fCnt;
+        private int mic;
+
+        private Key set(int _devAddr, int _fCnt, int _mic) {
+            devAddr = _devAddr;
+            fCnt = _fCnt;
+            mic = _mic;
+            return this;
+        }
+
+        private static int hash(int _devAddr, int _fCnt, int _mic) {
+            int h = (_devAddr * 0x9E3779B9) ^ (_fCnt * 0x85EBCA6B) ^ _mic;
+            return h ^ (h >>> 16);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(devAddr, fCnt, mic) * 31;
+        }
+
+        @Override
+        public boolean equals(Object _o) {
+            if (!(_o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) _o;
+            return devAddr == other.devAddr && fCnt == other.fCnt && mic == other.mic;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.dedup;
+
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.util.Arrays;
+
+/**
+ * One uplink as received by one or more gateways. The metadata of every
+ * copy is merged into the event, and the MIC is verified once for all of
+ * them.
+ *
+ * @author Romain Cambier
+ */
+public final class UplinkEvent {
+
+    private final PhyPayload phyPayload;
+    private final int devAddr;
+    private final int fCnt;
+    private final int mic;
+    private final long firstSeen;
+    private final long[] gatewayIds;
+    private final float[] rssis;
+    private final float[] snrs;
+    private int receptions;
+    private byte[] micKey;
+    private int micFCnt;
+    private boolean micValid;
+
+    UplinkEvent(PhyPayload _phyPayload, int _devAddr, int _fCnt, int _mic, long _firstSeen, int _maxGateways) {
+        phyPayload = _phyPayload;
+        devAddr = _devAddr;
+        fCnt = _fCnt;
+        mic = _mic;
+        firstSeen = _firstSeen;
+        gatewayIds = new long[_maxGateways];
+        rssis = new float[_maxGateways];
+        snrs = new float[_maxGateways];
+    }
+
+    synchronized void addReception(long _gatewayId, float _rssi, float _snr) {
+        if (receptions < gatewayIds.length) {
+            gatewayIds[receptions] = _gatewayId;
+            rssis[receptions] = _rssi;
+            snrs[receptions] = _snr;
+        }
+        receptions++;
+    }
+
+    /**
+     * Checks the MIC of the first received copy, using the 16 bits FCnt sent
+     * on air. Only valid while the FCnt of the session is below 65536.
+     *
+     * @param _nwkSKey the NwkSKey
+     * @return true if the MIC matches
+     * @throws MalformedPacketException if the frame can not be serialized
+     */
+    public boolean verifyMic(byte[] _nwkSKey) throws MalformedPacketException {
+        return verifyMic(_nwkSKey, fCnt);
+    }
+
+    /**
+     * Checks the MIC of the first received copy using the full frame counter
+     * of the session. The result is kept, so calling this again for a
+     * duplicate with the same key and FCnt costs no crypto.
+     *
+     * @param _nwkSKey the NwkSKey
+     * @param _fCnt the 32 bits FCnt, whose 16 LSB must match the frame
+     * @return true if the MIC matches
+     * @throws MalformedPacketException if the frame can not be serialized
+     */
+    public synchronized boolean verifyMic(byte[] _nwkSKey, int _fCnt) throws MalformedPacketException {
+        if (micKey == null || micFCnt != _fCnt || !Arrays.equals(micKey, _nwkSKey)) {
+            micValid = phyPayload.verifyMic(_nwkSKey, _fCnt);
+            micKey = _nwkSKey.clone();
+            micFCnt = _fCnt;
+        }
+        return micValid;
+    }
+
+    /**
+     * @return the payload of the first received copy
+     */
+    public PhyPayload getPhyPayload() {
+        return phyPayload;
+    }
+
+    public int getDevAddr() {
+        return devAddr;
+    }
+
+    /**
+     * @return the 16 bits FCnt sent on air
+     */
+    public int getfCnt() {
+        return fCnt;
+    }
+
+    /**
+     * @return the MIC, read little-endian
+     */
+    public int getMic() {
+        return mic;
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    /**
+     * @return how many copies were received, possibly more than the number
+     * of recorded gateways
+     */
+    public synchronized int getReceptionCount() {
+        return receptions;
+    }
+
+    /**
+     * @return how many gateways have their metadata recorded
+     */
+    public synchronized int getGatewayCount() {
+        return Math.min(receptions, gatewayIds.length);
+    }
+
+    public synchronized long getGatewayId(int _index) {
+        return gatewayIds[checkIndex(_index)];
+    }
+
+    public synchronized float getRssi(int _index) {
+        return rssis[checkIndex(_index)];
+    }
+
+    public synchronized float getSnr(int _index) {
+        return snrs[checkIndex(_index)];
+    }
+
+    /**
+     * @return the index of the gateway with the best SNR, the one a
+     * downlink should preferably be sent through, or -1 if none is recorded
+     */
+    public synchronized int getBestGateway() {
+        int best = -1;
+        for (int i = 0, count = Math.min(receptions, gatewayIds.length); i < count; i++) {
+            if (best < 0 || snrs[i] > snrs[best] || (snrs[i] == snrs[best] && rssis[i] > rssis[best])) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private int checkIndex(int _index) {
+        if (_index < 0 || _index >= Math.min(receptions, gatewayIds.length)) {
+            throw new IndexOutOfBoundsException("Invalid gateway index " + _index);
+        }
+        return _index;
+    }
+}
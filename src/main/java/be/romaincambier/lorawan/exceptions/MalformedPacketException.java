@@ -23,12 +23,16 @@
  */
 package be.romaincambier.lorawan.exceptions;
 
+import be.romaincambier.lorawan.ParseStatus;
+
 /**
  *
  * @author cambierr
  */
 public class MalformedPacketException extends Exception {
 
+    private ParseStatus status;
+
     /**
      * Creates a new instance of <code>MalformedPacketException</code> without
      * detail message.
@@ -49,4 +53,26 @@ public class MalformedPacketException extends Exception {
     public MalformedPacketException(Exception e) {
         super(e);
     }
+
+    /**
+     * Constructs an instance for a parse failure. Stackless instances are
+     * meant to be preallocated and thrown many times, see
+     * {@link ParseStatus#exception()}.
+     *
+     * @param msg the detail message.
+     * @param status the failure
+     * @param writableStackTrace false for a stackless instance
+     */
+    public MalformedPacketException(String msg, ParseStatus status, boolean writableStackTrace) {
+        super(msg, null, writableStackTrace, writableStackTrace);
+        this.status = status;
+    }
+
+    /**
+     * @return the parse failure, or null if this exception was not thrown
+     * by the frame parser
+     */
+    public ParseStatus getStatus() {
+        return status;
+    }
 }
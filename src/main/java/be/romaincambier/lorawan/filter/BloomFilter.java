@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.filter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of DevAddrs, used to drop frames of devices without a
+ * session. It never answers false for an added DevAddr. Adds and lookups
+ * may run concurrently. Entries can not be removed: build a new filter
+ * periodically from the active sessions instead.
+ *
+ * @author Romain Cambier
+ */
+public final class BloomFilter {
+
+    private static final int MAX_BITS = 1 << 30;
+
+    private final AtomicLongArray bits;
+    private final int mask;
+    private final int hashes;
+
+    /**
+     * @param _expectedInsertions the number of DevAddrs the filter is sized
+     * for
+     * @param _fpp the false positive probability at that size
+     */
+    public BloomFilter(int _expectedInsertions, double _fpp) {
+        if (_expectedInsertions < 1) {
+            throw new IllegalArgumentException("Invalid expectedInsertions");
+        }
+        if (!(_fpp > 0 && _fpp < 1)) {
+            throw new IllegalArgumentException("Invalid fpp");
+        }
+        double optimal = -_expectedInsertions * Math.log(_fpp) / (Math.log(2) * Math.log(2));
+        int size = 64;
+        while (size < optimal && size < MAX_BITS) {
+            size <<= 1;
+        }
+        bits = new AtomicLongArray(size / 64);
+        mask = size - 1;
+        hashes = (int) Math.max(1, Math.min(16, Math.round((double) size / _expectedInsertions * Math.log(2))));
+    }
+
+    /**
+     * @param _devAddr DevAddr as read little-endian from a frame
+     */
+    public void add(int _devAddr) {
+        long hash = mix(_devAddr);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            long flag = 1L << bit;
+            int index = bit >>> 6;
+            long word = bits.get(index);
+            while ((word & flag) == 0 && !bits.compareAndSet(index, word, word | flag)) {
+                word = bits.get(index);
+            }
+        }
+    }
+
+    /**
+     * @param _devAddr DevAddr as read little-endian from a frame
+     * @return false if the DevAddr was never added
+     */
+    public boolean mightContain(int _devAddr) {
+        long hash = mix(_devAddr);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits.get(bit >>> 6) & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getBitCount() {
+        return mask + 1;
+    }
+
+    public int getHashCount() {
+        return hashes;
+    }
+
+    private static long mix(int _value) {
+        long h = _value & 0xffffffffL;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ h >>> 33;
+    }
+}
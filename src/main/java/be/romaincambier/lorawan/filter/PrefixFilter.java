@@ -0,0 +1,290 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.filter;
+
+import be.romaincambier.lorawan.MType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes raw uplinks before they are parsed, by reading only the MHDR and
+ * the DevAddr at their fixed offsets.
+ * <p>
+ * A DevAddr starts with a type prefix (type N is N one bits followed by a
+ * zero) then the NwkID, which is the LSB of the NetID of the network that
+ * assigned it. For each of the 8 types, the NwkIDs of the owned and
+ * roaming-partner NetIDs are compiled in bitmaps, so a lookup is a couple
+ * of shifts and one bit test. Owned DevAddrs can be further checked
+ * against a {@link BloomFilter} of the active sessions.
+ * <p>
+ * Join requests are routed to {@link Route#JOIN}, data uplinks according to
+ * their DevAddr, everything else is dropped. Routing is thread-safe.
+ *
+ * @author Romain Cambier
+ */
+public final class PrefixFilter {
+
+    public static enum Route {
+        LOCAL,
+        JOIN,
+        ROAMING,
+        DROP
+    }
+
+    private static final int[] NWK_ID_BITS = {6, 6, 9, 11, 12, 13, 15, 17};
+
+    private final long[][] local = new long[8][];
+    private final long[][] roaming = new long[8][];
+    private volatile BloomFilter activeDevAddrs;
+
+    private final LongAdder localCount = new LongAdder();
+    private final LongAdder joinCount = new LongAdder();
+    private final LongAdder roamingCount = new LongAdder();
+    private final LongAdder dropCount = new LongAdder();
+
+    private PrefixFilter(Builder _builder) {
+        for (int type = 0; type < 8; type++) {
+            local[type] = _builder.local[type].clone();
+            roaming[type] = _builder.roaming[type].clone();
+        }
+        activeDevAddrs = _builder.activeDevAddrs;
+    }
+
+    /**
+     * Routes the remaining bytes of the buffer, without modifying its
+     * position.
+     *
+     * @param _raw the frame
+     * @return the route
+     */
+    public Route route(ByteBuffer _raw) {
+        int offset = _raw.position();
+        if (_raw.remaining() < 1) {
+            return count(Route.DROP);
+        }
+        int mType = (_raw.get(offset) >> 5) & 0x07;
+        if (mType == MType.JOIN_REQUEST.value()) {
+            return count(Route.JOIN);
+        }
+        if (!isDataUp(mType) || _raw.remaining() < 5) {
+            return count(Route.DROP);
+        }
+        return count(routeDevAddr((_raw.get(offset + 1) & 0xff) | (_raw.get(offset + 2) & 0xff) << 8 | (_raw.get(offset + 3) & 0xff) << 16 | (_raw.get(offset + 4) & 0xff) << 24));
+    }
+
+    public Route route(byte[] _raw, int _offset, int _length) {
+        if (_length < 1) {
+            return count(Route.DROP);
+        }
+        int mType = (_raw[_offset] >> 5) & 0x07;
+        if (mType == MType.JOIN_REQUEST.value()) {
+            return count(Route.JOIN);
+        }
+        if (!isDataUp(mType) || _length < 5) {
+            return count(Route.DROP);
+        }
+        return count(routeDevAddr((_raw[_offset + 1] & 0xff) | (_raw[_offset + 2] & 0xff) << 8 | (_raw[_offset + 3] & 0xff) << 16 | (_raw[_offset + 4] & 0xff) << 24));
+    }
+
+    /**
+     * @param _devAddr DevAddr as read little-endian from a frame
+     * @return {@link Route#LOCAL}, {@link Route#ROAMING} or
+     * {@link Route#DROP}
+     */
+    public Route route(int _devAddr) {
+        return count(routeDevAddr(_devAddr));
+    }
+
+    private Route routeDevAddr(int _devAddr) {
+        int type = devAddrType(_devAddr);
+        if (type < 0) {
+            return Route.DROP;
+        }
+        int bits = NWK_ID_BITS[type];
+        int nwkId = (_devAddr >>> (31 - type - bits)) & ((1 << bits) - 1);
+        if (isSet(local[type], nwkId)) {
+            BloomFilter active = activeDevAddrs;
+            return active == null || active.mightContain(_devAddr) ? Route.LOCAL : Route.DROP;
+        }
+        return isSet(roaming[type], nwkId) ? Route.ROAMING : Route.DROP;
+    }
+
+    private static boolean isDataUp(int _mType) {
+        return _mType == MType.UNCONF_DATA_UP.value() || _mType == MType.CONF_DATA_UP.value();
+    }
+
+    private static boolean isSet(long[] _bitmap, int _index) {
+        return (_bitmap[_index >>> 6] & 1L << _index) != 0;
+    }
+
+    private Route count(Route _route) {
+        switch (_route) {
+            case LOCAL:
+                localCount.increment();
+                break;
+            case JOIN:
+                joinCount.increment();
+                break;
+            case ROAMING:
+                roamingCount.increment();
+                break;
+            default:
+                dropCount.increment();
+                break;
+        }
+        return _route;
+    }
+
+    /**
+     * Replaces the filter of active DevAddrs.
+     *
+     * @param _activeDevAddrs the filter, or null to accept every DevAddr of
+     * an owned NetID
+     */
+    public void setActiveDevAddrs(BloomFilter _activeDevAddrs) {
+        activeDevAddrs = _activeDevAddrs;
+    }
+
+    /**
+     * @param _devAddr DevAddr as read little-endian from a frame
+     * @return the address type, 0 to 7, or -1 for a reserved prefix
+     */
+    public static int devAddrType(int _devAddr) {
+        int type = Integer.numberOfLeadingZeros(~_devAddr);
+        return type < 8 ? type : -1;
+    }
+
+    /**
+     * @param _devAddr DevAddr as read little-endian from a frame, not of a
+     * reserved type
+     * @return the NwkID following the type prefix
+     */
+    public static int nwkId(int _devAddr) {
+        int type = devAddrType(_devAddr);
+        if (type < 0) {
+            throw new IllegalArgumentException("Invalid devAddr");
+        }
+        int bits = NWK_ID_BITS[type];
+        return (_devAddr >>> (31 - type - bits)) & ((1 << bits) - 1);
+    }
+
+    /**
+     * @param _netId the 24 bits NetID
+     * @return its type, 0 to 7
+     */
+    public static int netIdType(int _netId) {
+        checkNetId(_netId);
+        return _netId >>> 21;
+    }
+
+    /**
+     * @param _netId the 24 bits NetID
+     * @return the NwkID carried by the DevAddrs of the network
+     */
+    public static int nwkIdOfNetId(int _netId) {
+        return _netId & ((1 << NWK_ID_BITS[netIdType(_netId)]) - 1);
+    }
+
+    private static void checkNetId(int _netId) {
+        if ((_netId & 0xff000000) != 0) {
+            throw new IllegalArgumentException("Invalid netId");
+        }
+    }
+
+    public long getLocalCount() {
+        return localCount.sum();
+    }
+
+    public long getJoinCount() {
+        return joinCount.sum();
+    }
+
+    public long getRoamingCount() {
+        return roamingCount.sum();
+    }
+
+    public long getDropCount() {
+        return dropCount.sum();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private final long[][] local = new long[8][];
+        private final long[][] roaming = new long[8][];
+        private BloomFilter activeDevAddrs;
+        private boolean used = false;
+
+        private Builder() {
+            for (int type = 0; type < 8; type++) {
+                local[type] = new long[Math.max(1, (1 << NWK_ID_BITS[type]) >>> 6)];
+                roaming[type] = new long[local[type].length];
+            }
+        }
+
+        /**
+         * Routes the DevAddrs of a NetID to {@link Route#LOCAL}. Owned
+         * NetIDs take precedence over roaming ones.
+         *
+         * @param _netId the 24 bits NetID
+         * @return this builder
+         */
+        public Builder addLocalNetId(int _netId) {
+            set(local, _netId);
+            return this;
+        }
+
+        /**
+         * Routes the DevAddrs of a NetID to {@link Route#ROAMING}.
+         *
+         * @param _netId the 24 bits NetID
+         * @return this builder
+         */
+        public Builder addRoamingNetId(int _netId) {
+            set(roaming, _netId);
+            return this;
+        }
+
+        private static void set(long[][] _bitmaps, int _netId) {
+            int nwkId = nwkIdOfNetId(_netId);
+            _bitmaps[netIdType(_netId)][nwkId >>> 6] |= 1L << nwkId;
+        }
+
+        public Builder setActiveDevAddrs(BloomFilter _activeDevAddrs) {
+            activeDevAddrs = _activeDevAddrs;
+            return this;
+        }
+
+        public PrefixFilter build() {
+            if (used) {
+                throw new RuntimeException("This builder has already been used");
+            }
+            used = true;
+            return new PrefixFilter(this);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.ingest;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Fixed set of direct buffers, each large enough for a LoRaWAN frame, cut
+ * from a single allocation. The pool tracks which buffers are handed out,
+ * so releasing a buffer twice, or one it does not own, fails instead of
+ * giving the same buffer to two consumers.
+ *
+ * @author Romain Cambier
+ */
+final class BufferPool {
+
+    static final int BUFFER_SIZE = 256;
+
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    //never modified once built, so it can be read from any thread
+    private final IdentityHashMap<ByteBuffer, Integer> indexes;
+    private final AtomicIntegerArray inUse;
+
+    BufferPool(int _size) {
+        free = new ArrayBlockingQueue<>(_size);
+        indexes = new IdentityHashMap<>(_size);
+        inUse = new AtomicIntegerArray(_size);
+        ByteBuffer all = ByteBuffer.allocateDirect(_size * BUFFER_SIZE);
+        for (int i = 0; i < _size; i++) {
+            all.limit((i + 1) * BUFFER_SIZE).position(i * BUFFER_SIZE);
+            ByteBuffer buffer = all.slice();
+            indexes.put(buffer, i);
+            free.add(buffer);
+        }
+    }
+
+    /**
+     * @return a cleared buffer, or null if all of them are in use
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            inUse.set(indexes.get(buffer), 1);
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * @param _buffer a buffer returned by {@link #acquire()}, not a
+     * duplicate or slice of it
+     */
+    void release(ByteBuffer _buffer) {
+        Integer index = _buffer == null ? null : indexes.get(_buffer);
+        if (index == null) {
+            throw new IllegalArgumentException("Invalid buffer");
+        }
+        if (!inUse.compareAndSet(index, 1, 0)) {
+            throw new IllegalStateException("Buffer released twice");
+        }
+        free.add(_buffer);
+    }
+
+    int available() {
+        return free.size();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.ingest;
+
+/**
+ * Radio metadata of an uplink, as reported in an rxpk object. A single
+ * instance is reused for every uplink of a server: handlers must copy what
+ * they keep.
+ *
+ * @author Romain Cambier
+ */
+public final class RxMetadata {
+
+    /**
+     * CRC status reported for a frame with a valid CRC.
+     */
+    public static final int CRC_OK = 1;
+    /**
+     * CRC status reported for a frame with an invalid CRC.
+     */
+    public static final int CRC_FAILED = -1;
+
+    long gatewayEui;
+    long tmst;
+    double freq;
+    int chan;
+    int rfch;
+    int stat;
+    int spreadingFactor;
+    int bandwidth;
+    int bitRate;
+    int rssi;
+    float lsnr;
+
+    void reset(long _gatewayEui) {
+        gatewayEui = _gatewayEui;
+        tmst = 0;
+        freq = 0;
+        chan = 0;
+        rfch = 0;
+        stat = CRC_OK;
+        spreadingFactor = 0;
+        bandwidth = 0;
+        bitRate = 0;
+        rssi = 0;
+        lsnr = 0;
+    }
+
+    public long getGatewayEui() {
+        return gatewayEui;
+    }
+
+    /**
+     * @return the internal timestamp of the concentrator, in microseconds
+     */
+    public long getTmst() {
+        return tmst;
+    }
+
+    /**
+     * @return the frequency, in MHz
+     */
+    public double getFreq() {
+        return freq;
+    }
+
+    public int getChan() {
+        return chan;
+    }
+
+    public int getRfch() {
+        return rfch;
+    }
+
+    /**
+     * @return {@link #CRC_OK}, {@link #CRC_FAILED} or 0 if there was no CRC
+     */
+    public int getStat() {
+        return stat;
+    }
+
+    /**
+     * @return the spreading factor of a LoRa frame, 0 for FSK
+     */
+    public int getSpreadingFactor() {
+        return spreadingFactor;
+    }
+
+    /**
+     * @return the bandwidth of a LoRa frame, in kHz
+     */
+    public int getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * @return the bit rate of a FSK frame, 0 for LoRa
+     */
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public float getLsnr() {
+        return lsnr;
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.ingest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Single pass scanner of the JSON body of a PUSH_DATA datagram. It reads the
+ * bytes of the datagram in place, fills a {@link RxMetadata} for every
+ * rxpk object and base64-decodes its data field straight into a pooled
+ * buffer. Everything else is skipped without being materialized.
+ *
+ * @author Romain Cambier
+ */
+final class RxpkScanner {
+
+    /**
+     * Receives the decoded frames.
+     */
+    interface Sink {
+
+        /**
+         * @param _frame the frame, or null if no buffer was available
+         * @param _metadata the metadata of the frame
+         */
+        void rxpk(ByteBuffer _frame, RxMetadata _metadata);
+    }
+
+    static final class MalformedJsonException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private MalformedJsonException() {
+            super("Malformed rxpk json", null, false, false);
+        }
+    }
+
+    private static final MalformedJsonException MALFORMED = new MalformedJsonException();
+
+    private static final byte[] RXPK = key("rxpk");
+    private static final byte[] TMST = key("tmst");
+    private static final byte[] FREQ = key("freq");
+    private static final byte[] CHAN = key("chan");
+    private static final byte[] RFCH = key("rfch");
+    private static final byte[] STAT = key("stat");
+    private static final byte[] DATR = key("datr");
+    private static final byte[] RSSI = key("rssi");
+    private static final byte[] LSNR = key("lsnr");
+    private static final byte[] DATA = key("data");
+
+    private static final double[] POW10 = new double[23];
+    private static final int[] BASE64 = new int[256];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+        Arrays.fill(BASE64, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private final BufferPool pool;
+    private ByteBuffer in;
+    private int end;
+    private int stringStart;
+    private int stringEnd;
+    private double number;
+
+    RxpkScanner(BufferPool _pool) {
+        pool = _pool;
+    }
+
+    private static byte[] key(String _key) {
+        return _key.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Scans a JSON object and hands every rxpk to the sink.
+     *
+     * @param _in the datagram
+     * @param _start index of the JSON object
+     * @param _end index following the JSON object
+     * @param _metadata holder reused for every rxpk
+     * @param _sink receives the frames
+     * @return the number of rxpk objects
+     * @throws MalformedJsonException if the JSON is not valid. The frames
+     * read before the error have already been handed to the sink.
+     */
+    int scan(ByteBuffer _in, int _start, int _end, RxMetadata _metadata, Sink _sink) throws MalformedJsonException {
+        in = _in;
+        end = _end;
+        int count = 0;
+        int p = expect(_start, '{');
+        if (peek(p) == '}') {
+            return 0;
+        }
+        while (true) {
+            p = expect(string(p), ':');
+            if (keyIs(RXPK)) {
+                p = expect(p, '[');
+                if (peek(p) == ']') {
+                    p = skipWhitespace(p) + 1;
+                } else {
+                    while (true) {
+                        p = rxpk(p, _metadata, _sink);
+                        count++;
+                        p = skipWhitespace(p);
+                        byte b = at(p++);
+                        if (b == ']') {
+                            break;
+                        }
+                        if (b != ',') {
+                            throw MALFORMED;
+                        }
+                    }
+                }
+            } else {
+                p = skipValue(p);
+            }
+            p = skipWhitespace(p);
+            byte b = at(p++);
+            if (b == '}') {
+                return count;
+            }
+            if (b != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    private int rxpk(int _p, RxMetadata _metadata, Sink _sink) throws MalformedJsonException {
+        _metadata.reset(_metadata.gatewayEui);
+        int dataStart = -1;
+        int dataEnd = -1;
+        int p = expect(_p, '{');
+        if (peek(p) == '}') {
+            p = skipWhitespace(p) + 1;
+        } else {
+            while (true) {
+                p = expect(string(p), ':');
+                if (keyIs(DATA)) {
+                    p = string(p);
+                    dataStart = stringStart;
+                    dataEnd = stringEnd;
+                } else if (keyIs(DATR)) {
+                    if (peek(p) == '"') {
+                        p = string(p);
+                        datr(_metadata);
+                    } else {
+                        p = number(p);
+                        _metadata.bitRate = (int) number;
+                    }
+                } else if (keyIs(TMST)) {
+                    p = number(p);
+                    _metadata.tmst = (long) number;
+                } else if (keyIs(FREQ)) {
+                    p = number(p);
+                    _metadata.freq = number;
+                } else if (keyIs(RSSI)) {
+                    p = number(p);
+                    _metadata.rssi = (int) number;
+                } else if (keyIs(LSNR)) {
+                    p = number(p);
+                    _metadata.lsnr = (float) number;
+                } else if (keyIs(STAT)) {
+                    p = number(p);
+                    _metadata.stat = (int) number;
+                } else if (keyIs(CHAN)) {
+                    p = number(p);
+                    _metadata.chan = (int) number;
+                } else if (keyIs(RFCH)) {
+                    p = number(p);
+                    _metadata.rfch = (int) number;
+                } else {
+                    p = skipValue(p);
+                }
+                p = skipWhitespace(p);
+                byte b = at(p++);
+                if (b == '}') {
+                    break;
+                }
+                if (b != ',') {
+                    throw MALFORMED;
+                }
+            }
+        }
+        if (dataStart < 0) {
+            throw MALFORMED;
+        }
+        ByteBuffer frame = pool.acquire();
+        if (frame != null) {
+            try {
+                decode(dataStart, dataEnd, frame);
+            } catch (MalformedJsonException ex) {
+                pool.release(frame);
+                throw ex;
+            }
+            frame.flip();
+        }
+        _sink.rxpk(frame, _metadata);
+        return p;
+    }
+
+    private void datr(RxMetadata _metadata) {
+        // "SF7BW125"
+        int p = stringStart;
+        if (p + 2 < stringEnd && in.get(p) == 'S' && in.get(p + 1) == 'F') {
+            int sf = 0;
+            for (p += 2; p < stringEnd && in.get(p) >= '0' && in.get(p) <= '9'; p++) {
+                sf = sf * 10 + in.get(p) - '0';
+            }
+            _metadata.spreadingFactor = sf;
+        }
+        if (p + 2 < stringEnd && in.get(p) == 'B' && in.get(p + 1) == 'W') {
+            int bw = 0;
+            for (p += 2; p < stringEnd && in.get(p) >= '0' && in.get(p) <= '9'; p++) {
+                bw = bw * 10 + in.get(p) - '0';
+            }
+            _metadata.bandwidth = bw;
+        }
+    }
+
+    private void decode(int _start, int _end, ByteBuffer _dst) throws MalformedJsonException {
+        int bits = 0;
+        int count = 0;
+        for (int i = _start; i < _end; i++) {
+            int b = in.get(i) & 0xff;
+            if (b == '=') {
+                break;
+            }
+            int v = BASE64[b];
+            if (v < 0) {
+                throw MALFORMED;
+            }
+            bits = bits << 6 | v;
+            count += 6;
+            if (count >= 8) {
+                count -= 8;
+                if (!_dst.hasRemaining()) {
+                    throw MALFORMED;
+                }
+                _dst.put((byte) (bits >> count));
+            }
+        }
+    }
+
+    private byte at(int _p) throws MalformedJsonException {
+        if (_p >= end) {
+            throw MALFORMED;
+        }
+        return in.get(_p);
+    }
+
+    private int peek(int _p) throws MalformedJsonException {
+        return at(skipWhitespace(_p));
+    }
+
+    private int skipWhitespace(int _p) {
+        while (_p < end) {
+            byte b = in.get(_p);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                break;
+            }
+            _p++;
+        }
+        return _p;
+    }
+
+    private int expect(int _p, char _c) throws MalformedJsonException {
+        int p = skipWhitespace(_p);
+        if (at(p) != _c) {
+            throw MALFORMED;
+        }
+        return p + 1;
+    }
+
+    private int string(int _p) throws MalformedJsonException {
+        int p = expect(_p, '"');
+        stringStart = p;
+        while (true) {
+            byte b = at(p);
+            if (b == '"') {
+                stringEnd = p;
+                return p + 1;
+            }
+            p += b == '\\' ? 2 : 1;
+        }
+    }
+
+    private boolean keyIs(byte[] _key) {
+        if (stringEnd - stringStart != _key.length) {
+            return false;
+        }
+        for (int i = 0; i < _key.length; i++) {
+            if (in.get(stringStart + i) != _key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int number(int _p) throws MalformedJsonException {
+        int p = skipWhitespace(_p);
+        boolean negative = at(p) == '-';
+        if (negative) {
+            p++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean fraction = false;
+        while (p < end) {
+            byte b = in.get(p);
+            if (b >= '0' && b <= '9') {
+                if (mantissa < Long.MAX_VALUE / 10 - 9) {
+                    mantissa = mantissa * 10 + b - '0';
+                    if (fraction) {
+                        scale++;
+                    }
+                } else if (!fraction) {
+                    scale--;
+                }
+                digits++;
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+            p++;
+        }
+        if (digits == 0) {
+            throw MALFORMED;
+        }
+        if (p < end && (in.get(p) == 'e' || in.get(p) == 'E')) {
+            p++;
+            boolean negativeExponent = at(p) == '-';
+            if (negativeExponent || at(p) == '+') {
+                p++;
+            }
+            int exponent = 0;
+            while (p < end && in.get(p) >= '0' && in.get(p) <= '9') {
+                exponent = Math.min(exponent * 10 + in.get(p++) - '0', 1000);
+            }
+            scale += negativeExponent ? exponent : -exponent;
+        }
+        double value = mantissa;
+        if (scale > 0) {
+            value = scale < POW10.length ? value / POW10[scale] : value / Math.pow(10, scale);
+        } else if (scale < 0) {
+            value = -scale < POW10.length ? value * POW10[-scale] : value * Math.pow(10, -scale);
+        }
+        number = negative ? -value : value;
+        return p;
+    }
+
+    private int skipValue(int _p) throws MalformedJsonException {
+        int p = skipWhitespace(_p);
+        int depth = 0;
+        do {
+            byte b = at(p);
+            if (b == '"') {
+                p = string(p);
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0) {
+                    return p;
+                }
+                depth--;
+            } else if (depth == 0 && b == ',') {
+                return p;
+            }
+            p++;
+        } while (depth > 0 || (p < end && in.get(p) != ',' && in.get(p) != '}' && in.get(p) != ']'));
+        return p;
+    }
+}
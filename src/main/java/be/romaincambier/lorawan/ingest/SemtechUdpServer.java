@@ -0,0 +1,319 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receives the datagrams of gateways running the Semtech UDP packet
+ * forwarder.
+ * <p>
+ * PUSH_DATA and PULL_DATA are acknowledged, the frames of every rxpk are
+ * base64-decoded into pooled direct buffers and handed to the
+ * {@link Handler}, which may parse them with
+ * {@link be.romaincambier.lorawan.PhyPayload#parse(java.nio.ByteBuffer)} or
+ * {@link be.romaincambier.lorawan.PacketView#wrap(java.nio.ByteBuffer)}.
+ * The handler owns each buffer until it gives it back with
+ * {@link #release(ByteBuffer)}, even if it throws. Frames received while
+ * every buffer is in use are dropped and counted. An exception thrown by the
+ * handler is counted and does not stop the server.
+ * <p>
+ * The server reads on the thread calling {@link #run()}, until
+ * {@link #close()}. Downlinks are sent with
+ * {@link #sendPullResp(long, int, ByteBuffer)} to the address the gateway
+ * last sent a PULL_DATA from.
+ *
+ * @author Romain Cambier
+ */
+public final class SemtechUdpServer implements Runnable, Closeable {
+
+    public static final byte PUSH_DATA = 0x00;
+    public static final byte PUSH_ACK = 0x01;
+    public static final byte PULL_DATA = 0x02;
+    public static final byte PULL_RESP = 0x03;
+    public static final byte PULL_ACK = 0x04;
+    public static final byte TX_ACK = 0x05;
+
+    public static final int DEFAULT_POOL_SIZE = 4096;
+
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * Receives the traffic of the gateways, on the thread of the server.
+     */
+    public static interface Handler {
+
+        /**
+         * @param _frame the frame, to be given back with
+         * {@link SemtechUdpServer#release(ByteBuffer)}
+         * @param _metadata the radio metadata, only valid during the call
+         */
+        void onUplink(ByteBuffer _frame, RxMetadata _metadata);
+
+        /**
+         * @param _gatewayEui the gateway
+         * @param _token the token of the acknowledged PULL_RESP
+         * @param _json the optional JSON body, only valid during the call
+         */
+        default void onTxAck(long _gatewayEui, int _token, ByteBuffer _json) {
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final Handler handler;
+    private final BufferPool pool;
+    private final RxpkScanner scanner;
+    private final RxMetadata metadata = new RxMetadata();
+    private final ByteBuffer in = ByteBuffer.allocateDirect(65536);
+    private final ByteBuffer ack = ByteBuffer.allocateDirect(4);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(65536);
+    private final ConcurrentHashMap<Long, SocketAddress> pullAddresses = new ConcurrentHashMap<>();
+    private final RxpkScanner.Sink sink = this::rxpk;
+
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder uplinks = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder crcErrors = new LongAdder();
+    private final LongAdder handlerErrors = new LongAdder();
+
+    public SemtechUdpServer(SocketAddress _bind, Handler _handler) throws IOException {
+        this(_bind, _handler, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param _bind the local address, usually port 1700
+     * @param _handler receives the uplinks
+     * @param _poolSize number of frame buffers
+     * @throws IOException if the socket can not be bound
+     */
+    public SemtechUdpServer(SocketAddress _bind, Handler _handler, int _poolSize) throws IOException {
+        if (_handler == null) {
+            throw new IllegalArgumentException("Missing handler");
+        }
+        if (_poolSize < 1) {
+            throw new IllegalArgumentException("Invalid poolSize");
+        }
+        handler = _handler;
+        pool = new BufferPool(_poolSize);
+        scanner = new RxpkScanner(pool);
+        in.order(ByteOrder.BIG_ENDIAN);
+        channel = DatagramChannel.open();
+        channel.bind(_bind);
+    }
+
+    public SocketAddress getLocalAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    @Override
+    public void run() {
+        while (channel.isOpen()) {
+            try {
+                in.clear();
+                SocketAddress from = channel.receive(in);
+                in.flip();
+                datagrams.increment();
+                dispatch(from);
+            } catch (ClosedChannelException ex) {
+                return;
+            } catch (IOException ex) {
+                malformed.increment();
+            }
+        }
+    }
+
+    private void dispatch(SocketAddress _from) throws IOException {
+        if (in.remaining() < 4 || (in.get(0) != 1 && in.get(0) != 2)) {
+            malformed.increment();
+            return;
+        }
+        byte identifier = in.get(3);
+        switch (identifier) {
+            case PUSH_DATA:
+                if (in.remaining() < HEADER_SIZE) {
+                    malformed.increment();
+                    return;
+                }
+                acknowledge(_from, PUSH_ACK);
+                metadata.reset(gatewayEui());
+                try {
+                    scanner.scan(in, HEADER_SIZE, in.limit(), metadata, sink);
+                } catch (RxpkScanner.MalformedJsonException ex) {
+                    malformed.increment();
+                }
+                break;
+            case PULL_DATA:
+                if (in.remaining() < HEADER_SIZE) {
+                    malformed.increment();
+                    return;
+                }
+                pullAddresses.put(gatewayEui(), _from);
+                acknowledge(_from, PULL_ACK);
+                break;
+            case TX_ACK:
+                if (in.remaining() < HEADER_SIZE) {
+                    malformed.increment();
+                    return;
+                }
+                long gatewayEui = gatewayEui();
+                int token = (in.get(1) & 0xff) << 8 | (in.get(2) & 0xff);
+                in.position(HEADER_SIZE);
+                try {
+                    handler.onTxAck(gatewayEui, token, in);
+                } catch (RuntimeException ex) {
+                    handlerErrors.increment();
+                }
+                break;
+            default:
+                malformed.increment();
+                break;
+        }
+    }
+
+    private long gatewayEui() {
+        return in.getLong(4);
+    }
+
+    private void acknowledge(SocketAddress _to, byte _identifier) throws IOException {
+        ack.clear();
+        ack.put(in.get(0)).put(in.get(1)).put(in.get(2)).put(_identifier);
+        ack.flip();
+        channel.send(ack, _to);
+    }
+
+    private void rxpk(ByteBuffer _frame, RxMetadata _metadata) {
+        if (_frame == null) {
+            dropped.increment();
+            return;
+        }
+        if (_metadata.stat == RxMetadata.CRC_FAILED) {
+            pool.release(_frame);
+            crcErrors.increment();
+            return;
+        }
+        uplinks.increment();
+        try {
+            handler.onUplink(_frame, _metadata);
+        } catch (RuntimeException ex) {
+            handlerErrors.increment();
+        }
+    }
+
+    /**
+     * Gives back a frame buffer received by {@link Handler#onUplink}. May be
+     * called from any thread.
+     *
+     * @param _frame the buffer
+     */
+    public void release(ByteBuffer _frame) {
+        pool.release(_frame);
+    }
+
+    /**
+     * Sends a PULL_RESP to a gateway. May be called from any thread.
+     *
+     * @param _gatewayEui the gateway
+     * @param _token the token echoed by the TX_ACK
+     * @param _txpk the JSON body, from its position to its limit
+     * @return false if the gateway did not send any PULL_DATA yet
+     * @throws IOException if the datagram can not be sent
+     */
+    public boolean sendPullResp(long _gatewayEui, int _token, ByteBuffer _txpk) throws IOException {
+        SocketAddress to = pullAddresses.get(_gatewayEui);
+        if (to == null) {
+            return false;
+        }
+        synchronized (out) {
+            out.clear();
+            out.put((byte) 2).put((byte) (_token >> 8)).put((byte) _token).put(PULL_RESP);
+            out.put(_txpk.duplicate());
+            out.flip();
+            channel.send(out, to);
+        }
+        return true;
+    }
+
+    /**
+     * @param _gatewayEui the gateway
+     * @return where the gateway receives its downlinks, or null
+     */
+    public SocketAddress getPullAddress(long _gatewayEui) {
+        return pullAddresses.get(_gatewayEui);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public long getDatagramCount() {
+        return datagrams.sum();
+    }
+
+    public long getUplinkCount() {
+        return uplinks.sum();
+    }
+
+    public long getMalformedCount() {
+        return malformed.sum();
+    }
+
+    /**
+     * @return how many frames were dropped because the gateway reported an
+     * invalid CRC
+     */
+    public long getCrcErrorCount() {
+        return crcErrors.sum();
+    }
+
+    /**
+     * @return how many exceptions the handler threw
+     */
+    public long getHandlerErrorCount() {
+        return handlerErrors.sum();
+    }
+
+    /**
+     * @return how many frames were dropped because every buffer was in use
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return how many frame buffers are not held by the handler
+     */
+    public int getAvailableBuffers() {
+        return pool.available();
+    }
+}
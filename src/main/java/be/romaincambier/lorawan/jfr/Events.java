@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.jfr;
+
+import be.romaincambier.lorawan.MType;
+
+/**
+ * Creates and commits the events. Only loaded once {@link FrameEvents} has
+ * checked that the flight recorder API is present.
+ *
+ * @author Romain Cambier
+ */
+final class Events {
+
+    private Events() {
+    }
+
+    static FrameEvent begin(FrameEvent _event) {
+        if (!_event.isEnabled()) {
+            return null;
+        }
+        _event.begin();
+        return _event;
+    }
+
+    static FrameEvent parse() {
+        return begin(new ParseEvent());
+    }
+
+    static FrameEvent mic() {
+        return begin(new MicEvent());
+    }
+
+    static FrameEvent decrypt() {
+        return begin(new DecryptEvent());
+    }
+
+    static FrameEvent encode() {
+        return begin(new EncodeEvent());
+    }
+
+    static void end(FrameEvent _event, MType _mType, int _devAddr, int _length, String _outcome) {
+        _event.end();
+        if (_event.shouldCommit()) {
+            _event.mType = _mType == null ? null : _mType.name();
+            _event.devAddr = _devAddr;
+            _event.payloadLength = _length;
+            _event.outcome = _outcome;
+            _event.commit();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Base of the flight recorder events emitted around the hot paths. The
+ * events are disabled unless a recording enables them, typically with the
+ * {@code lorawan.jfc} settings shipped with the library, which keep the
+ * frames taking 1 ms or more, or {@code lorawan-profile.jfc}, which keeps
+ * them all.
+ *
+ * @author Romain Cambier
+ */
+@Category("LoRaWAN")
+@Enabled(false)
+@StackTrace(false)
+public abstract class FrameEvent extends Event {
+
+    @Label("MType")
+    String mType;
+
+    @Label("DevAddr")
+    @Description("DevAddr as read little-endian from the frame, 0 if the frame has none")
+    int devAddr;
+
+    @Label("Payload Length")
+    @Description("Length of the frame, or of the FRMPayload for decryption")
+    @DataAmount
+    int payloadLength;
+
+    @Label("Outcome")
+    String outcome;
+
+    public String getMType() {
+        return mType;
+    }
+
+    public int getDevAddr() {
+        return devAddr;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+}
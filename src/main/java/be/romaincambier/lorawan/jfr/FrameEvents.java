@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.jfr;
+
+import be.romaincambier.lorawan.MType;
+
+/**
+ * Entry point of the flight recorder instrumentation, usable on JVMs
+ * without the {@code jdk.jfr} module: every begin method then returns null.
+ * When the API is present but the event is disabled, the begin methods also
+ * return null, and the JIT removes the allocation of the event.
+ * <pre>
+ * FrameEvent event = FrameEvents.beginMic();
+ * ...
+ * if (event != null) {
+ *     FrameEvents.end(event, mType, devAddr, length, FrameEvents.OK);
+ * }
+ * </pre>
+ *
+ * @author Romain Cambier
+ */
+public final class FrameEvents {
+
+    public static final String PREFIX = "be.romaincambier.lorawan.";
+
+    public static final String OK = "OK";
+    public static final String MALFORMED = "MALFORMED";
+    public static final String MIC_FAILED = "MIC_FAILED";
+
+    public static final boolean AVAILABLE = available();
+
+    private FrameEvents() {
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    public static FrameEvent beginParse() {
+        return AVAILABLE ? Events.parse() : null;
+    }
+
+    public static FrameEvent beginMic() {
+        return AVAILABLE ? Events.mic() : null;
+    }
+
+    public static FrameEvent beginDecrypt() {
+        return AVAILABLE ? Events.decrypt() : null;
+    }
+
+    public static FrameEvent beginEncode() {
+        return AVAILABLE ? Events.encode() : null;
+    }
+
+    /**
+     * Ends the event and commits it if the recording accepts it.
+     *
+     * @param _event an event returned by one of the begin methods, not null
+     * @param _mType the MType, null if unknown
+     * @param _devAddr the DevAddr, 0 if the frame has none
+     * @param _length the number of bytes processed
+     * @param _outcome one of {@link #OK}, {@link #MALFORMED},
+     * {@link #MIC_FAILED} or the name of a failed
+     * {@link be.romaincambier.lorawan.ParseStatus}
+     */
+    public static void end(FrameEvent _event, MType _mType, int _devAddr, int _length, String _outcome) {
+        Events.end(_event, _mType, _devAddr, _length, _outcome);
+    }
+}
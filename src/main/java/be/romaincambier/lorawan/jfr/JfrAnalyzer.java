@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.jfr;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Reads a recording and prints the latency percentiles of the LoRaWAN
+ * events per stage and MType, along with their outcomes. The percentiles
+ * cover every frame only for recordings made with
+ * {@code lorawan-profile.jfc}, {@code lorawan.jfc} only keeps the slow ones.
+ * <pre>
+ * java -cp lorawanpacket.jar be.romaincambier.lorawan.jfr.JfrAnalyzer recording.jfr
+ * </pre>
+ *
+ * @author Romain Cambier
+ */
+public final class JfrAnalyzer {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final Map<String, Stage> stages = new TreeMap<>();
+
+    /**
+     * Adds an event to the analysis. Events that are not {@link FrameEvent}s
+     * are ignored.
+     *
+     * @param _event the event
+     */
+    public void add(RecordedEvent _event) {
+        String name = _event.getEventType().getName();
+        if (!name.startsWith(FrameEvents.PREFIX)) {
+            return;
+        }
+        String mType = _event.hasField("mType") ? _event.getString("mType") : null;
+        String key = name.substring(FrameEvents.PREFIX.length()) + " " + (mType == null ? "-" : mType);
+        Stage stage = stages.get(key);
+        if (stage == null) {
+            stage = new Stage();
+            stages.put(key, stage);
+        }
+        stage.add(_event.getDuration().toNanos(), _event.hasField("outcome") ? _event.getString("outcome") : null);
+    }
+
+    public void print(PrintStream _out) {
+        _out.printf("%-28s %10s", "stage", "count");
+        for (double p : PERCENTILES) {
+            _out.printf(" %10s", "p" + (p == (long) p ? Long.toString((long) p) : Double.toString(p)));
+        }
+        _out.printf(" %10s  %s%n", "max", "outcomes");
+        for (Map.Entry<String, Stage> e : stages.entrySet()) {
+            Stage stage = e.getValue();
+            long[] sorted = Arrays.copyOf(stage.durations, stage.count);
+            Arrays.sort(sorted);
+            _out.printf("%-28s %10d", e.getKey(), stage.count);
+            for (double p : PERCENTILES) {
+                _out.printf(" %10s", format(percentile(sorted, p)));
+            }
+            _out.printf(" %10s  %s%n", format(sorted[sorted.length - 1]), stage.outcomes);
+        }
+    }
+
+    static long percentile(long[] _sorted, double _percentile) {
+        int rank = (int) Math.ceil(_sorted.length * _percentile / 100);
+        return _sorted[Math.min(Math.max(rank, 1), _sorted.length) - 1];
+    }
+
+    private static String format(long _nanos) {
+        if (_nanos < 10_000) {
+            return _nanos + "ns";
+        }
+        if (_nanos < 10_000_000) {
+            return _nanos / 1_000 + "us";
+        }
+        return _nanos / 1_000_000 + "ms";
+    }
+
+    public static void main(String[] _args) throws IOException {
+        if (_args.length == 0) {
+            System.err.println("Usage: JfrAnalyzer <recording.jfr>...");
+            System.exit(1);
+        }
+        JfrAnalyzer analyzer = new JfrAnalyzer();
+        for (String file : _args) {
+            try (RecordingFile recording = new RecordingFile(Paths.get(file))) {
+                while (recording.hasMoreEvents()) {
+                    analyzer.add(recording.readEvent());
+                }
+            }
+        }
+        analyzer.print(System.out);
+    }
+
+    private static final class Stage {
+
+        private long[] durations = new long[1024];
+        private int count;
+        private final Map<String, Integer> outcomes = new TreeMap<>();
+
+        private void add(long _duration, String _outcome) {
+            if (count == durations.length) {
+                durations = Arrays.copyOf(durations, count * 2);
+            }
+            durations[count++] = _duration;
+            if (_outcome != null) {
+                outcomes.merge(_outcome, 1, Integer::sum);
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.join;
+
+import be.romaincambier.lorawan.MType;
+import be.romaincambier.lorawan.PacketView;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rejects replayed join requests by remembering the DevNonces used by each
+ * DevEUI.
+ * <p>
+ * In {@link Mode#RANDOM} mode (LoRaWAN 1.0.x), the last history nonces of
+ * each device are kept in a ring, and a nonce is rejected if it is in the
+ * ring. In {@link Mode#COUNTER} mode (LoRaWAN 1.1), only the last nonce is
+ * kept, and a nonce is rejected unless it is greater.
+ * <p>
+ * Devices are stored in primitive arrays split in independently locked
+ * segments of an open-addressing table, with a fixed capacity. A device
+ * costs about {@link #bytesPerDevice(Mode, int)} bytes: 18 in counter
+ * mode, 66 with the default history of 16 random nonces. Nonces must only be
+ * accepted once the MIC of the join request is verified.
+ *
+ * @author Romain Cambier
+ */
+public final class DevNonceTracker {
+
+    public static enum Mode {
+        RANDOM,
+        COUNTER
+    }
+
+    public static final int DEFAULT_HISTORY = 16;
+
+    private static final int EMPTY = -1;
+    private static final int DELETED = -2;
+    private static final int MAX_SEGMENT_SLOTS = 1 << 28;
+
+    private final Mode mode;
+    private final int history;
+    private final Segment[] segments;
+    private final int maxDevices;
+    private final AtomicInteger devices = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+
+    public DevNonceTracker(int _maxDevices) {
+        this(_maxDevices, Mode.RANDOM, DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param _maxDevices maximum number of devices
+     * @param _mode how nonces are checked
+     * @param _history number of nonces remembered per device in random
+     * mode, ignored in counter mode
+     */
+    public DevNonceTracker(int _maxDevices, Mode _mode, int _history) {
+        if (_maxDevices < 1) {
+            throw new IllegalArgumentException("Invalid maxDevices");
+        }
+        if (_mode == null) {
+            throw new IllegalArgumentException("Missing mode");
+        }
+        if (_mode == Mode.RANDOM && (_history < 1 || _history > 0x7fff)) {
+            throw new IllegalArgumentException("Invalid history");
+        }
+        mode = _mode;
+        history = _mode == Mode.RANDOM ? _history : 0;
+        int count = 1;
+        while (count < 64 && count * 1024 < _maxDevices) {
+            count <<= 1;
+        }
+        long perSegment = ((long) _maxDevices + count - 1) / count;
+        // 2/3 load when full, leaving room for an uneven spread over segments
+        long wanted = perSegment * 3 / 2 + 1;
+        if (wanted > MAX_SEGMENT_SLOTS) {
+            throw new IllegalArgumentException("Invalid maxDevices");
+        }
+        int slots = Integer.highestOneBit((int) wanted - 1) << 1;
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(slots, history);
+        }
+        maxDevices = _maxDevices;
+    }
+
+    /**
+     * @param _mode the mode
+     * @param _history the history, in random mode
+     * @return the heap used per device, at the 2/3 load factor of a full
+     * table. Segments are rounded up to a power of two slots, so a tracker
+     * may use up to twice as much.
+     */
+    public static int bytesPerDevice(Mode _mode, int _history) {
+        int slot = 8 + 4 + (_mode == Mode.RANDOM ? 2 * _history : 0);
+        return slot * 3 / 2;
+    }
+
+    private static long mix(long _devEUI) {
+        long h = _devEUI;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Records the nonce of a join request whose MIC was verified.
+     *
+     * @param _joinRequest the join request
+     * @return false if the nonce was already used
+     */
+    public boolean accept(PacketView _joinRequest) {
+        if (_joinRequest.mType() != MType.JOIN_REQUEST) {
+            throw new IllegalArgumentException("Not a join request");
+        }
+        return accept(_joinRequest.devEUI(), _joinRequest.devNonce());
+    }
+
+    /**
+     * Records a nonce.
+     *
+     * @param _devEUI the DevEUI
+     * @param _devNonce the 16 bits DevNonce
+     * @return false if the nonce was already used
+     * @throws IllegalStateException if the device is new and the tracker is
+     * full
+     */
+    public boolean accept(long _devEUI, int _devNonce) {
+        long h = mix(_devEUI);
+        Segment segment = segments[(int) (h >>> 58) & (segments.length - 1)];
+        boolean ok;
+        synchronized (segment) {
+            ok = segment.accept(_devEUI, (int) h, _devNonce & 0xffff);
+        }
+        (ok ? accepted : replayed).increment();
+        return ok;
+    }
+
+    /**
+     * Forgets a device, e.g. when it is deleted or gets a new AppKey.
+     *
+     * @param _devEUI the DevEUI
+     * @return false if the device was not tracked
+     */
+    public boolean forget(long _devEUI) {
+        long h = mix(_devEUI);
+        Segment segment = segments[(int) (h >>> 58) & (segments.length - 1)];
+        synchronized (segment) {
+            return segment.forget(_devEUI, (int) h);
+        }
+    }
+
+    public int size() {
+        return devices.get();
+    }
+
+    public int capacity() {
+        return maxDevices;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getReplayedCount() {
+        return replayed.sum();
+    }
+
+    private final class Segment {
+
+        private final long[] keys;
+        // EMPTY, DELETED, last nonce (counter) or count << 16 | head (random)
+        private final int[] states;
+        private final short[] nonces;
+        private final int mask;
+        // slots used by devices and tombstones, at most 3/4 of the table
+        private final int maxUsed;
+        private int size;
+        private int used;
+
+        private Segment(int _slots, int _history) {
+            keys = new long[_slots];
+            states = new int[_slots];
+            Arrays.fill(states, EMPTY);
+            nonces = new short[_slots * _history];
+            mask = _slots - 1;
+            maxUsed = _slots - _slots / 4;
+        }
+
+        private int find(long _devEUI, int _hash) {
+            for (int i = 0, slot = _hash & mask; i <= mask; i++, slot = (slot + 1) & mask) {
+                int state = states[slot];
+                if (state == EMPTY) {
+                    return -1;
+                }
+                if (state != DELETED && keys[slot] == _devEUI) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private boolean accept(long _devEUI, int _hash, int _devNonce) {
+            int slot = find(_devEUI, _hash);
+            if (slot < 0) {
+                insert(_devEUI, _hash, _devNonce);
+                return true;
+            }
+            int state = states[slot];
+            if (mode == Mode.COUNTER) {
+                if (_devNonce <= state) {
+                    return false;
+                }
+                states[slot] = _devNonce;
+                return true;
+            }
+            int count = state >>> 16;
+            int head = state & 0xffff;
+            int base = slot * history;
+            for (int i = 0; i < count; i++) {
+                if ((nonces[base + i] & 0xffff) == _devNonce) {
+                    return false;
+                }
+            }
+            nonces[base + head] = (short) _devNonce;
+            states[slot] = Math.min(count + 1, history) << 16 | (head + 1) % history;
+            return true;
+        }
+
+        private void insert(long _devEUI, int _hash, int _devNonce) {
+            if (devices.incrementAndGet() > maxDevices || size >= maxUsed) {
+                devices.decrementAndGet();
+                throw new IllegalStateException("DevNonce tracker is full");
+            }
+            if (used >= maxUsed) {
+                rehash();
+            }
+            int slot = _hash & mask;
+            while (states[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = _devEUI;
+            if (mode == Mode.COUNTER) {
+                states[slot] = _devNonce;
+            } else {
+                nonces[slot * history] = (short) _devNonce;
+                states[slot] = 1 << 16 | 1 % history;
+            }
+            size++;
+            used++;
+        }
+
+        private boolean forget(long _devEUI, int _hash) {
+            int slot = find(_devEUI, _hash);
+            if (slot < 0) {
+                return false;
+            }
+            states[slot] = DELETED;
+            size--;
+            devices.decrementAndGet();
+            return true;
+        }
+
+        // drops the tombstones left by forget
+        private void rehash() {
+            long[] oldKeys = keys.clone();
+            int[] oldStates = states.clone();
+            short[] oldNonces = nonces.clone();
+            Arrays.fill(states, EMPTY);
+            for (int i = 0; i < oldStates.length; i++) {
+                if (oldStates[i] < 0) {
+                    continue;
+                }
+                int slot = (int) mix(oldKeys[i]) & mask;
+                while (states[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                states[slot] = oldStates[i];
+                System.arraycopy(oldNonces, i * history, nonces, slot * history, history);
+            }
+            used = size;
+        }
+    }
+}
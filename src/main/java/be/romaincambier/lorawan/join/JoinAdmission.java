@@ -0,0 +1,337 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.join;
+
+import be.romaincambier.lorawan.MType;
+import be.romaincambier.lorawan.PacketView;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission stage in front of a {@link JoinServer}, keeping join storms
+ * from flooding the workers.
+ * <p>
+ * Join requests are copied into a bounded queue of preallocated entries.
+ * A request from a DevEUI which is already queued is coalesced into the
+ * queued entry: a copy received by another gateway is ignored, a
+ * retransmission with a new DevNonce replaces it. Workers take batches of
+ * requests by earliest deadline, RX1 first and then RX2 once the RX1
+ * deadline is over, and requests which can no longer be answered are
+ * dropped before any crypto is spent on them.
+ *
+ * @author Romain Cambier
+ */
+public final class JoinAdmission {
+
+    public static final long DEFAULT_JOIN_ACCEPT_DELAY1 = TimeUnit.SECONDS.toNanos(5);
+    public static final long DEFAULT_LEAD_TIME = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long RX2_OFFSET = TimeUnit.SECONDS.toNanos(1);
+    private static final int JOIN_REQUEST_LENGTH = 23;
+
+    /**
+     * Gives a DevAddr to each joining device, once its join request is
+     * accepted.
+     */
+    public static interface DevAddrAllocator {
+
+        /**
+         * @param _devEUI the DevEUI
+         * @return the DevAddr, as read little-endian from a frame
+         */
+        int allocate(long _devEUI);
+    }
+
+    /**
+     * Receives the accepted joins, on the worker thread.
+     */
+    public static interface Handler {
+
+        /**
+         * @param _join the outcome, only valid during the call
+         * @param _window 1 for RX1, 2 for RX2
+         * @param _received when the request was received
+         * @param _context the context given with the request
+         */
+        void onJoin(JoinServer.Join _join, int _window, long _received, Object _context);
+    }
+
+    private static final class Entry {
+
+        private final byte[] raw = new byte[JOIN_REQUEST_LENGTH];
+        private long devEUI;
+        private int devNonce;
+        private long received;
+        private long rx1Deadline;
+        private Object context;
+    }
+
+    private final JoinServer server;
+    private final DevAddrAllocator devAddrs;
+    private final int capacity;
+    private final long rx1Delay;
+    private final long leadTime;
+    private final Object lock = new Object();
+    private final ArrayDeque<Entry> free;
+    private final PriorityQueue<Entry> rx1Queue = new PriorityQueue<>(Comparator.comparingLong((Entry e) -> e.rx1Deadline));
+    private final ArrayDeque<Entry> rx2Queue = new ArrayDeque<>();
+    private final HashMap<Long, Entry> queued = new HashMap<>();
+    private final ThreadLocal<PacketView> views = ThreadLocal.withInitial(PacketView::new);
+    private final ThreadLocal<Entry[]> batches = ThreadLocal.withInitial(() -> new Entry[0]);
+
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder droppedLate = new LongAdder();
+    private final LongAdder droppedFull = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+
+    public JoinAdmission(JoinServer _server, DevAddrAllocator _devAddrs, int _capacity) {
+        this(_server, _devAddrs, _capacity, DEFAULT_JOIN_ACCEPT_DELAY1, DEFAULT_LEAD_TIME);
+    }
+
+    /**
+     * @param _server processes the admitted requests
+     * @param _devAddrs gives a DevAddr to each admitted device
+     * @param _capacity maximum number of queued requests
+     * @param _joinAcceptDelay1 delay between a join request and RX1, in
+     * nanoseconds. RX2 opens one second later.
+     * @param _leadTime time needed to send the join accept to the gateway,
+     * in nanoseconds
+     */
+    public JoinAdmission(JoinServer _server, DevAddrAllocator _devAddrs, int _capacity, long _joinAcceptDelay1, long _leadTime) {
+        if (_server == null) {
+            throw new IllegalArgumentException("Missing server");
+        }
+        if (_devAddrs == null) {
+            throw new IllegalArgumentException("Missing devAddrs");
+        }
+        if (_capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity");
+        }
+        if (_leadTime < 0 || _leadTime >= _joinAcceptDelay1) {
+            throw new IllegalArgumentException("Invalid leadTime");
+        }
+        server = _server;
+        devAddrs = _devAddrs;
+        capacity = _capacity;
+        rx1Delay = _joinAcceptDelay1;
+        leadTime = _leadTime;
+        free = new ArrayDeque<>(_capacity);
+        for (int i = 0; i < _capacity; i++) {
+            free.add(new Entry());
+        }
+    }
+
+    /**
+     * Queues a join request. The frame is copied.
+     *
+     * @param _request the join request
+     * @param _received when it was received, from {@link System#nanoTime()}
+     * @param _context handed back with the outcome, e.g. the gateway
+     * @return false if the queue is full
+     */
+    public boolean offer(PacketView _request, long _received, Object _context) {
+        if (_request.mType() != MType.JOIN_REQUEST || _request.length() != JOIN_REQUEST_LENGTH) {
+            throw new IllegalArgumentException("Not a join request");
+        }
+        long devEUI = _request.devEUI();
+        int devNonce = _request.devNonce();
+        synchronized (lock) {
+            Entry entry = queued.get(devEUI);
+            if (entry != null) {
+                coalesced.increment();
+                if (entry.devNonce != devNonce) {
+                    // the device gave up on the queued request and listens
+                    // to the windows of the new one
+                    if (!rx1Queue.remove(entry)) {
+                        rx2Queue.remove(entry);
+                    }
+                    copy(_request, entry);
+                    entry.devNonce = devNonce;
+                    entry.received = _received;
+                    entry.rx1Deadline = _received + rx1Delay - leadTime;
+                    entry.context = _context;
+                    rx1Queue.add(entry);
+                }
+                return true;
+            }
+            entry = free.poll();
+            if (entry == null) {
+                droppedFull.increment();
+                return false;
+            }
+            copy(_request, entry);
+            entry.devEUI = devEUI;
+            entry.devNonce = devNonce;
+            entry.received = _received;
+            entry.rx1Deadline = _received + rx1Delay - leadTime;
+            entry.context = _context;
+            queued.put(devEUI, entry);
+            rx1Queue.add(entry);
+            return true;
+        }
+    }
+
+    private static void copy(PacketView _request, Entry _entry) {
+        if (_request.array() != null) {
+            System.arraycopy(_request.array(), _request.offset(), _entry.raw, 0, JOIN_REQUEST_LENGTH);
+        } else {
+            for (int i = 0; i < JOIN_REQUEST_LENGTH; i++) {
+                _entry.raw[i] = _request.buffer().get(_request.offset() + i);
+            }
+        }
+    }
+
+    /**
+     * Processes up to _max requests which can still be answered, by earliest
+     * deadline, and drops the ones which can not.
+     *
+     * @param _max maximum number of requests to process
+     * @param _join holder reused for every request of the batch
+     * @param _handler receives the outcomes
+     * @return the number of requests taken from the queue
+     */
+    public int processBatch(int _max, JoinServer.Join _join, Handler _handler) {
+        Entry[] batch = batches.get();
+        if (batch.length < Math.min(_max, capacity)) {
+            batch = new Entry[Math.min(_max, capacity)];
+            batches.set(batch);
+        }
+        int count = 0;
+        synchronized (lock) {
+            long now = System.nanoTime();
+            while (count < _max && count < batch.length) {
+                Entry next = next(now);
+                if (next == null) {
+                    break;
+                }
+                queued.remove(next.devEUI);
+                batch[count++] = next;
+            }
+        }
+        PacketView view = views.get();
+        try {
+            for (int i = 0; i < count; i++) {
+                Entry entry = batch[i];
+                try {
+                    view.wrap(entry.raw, 0, JOIN_REQUEST_LENGTH);
+                } catch (MalformedPacketException ex) {
+                    continue;
+                }
+                if (window(entry, System.nanoTime()) == 0) {
+                    droppedLate.increment();
+                    continue;
+                }
+                if (server.process(view, devAddrs, _join) != JoinServer.Status.OK) {
+                    rejected.increment();
+                    continue;
+                }
+                int window = window(entry, System.nanoTime());
+                if (window == 0) {
+                    droppedLate.increment();
+                    continue;
+                }
+                processed.increment();
+                _handler.onJoin(_join, window, entry.received, entry.context);
+            }
+        } finally {
+            synchronized (lock) {
+                for (int i = 0; i < count; i++) {
+                    batch[i].context = null;
+                    free.add(batch[i]);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int window(Entry _entry, long _now) {
+        return _now <= _entry.rx1Deadline ? 1 : _now <= _entry.rx1Deadline + RX2_OFFSET ? 2 : 0;
+    }
+
+    // earliest deadline among the RX1 and RX2 candidates, dropping the late ones
+    private Entry next(long _now) {
+        Entry head;
+        while ((head = rx1Queue.peek()) != null && _now > head.rx1Deadline) {
+            rx2Queue.add(rx1Queue.poll());
+        }
+        while ((head = rx2Queue.peek()) != null && _now > head.rx1Deadline + RX2_OFFSET) {
+            rx2Queue.poll();
+            queued.remove(head.devEUI);
+            head.context = null;
+            free.add(head);
+            droppedLate.increment();
+        }
+        Entry rx1 = rx1Queue.peek();
+        Entry rx2 = rx2Queue.peek();
+        if (rx2 != null && (rx1 == null || rx2.rx1Deadline + RX2_OFFSET <= rx1.rx1Deadline)) {
+            return rx2Queue.poll();
+        }
+        return rx1Queue.poll();
+    }
+
+    /**
+     * @return the number of queued requests
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return queued.size();
+        }
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return how many requests were dropped because both windows were
+     * over, before or after processing
+     */
+    public long getDroppedLateCount() {
+        return droppedLate.sum();
+    }
+
+    /**
+     * @return how many requests were refused because the queue was full
+     */
+    public long getDroppedFullCount() {
+        return droppedFull.sum();
+    }
+
+    /**
+     * @return how many requests were refused by the join server
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.join;
+
+import be.romaincambier.lorawan.CryptoContext;
+import be.romaincambier.lorawan.CryptoContextCache;
+import be.romaincambier.lorawan.MType;
+import be.romaincambier.lorawan.PacketView;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handles LoRaWAN 1.0.x join requests: looks up the AppKey of the DevEUI,
+ * verifies the MIC, checks the DevNonce, derives the session keys and
+ * encodes the encrypted join accept.
+ * <p>
+ * Every AES operation of a join goes through the cached
+ * {@link CryptoContext} of the AppKey, and the results are written into a
+ * reusable {@link Join}, so a thread handling joins in a loop does not
+ * allocate. A server is thread-safe, a {@link Join} is not.
+ *
+ * @author Romain Cambier
+ */
+public final class JoinServer {
+
+    /**
+     * Maximum length of an encoded join accept, with a CFList.
+     */
+    public static final int MAX_JOIN_ACCEPT_LENGTH = 1 + 12 + 16 + 4;
+
+    public static interface AppKeyLookup {
+
+        /**
+         * @param _devEUI the DevEUI, as read little-endian from the frame
+         * @return the AppKey of the device, or null if it is unknown
+         */
+        byte[] appKey(long _devEUI);
+    }
+
+    public static enum Status {
+        OK,
+        NOT_A_JOIN_REQUEST,
+        UNKNOWN_DEVICE,
+        MIC_FAILED,
+        REPLAYED_NONCE,
+        NONCE_TRACKER_FULL
+    }
+
+    /**
+     * Outcome of a join, reusable across joins.
+     */
+    public static final class Join {
+
+        private final byte[] block = new byte[16];
+        private final byte[] nwkSKey = new byte[16];
+        private final byte[] appSKey = new byte[16];
+        private final byte[] joinAccept = new byte[MAX_JOIN_ACCEPT_LENGTH];
+        private Status status;
+        private long devEUI;
+        private long appEUI;
+        private int devNonce;
+        private int appNonce;
+        private int devAddr;
+        private int joinAcceptLength;
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getDevEUI() {
+            return devEUI;
+        }
+
+        public long getAppEUI() {
+            return appEUI;
+        }
+
+        public int getDevNonce() {
+            return devNonce;
+        }
+
+        public int getAppNonce() {
+            return appNonce;
+        }
+
+        public int getDevAddr() {
+            return devAddr;
+        }
+
+        /**
+         * @return the NwkSKey, overwritten by the next join
+         */
+        public byte[] getNwkSKey() {
+            return nwkSKey;
+        }
+
+        /**
+         * @return the AppSKey, overwritten by the next join
+         */
+        public byte[] getAppSKey() {
+            return appSKey;
+        }
+
+        /**
+         * @return the encrypted join accept, valid up to
+         * {@link #getJoinAcceptLength()}
+         */
+        public byte[] getJoinAccept() {
+            return joinAccept;
+        }
+
+        public int getJoinAcceptLength() {
+            return joinAcceptLength;
+        }
+
+        /**
+         * @param _dst receives the encrypted join accept at its position
+         */
+        public void writeJoinAccept(ByteBuffer _dst) {
+            _dst.put(joinAccept, 0, joinAcceptLength);
+        }
+    }
+
+    private final AppKeyLookup keys;
+    private final int netId;
+    private final byte dlSettings;
+    private final byte rxDelay;
+    private final byte[] cfList;
+    private final DevNonceTracker nonces;
+    private final AtomicInteger appNonce;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private JoinServer(Builder _builder) {
+        keys = _builder.keys;
+        netId = _builder.netId;
+        dlSettings = _builder.dlSettings;
+        rxDelay = _builder.rxDelay;
+        cfList = _builder.cfList;
+        nonces = _builder.nonces;
+        appNonce = new AtomicInteger(_builder.appNonce);
+    }
+
+    /**
+     * Processes a join request.
+     *
+     * @param _request the join request
+     * @param _devAddr the DevAddr given to the device
+     * @param _join receives the outcome
+     * @return the status, also stored in _join
+     */
+    public Status process(PacketView _request, int _devAddr, Join _join) {
+        return process(_request, _devAddr, null, _join);
+    }
+
+    /**
+     * Processes a join request, allocating a DevAddr only once the MIC and
+     * the DevNonce are accepted.
+     *
+     * @param _request the join request
+     * @param _devAddrs gives the DevAddr to the device
+     * @param _join receives the outcome
+     * @return the status, also stored in _join
+     */
+    public Status process(PacketView _request, JoinAdmission.DevAddrAllocator _devAddrs, Join _join) {
+        if (_devAddrs == null) {
+            throw new IllegalArgumentException("Missing devAddrs");
+        }
+        return process(_request, 0, _devAddrs, _join);
+    }
+
+    private Status process(PacketView _request, int _devAddr, JoinAdmission.DevAddrAllocator _devAddrs, Join _join) {
+        Status status = doProcess(_request, _devAddr, _devAddrs, _join);
+        _join.status = status;
+        (status == Status.OK ? accepted : rejected).increment();
+        return status;
+    }
+
+    private Status doProcess(PacketView _request, int _devAddr, JoinAdmission.DevAddrAllocator _devAddrs, Join _join) {
+        _join.joinAcceptLength = 0;
+        if (_request.mType() != MType.JOIN_REQUEST) {
+            return Status.NOT_A_JOIN_REQUEST;
+        }
+        _join.devEUI = _request.devEUI();
+        _join.appEUI = _request.appEUI();
+        _join.devNonce = _request.devNonce();
+        byte[] appKey = keys.appKey(_join.devEUI);
+        if (appKey == null) {
+            return Status.UNKNOWN_DEVICE;
+        }
+        CryptoContext context = CryptoContextCache.shared().get(appKey);
+        if (!_request.verifyMic(appKey)) {
+            return Status.MIC_FAILED;
+        }
+        if (nonces != null) {
+            try {
+                if (!nonces.accept(_join.devEUI, _join.devNonce)) {
+                    return Status.REPLAYED_NONCE;
+                }
+            } catch (IllegalStateException e) {
+                return Status.NONCE_TRACKER_FULL;
+            }
+        }
+        if (_devAddrs != null) {
+            _devAddr = _devAddrs.allocate(_join.devEUI);
+        }
+        _join.appNonce = appNonce.getAndIncrement() & 0xffffff;
+        _join.devAddr = _devAddr;
+
+        // 0x01 | 0x02, AppNonce, NetID, DevNonce, padding
+        byte[] block = _join.block;
+        putLE(block, 1, _join.appNonce, 3);
+        putLE(block, 4, netId, 3);
+        putLE(block, 7, _join.devNonce, 2);
+        for (int i = 9; i < 16; i++) {
+            block[i] = 0;
+        }
+        block[0] = 0x01;
+        context.encrypt(block, 0, 16, _join.nwkSKey, 0);
+        block[0] = 0x02;
+        context.encrypt(block, 0, 16, _join.appSKey, 0);
+
+        byte[] out = _join.joinAccept;
+        out[0] = (byte) (MType.JOIN_ACCEPT.value() << 5);
+        putLE(out, 1, _join.appNonce, 3);
+        putLE(out, 4, netId, 3);
+        putLE(out, 7, _devAddr, 4);
+        out[11] = dlSettings;
+        out[12] = rxDelay;
+        int length = 13;
+        if (cfList != null) {
+            System.arraycopy(cfList, 0, out, length, 16);
+            length += 16;
+        }
+        putLE(out, length, context.mic(out, 0, length), 4);
+        length += 4;
+        // the device encrypts with AES decrypt
+        context.decrypt(out, 1, length - 1, out, 1);
+        _join.joinAcceptLength = length;
+        return Status.OK;
+    }
+
+    private static void putLE(byte[] _b, int _offset, int _value, int _length) {
+        for (int i = 0; i < _length; i++) {
+            _b[_offset + i] = (byte) (_value >> (8 * i));
+        }
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private AppKeyLookup keys;
+        private Integer netId;
+        private byte dlSettings;
+        private byte rxDelay = 1;
+        private byte[] cfList;
+        private DevNonceTracker nonces;
+        private int appNonce;
+        private boolean used;
+
+        private Builder() {
+
+        }
+
+        public Builder setAppKeyLookup(AppKeyLookup _keys) {
+            keys = _keys;
+            return this;
+        }
+
+        /**
+         * @param _netId the 24 bits NetID
+         * @return this builder
+         */
+        public Builder setNetId(int _netId) {
+            netId = _netId;
+            return this;
+        }
+
+        public Builder setDlSettings(byte _dlSettings) {
+            dlSettings = _dlSettings;
+            return this;
+        }
+
+        public Builder setRxDelay(byte _rxDelay) {
+            rxDelay = _rxDelay;
+            return this;
+        }
+
+        /**
+         * @param _cfList the 16 bytes CFList sent in every join accept, or
+         * null
+         * @return this builder
+         */
+        public Builder setCfList(byte[] _cfList) {
+            cfList = _cfList;
+            return this;
+        }
+
+        /**
+         * @param _nonces rejects replayed DevNonces, or null to accept all
+         * @return this builder
+         */
+        public Builder setDevNonceTracker(DevNonceTracker _nonces) {
+            nonces = _nonces;
+            return this;
+        }
+
+        /**
+         * @param _appNonce the first AppNonce, incremented for each join
+         * @return this builder
+         */
+        public Builder setAppNonce(int _appNonce) {
+            appNonce = _appNonce;
+            return this;
+        }
+
+        public JoinServer build() {
+            if (used) {
+                throw new RuntimeException("This builder has already been used");
+            }
+            if (keys == null) {
+                throw new IllegalArgumentException("Missing appKeyLookup");
+            }
+            if (netId == null) {
+                throw new IllegalArgumentException("Missing netId");
+            }
+            if ((netId & ~0xffffff) != 0) {
+                throw new IllegalArgumentException("Invalid netId");
+            }
+            if (cfList != null && cfList.length != 16) {
+                throw new IllegalArgumentException("Invalid cfList");
+            }
+            if (cfList != null) {
+                cfList = cfList.clone();
+            }
+            used = true;
+            return new JoinServer(this);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.mac;
+
+import be.romaincambier.lorawan.Direction;
+import be.romaincambier.lorawan.MType;
+import be.romaincambier.lorawan.PacketView;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Cursor over the MAC commands of a FOpts field or of a decrypted FPort 0
+ * payload. The commands are read in place: a single reader can walk every
+ * frame of a stream without allocating.
+ * <p>
+ * {@link #next()} moves to the next command, after which {@link #cid()}
+ * and the accessors of that command are valid. Accessors of another command
+ * throw {@link IllegalStateException}. A reader is not thread-safe.
+ *
+ * @author Romain Cambier
+ */
+public final class MacCommandReader {
+
+    private byte[] array;
+    private ByteBuffer buffer;
+    private int position;
+    private int end;
+    private Direction direction;
+    private int cid = -1;
+    private int payload;
+
+    /**
+     * Walks the FOpts of a data frame.
+     *
+     * @param _view the frame
+     * @return this reader
+     */
+    public MacCommandReader reset(PacketView _view) {
+        MType mType = _view.mType();
+        Direction dir = mType == MType.UNCONF_DATA_UP || mType == MType.CONF_DATA_UP ? Direction.UP : Direction.DOWN;
+        if (_view.array() != null) {
+            return reset(_view.array(), _view.fOptsOffset(), _view.fOptsLen(), dir);
+        }
+        return reset(_view.buffer(), _view.fOptsOffset(), _view.fOptsLen(), dir);
+    }
+
+    /**
+     * @param _commands FOpts, or a decrypted FPort 0 payload
+     * @param _offset index of the first command
+     * @param _length length of the commands
+     * @param _direction direction of the frame carrying the commands
+     * @return this reader
+     */
+    public MacCommandReader reset(byte[] _commands, int _offset, int _length, Direction _direction) {
+        array = _commands;
+        buffer = null;
+        return reset(_offset, _length, _direction);
+    }
+
+    public MacCommandReader reset(ByteBuffer _commands, int _offset, int _length, Direction _direction) {
+        if (_commands.hasArray()) {
+            return reset(_commands.array(), _commands.arrayOffset() + _offset, _length, _direction);
+        }
+        array = null;
+        buffer = _commands;
+        return reset(_offset, _length, _direction);
+    }
+
+    private MacCommandReader reset(int _offset, int _length, Direction _direction) {
+        if (_direction == null) {
+            throw new IllegalArgumentException("Missing direction");
+        }
+        position = _offset;
+        end = _offset + _length;
+        direction = _direction;
+        cid = -1;
+        return this;
+    }
+
+    /**
+     * Moves to the next command.
+     *
+     * @return false if there is no command left
+     * @throws MalformedPacketException if the command is unknown or
+     * truncated. Proprietary commands can not be skipped and are reported
+     * as unknown.
+     */
+    public boolean next() throws MalformedPacketException {
+        if (position >= end) {
+            cid = -1;
+            return false;
+        }
+        int c = get(position) & 0xff;
+        int length = MacCommands.payloadLength(c, direction);
+        if (length < 0) {
+            cid = -1;
+            position = end;
+            throw new MalformedPacketException("unknown mac command " + c);
+        }
+        if (position + 1 + length > end) {
+            cid = -1;
+            position = end;
+            throw new MalformedPacketException("can not read mac command " + c);
+        }
+        cid = c;
+        payload = position + 1;
+        position = payload + length;
+        return true;
+    }
+
+    private byte get(int _index) {
+        return array != null ? array[_index] : buffer.get(_index);
+    }
+
+    private int u8(int _i) {
+        return get(payload + _i) & 0xff;
+    }
+
+    private int u16(int _i) {
+        return u8(_i) | u8(_i + 1) << 8;
+    }
+
+    private int u24(int _i) {
+        return u16(_i) | u8(_i + 2) << 16;
+    }
+
+    private int expect(int _cid, Direction _direction) {
+        if (cid != _cid || direction != _direction) {
+            throw new IllegalStateException("Not the current mac command: " + _cid + " " + _direction);
+        }
+        return payload;
+    }
+
+    /**
+     * @return the identifier of the current command, -1 if there is none
+     */
+    public int cid() {
+        return cid;
+    }
+
+    public Direction direction() {
+        return direction;
+    }
+
+    /**
+     * @return the offset of the payload of the current command
+     */
+    public int payloadOffset() {
+        return payload;
+    }
+
+    public int payloadLength() {
+        return MacCommands.payloadLength(cid, direction);
+    }
+
+    // uplink answers and requests
+    public boolean linkAdrPowerAck() {
+        expect(MacCommands.LINK_ADR, Direction.UP);
+        return (u8(0) & 0x04) != 0;
+    }
+
+    public boolean linkAdrDataRateAck() {
+        expect(MacCommands.LINK_ADR, Direction.UP);
+        return (u8(0) & 0x02) != 0;
+    }
+
+    public boolean linkAdrChannelMaskAck() {
+        expect(MacCommands.LINK_ADR, Direction.UP);
+        return (u8(0) & 0x01) != 0;
+    }
+
+    public boolean rxParamSetupRx1DrOffsetAck() {
+        expect(MacCommands.RX_PARAM_SETUP, Direction.UP);
+        return (u8(0) & 0x04) != 0;
+    }
+
+    public boolean rxParamSetupRx2DataRateAck() {
+        expect(MacCommands.RX_PARAM_SETUP, Direction.UP);
+        return (u8(0) & 0x02) != 0;
+    }
+
+    public boolean rxParamSetupChannelAck() {
+        expect(MacCommands.RX_PARAM_SETUP, Direction.UP);
+        return (u8(0) & 0x01) != 0;
+    }
+
+    /**
+     * @return 0 if on external power, 1 to 254 from empty to full, 255 if
+     * unknown
+     */
+    public int devStatusBattery() {
+        expect(MacCommands.DEV_STATUS, Direction.UP);
+        return u8(0);
+    }
+
+    /**
+     * @return the SNR margin of the last DevStatusReq, -32 to 31 dB
+     */
+    public int devStatusMargin() {
+        expect(MacCommands.DEV_STATUS, Direction.UP);
+        return (u8(1) << 26) >> 26;
+    }
+
+    public boolean newChannelDataRateRangeOk() {
+        expect(MacCommands.NEW_CHANNEL, Direction.UP);
+        return (u8(0) & 0x02) != 0;
+    }
+
+    public boolean newChannelFrequencyOk() {
+        expect(MacCommands.NEW_CHANNEL, Direction.UP);
+        return (u8(0) & 0x01) != 0;
+    }
+
+    public boolean dlChannelUplinkFrequencyExists() {
+        expect(MacCommands.DL_CHANNEL, Direction.UP);
+        return (u8(0) & 0x02) != 0;
+    }
+
+    public boolean dlChannelFrequencyOk() {
+        expect(MacCommands.DL_CHANNEL, Direction.UP);
+        return (u8(0) & 0x01) != 0;
+    }
+
+    // downlink answers and requests
+    public int linkCheckMargin() {
+        expect(MacCommands.LINK_CHECK, Direction.DOWN);
+        return u8(0);
+    }
+
+    public int linkCheckGatewayCount() {
+        expect(MacCommands.LINK_CHECK, Direction.DOWN);
+        return u8(1);
+    }
+
+    public int linkAdrDataRate() {
+        expect(MacCommands.LINK_ADR, Direction.DOWN);
+        return u8(0) >> 4;
+    }
+
+    public int linkAdrTxPower() {
+        expect(MacCommands.LINK_ADR, Direction.DOWN);
+        return u8(0) & 0xf;
+    }
+
+    public int linkAdrChannelMask() {
+        expect(MacCommands.LINK_ADR, Direction.DOWN);
+        return u16(1);
+    }
+
+    public int linkAdrChannelMaskControl() {
+        expect(MacCommands.LINK_ADR, Direction.DOWN);
+        return (u8(3) >> 4) & 0x7;
+    }
+
+    public int linkAdrNbTrans() {
+        expect(MacCommands.LINK_ADR, Direction.DOWN);
+        return u8(3) & 0xf;
+    }
+
+    public int dutyCycleMaxDutyCycle() {
+        expect(MacCommands.DUTY_CYCLE, Direction.DOWN);
+        return u8(0) & 0xf;
+    }
+
+    public int rxParamSetupRx1DrOffset() {
+        expect(MacCommands.RX_PARAM_SETUP, Direction.DOWN);
+        return (u8(0) >> 4) & 0x7;
+    }
+
+    public int rxParamSetupRx2DataRate() {
+        expect(MacCommands.RX_PARAM_SETUP, Direction.DOWN);
+        return u8(0) & 0xf;
+    }
+
+    /**
+     * @return the RX2 frequency, in Hz
+     */
+    public long rxParamSetupFrequency() {
+        expect(MacCommands.RX_PARAM_SETUP, Direction.DOWN);
+        return u24(1) * 100L;
+    }
+
+    public int newChannelIndex() {
+        expect(MacCommands.NEW_CHANNEL, Direction.DOWN);
+        return u8(0);
+    }
+
+    /**
+     * @return the channel frequency, in Hz, 0 to disable the channel
+     */
+    public long newChannelFrequency() {
+        expect(MacCommands.NEW_CHANNEL, Direction.DOWN);
+        return u24(1) * 100L;
+    }
+
+    public int newChannelMaxDataRate() {
+        expect(MacCommands.NEW_CHANNEL, Direction.DOWN);
+        return u8(4) >> 4;
+    }
+
+    public int newChannelMinDataRate() {
+        expect(MacCommands.NEW_CHANNEL, Direction.DOWN);
+        return u8(4) & 0xf;
+    }
+
+    /**
+     * @return the RX1 delay, in seconds
+     */
+    public int rxTimingSetupDelay() {
+        expect(MacCommands.RX_TIMING_SETUP, Direction.DOWN);
+        return Math.max(1, u8(0) & 0xf);
+    }
+
+    public boolean txParamSetupDownlinkDwellTime() {
+        expect(MacCommands.TX_PARAM_SETUP, Direction.DOWN);
+        return (u8(0) & 0x20) != 0;
+    }
+
+    public boolean txParamSetupUplinkDwellTime() {
+        expect(MacCommands.TX_PARAM_SETUP, Direction.DOWN);
+        return (u8(0) & 0x10) != 0;
+    }
+
+    public int txParamSetupMaxEirp() {
+        expect(MacCommands.TX_PARAM_SETUP, Direction.DOWN);
+        return u8(0) & 0xf;
+    }
+
+    public int dlChannelIndex() {
+        expect(MacCommands.DL_CHANNEL, Direction.DOWN);
+        return u8(0);
+    }
+
+    /**
+     * @return the downlink frequency, in Hz
+     */
+    public long dlChannelFrequency() {
+        expect(MacCommands.DL_CHANNEL, Direction.DOWN);
+        return u24(1) * 100L;
+    }
+
+    /**
+     * @return the seconds since the GPS epoch
+     */
+    public long deviceTimeSeconds() {
+        expect(MacCommands.DEVICE_TIME, Direction.DOWN);
+        return (u16(0) | u16(2) << 16) & 0xffffffffL;
+    }
+
+    /**
+     * @return the fractional second, in 1/256 s
+     */
+    public int deviceTimeFraction() {
+        expect(MacCommands.DEVICE_TIME, Direction.DOWN);
+        return u8(4);
+    }
+}
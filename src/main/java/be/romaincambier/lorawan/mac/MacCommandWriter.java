@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.mac;
+
+import be.romaincambier.lorawan.Direction;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes MAC commands at the position of a buffer, typically the FOpts
+ * region of a frame being built. A single writer can be reset for every
+ * frame. A writer is not thread-safe.
+ *
+ * @author Romain Cambier
+ */
+public final class MacCommandWriter {
+
+    /**
+     * Maximum length of the FOpts field.
+     */
+    public static final int MAX_FOPTS_LENGTH = 15;
+
+    private ByteBuffer dst;
+    private int start;
+    private int limit;
+
+    /**
+     * @param _dst the buffer, written from its position
+     * @param _maxLength maximum number of bytes to write, e.g.
+     * {@link #MAX_FOPTS_LENGTH}
+     * @return this writer
+     */
+    public MacCommandWriter reset(ByteBuffer _dst, int _maxLength) {
+        if (_dst == null) {
+            throw new IllegalArgumentException("Missing dst");
+        }
+        if (_maxLength < 0) {
+            throw new IllegalArgumentException("Invalid maxLength");
+        }
+        dst = _dst;
+        start = _dst.position();
+        limit = start + Math.min(_maxLength, _dst.remaining());
+        return this;
+    }
+
+    /**
+     * @return the number of bytes written since the last reset
+     */
+    public int length() {
+        return dst.position() - start;
+    }
+
+    /**
+     * @param _cid a command identifier
+     * @param _direction the direction of the frame
+     * @return true if the command still fits
+     */
+    public boolean fits(int _cid, Direction _direction) {
+        int length = MacCommands.payloadLength(_cid, _direction);
+        return length >= 0 && dst.position() + 1 + length <= limit;
+    }
+
+    private ByteBuffer command(int _cid, Direction _direction) {
+        if (!fits(_cid, _direction)) {
+            throw new BufferOverflowException();
+        }
+        return dst.put((byte) _cid);
+    }
+
+    private static int frequency(long _frequency) {
+        if (_frequency < 0 || _frequency % 100 != 0 || _frequency / 100 > 0xffffff) {
+            throw new IllegalArgumentException("Invalid frequency");
+        }
+        return (int) (_frequency / 100);
+    }
+
+    private static void putFrequency(ByteBuffer _bb, int _f) {
+        _bb.put((byte) _f).put((byte) (_f >> 8)).put((byte) (_f >> 16));
+    }
+
+    private static int bit(boolean _b, int _bit) {
+        return _b ? 1 << _bit : 0;
+    }
+
+    // downlink answers and requests
+    public MacCommandWriter linkCheckAns(int _margin, int _gatewayCount) {
+        command(MacCommands.LINK_CHECK, Direction.DOWN).put((byte) _margin).put((byte) _gatewayCount);
+        return this;
+    }
+
+    public MacCommandWriter linkAdrReq(int _dataRate, int _txPower, int _channelMask, int _channelMaskControl, int _nbTrans) {
+        command(MacCommands.LINK_ADR, Direction.DOWN)
+                .put((byte) ((_dataRate & 0xf) << 4 | (_txPower & 0xf)))
+                .put((byte) _channelMask).put((byte) (_channelMask >> 8))
+                .put((byte) ((_channelMaskControl & 0x7) << 4 | (_nbTrans & 0xf)));
+        return this;
+    }
+
+    public MacCommandWriter dutyCycleReq(int _maxDutyCycle) {
+        command(MacCommands.DUTY_CYCLE, Direction.DOWN).put((byte) (_maxDutyCycle & 0xf));
+        return this;
+    }
+
+    /**
+     * @param _rx1DrOffset the RX1 data rate offset
+     * @param _rx2DataRate the RX2 data rate
+     * @param _frequency the RX2 frequency, in Hz, multiple of 100
+     * @return this writer
+     */
+    public MacCommandWriter rxParamSetupReq(int _rx1DrOffset, int _rx2DataRate, long _frequency) {
+        int f = frequency(_frequency);
+        ByteBuffer bb = command(MacCommands.RX_PARAM_SETUP, Direction.DOWN);
+        bb.put((byte) ((_rx1DrOffset & 0x7) << 4 | (_rx2DataRate & 0xf)));
+        putFrequency(bb, f);
+        return this;
+    }
+
+    public MacCommandWriter devStatusReq() {
+        command(MacCommands.DEV_STATUS, Direction.DOWN);
+        return this;
+    }
+
+    public MacCommandWriter newChannelReq(int _index, long _frequency, int _minDataRate, int _maxDataRate) {
+        int f = frequency(_frequency);
+        ByteBuffer bb = command(MacCommands.NEW_CHANNEL, Direction.DOWN);
+        bb.put((byte) _index);
+        putFrequency(bb, f);
+        bb.put((byte) ((_maxDataRate & 0xf) << 4 | (_minDataRate & 0xf)));
+        return this;
+    }
+
+    public MacCommandWriter rxTimingSetupReq(int _delay) {
+        command(MacCommands.RX_TIMING_SETUP, Direction.DOWN).put((byte) (_delay & 0xf));
+        return this;
+    }
+
+    public MacCommandWriter txParamSetupReq(boolean _downlinkDwellTime, boolean _uplinkDwellTime, int _maxEirp) {
+        command(MacCommands.TX_PARAM_SETUP, Direction.DOWN)
+                .put((byte) (bit(_downlinkDwellTime, 5) | bit(_uplinkDwellTime, 4) | (_maxEirp & 0xf)));
+        return this;
+    }
+
+    public MacCommandWriter dlChannelReq(int _index, long _frequency) {
+        int f = frequency(_frequency);
+        ByteBuffer bb = command(MacCommands.DL_CHANNEL, Direction.DOWN);
+        bb.put((byte) _index);
+        putFrequency(bb, f);
+        return this;
+    }
+
+    public MacCommandWriter deviceTimeAns(long _seconds, int _fraction) {
+        command(MacCommands.DEVICE_TIME, Direction.DOWN)
+                .put((byte) _seconds).put((byte) (_seconds >> 8)).put((byte) (_seconds >> 16)).put((byte) (_seconds >> 24))
+                .put((byte) _fraction);
+        return this;
+    }
+
+    // uplink answers and requests
+    public MacCommandWriter linkCheckReq() {
+        command(MacCommands.LINK_CHECK, Direction.UP);
+        return this;
+    }
+
+    public MacCommandWriter linkAdrAns(boolean _powerAck, boolean _dataRateAck, boolean _channelMaskAck) {
+        command(MacCommands.LINK_ADR, Direction.UP).put((byte) (bit(_powerAck, 2) | bit(_dataRateAck, 1) | bit(_channelMaskAck, 0)));
+        return this;
+    }
+
+    public MacCommandWriter dutyCycleAns() {
+        command(MacCommands.DUTY_CYCLE, Direction.UP);
+        return this;
+    }
+
+    public MacCommandWriter rxParamSetupAns(boolean _rx1DrOffsetAck, boolean _rx2DataRateAck, boolean _channelAck) {
+        command(MacCommands.RX_PARAM_SETUP, Direction.UP).put((byte) (bit(_rx1DrOffsetAck, 2) | bit(_rx2DataRateAck, 1) | bit(_channelAck, 0)));
+        return this;
+    }
+
+    public MacCommandWriter devStatusAns(int _battery, int _margin) {
+        command(MacCommands.DEV_STATUS, Direction.UP).put((byte) _battery).put((byte) (_margin & 0x3f));
+        return this;
+    }
+
+    public MacCommandWriter newChannelAns(boolean _dataRateRangeOk, boolean _frequencyOk) {
+        command(MacCommands.NEW_CHANNEL, Direction.UP).put((byte) (bit(_dataRateRangeOk, 1) | bit(_frequencyOk, 0)));
+        return this;
+    }
+
+    public MacCommandWriter rxTimingSetupAns() {
+        command(MacCommands.RX_TIMING_SETUP, Direction.UP);
+        return this;
+    }
+
+    public MacCommandWriter txParamSetupAns() {
+        command(MacCommands.TX_PARAM_SETUP, Direction.UP);
+        return this;
+    }
+
+    public MacCommandWriter dlChannelAns(boolean _uplinkFrequencyExists, boolean _frequencyOk) {
+        command(MacCommands.DL_CHANNEL, Direction.UP).put((byte) (bit(_uplinkFrequencyExists, 1) | bit(_frequencyOk, 0)));
+        return this;
+    }
+
+    public MacCommandWriter deviceTimeReq() {
+        command(MacCommands.DEVICE_TIME, Direction.UP);
+        return this;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.mac;
+
+import be.romaincambier.lorawan.Direction;
+
+/**
+ * Identifiers and payload lengths of the LoRaWAN 1.0.x MAC commands.
+ *
+ * @author Romain Cambier
+ */
+public final class MacCommands {
+
+    public static final int LINK_CHECK = 0x02;
+    public static final int LINK_ADR = 0x03;
+    public static final int DUTY_CYCLE = 0x04;
+    public static final int RX_PARAM_SETUP = 0x05;
+    public static final int DEV_STATUS = 0x06;
+    public static final int NEW_CHANNEL = 0x07;
+    public static final int RX_TIMING_SETUP = 0x08;
+    public static final int TX_PARAM_SETUP = 0x09;
+    public static final int DL_CHANNEL = 0x0A;
+    public static final int DEVICE_TIME = 0x0D;
+
+    /**
+     * Lowest CID of the proprietary commands, whose length is unknown.
+     */
+    public static final int PROPRIETARY = 0x80;
+
+    // payload length per CID, -1 if undefined
+    private static final byte[] UPLINK = {-1, -1, 0, 1, 0, 1, 2, 1, 0, 0, 1, -1, -1, 0, -1, -1};
+    private static final byte[] DOWNLINK = {-1, -1, 2, 4, 1, 4, 0, 5, 1, 1, 4, -1, -1, 5, -1, -1};
+
+    private MacCommands() {
+    }
+
+    /**
+     * @param _cid the command identifier
+     * @param _direction the direction of the frame carrying the command
+     * @return the length of the payload following the CID, or -1 if the
+     * command is unknown
+     */
+    public static int payloadLength(int _cid, Direction _direction) {
+        if (_cid < 0 || _cid >= UPLINK.length) {
+            return -1;
+        }
+        return _direction == Direction.UP ? UPLINK[_cid] : DOWNLINK[_cid];
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed power-of-two buckets: bucket i counts the
+ * values in [2^(i-1), 2^i), bucket 0 counts 0. Recording is a couple of
+ * {@link LongAdder} increments, safe from any thread.
+ *
+ * @author Romain Cambier
+ */
+public final class Histogram {
+
+    public static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param _value a non-negative value, e.g. nanoseconds
+     */
+    public void record(long _value) {
+        long value = Math.max(_value, 0);
+        buckets[Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1)].increment();
+        sum.add(value);
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        sum.reset();
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(counts, sum.sum());
+    }
+
+    /**
+     * Copy of the buckets at some point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long sum;
+        private final long count;
+
+        private Snapshot(long[] _counts, long _sum) {
+            counts = _counts;
+            sum = _sum;
+            long c = 0;
+            for (long v : _counts) {
+                c += v;
+            }
+            count = c;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param _bucket the bucket index
+         * @return the number of values in the bucket
+         */
+        public long getBucketCount(int _bucket) {
+            return counts[_bucket];
+        }
+
+        /**
+         * @param _bucket the bucket index
+         * @return the exclusive upper bound of the bucket
+         */
+        public static long getBucketBound(int _bucket) {
+            return _bucket >= 63 ? Long.MAX_VALUE : 1L << _bucket;
+        }
+
+        /**
+         * @param _percentile between 0 and 100
+         * @return the upper bound of the bucket holding the percentile, 0 if
+         * the histogram is empty
+         */
+        public long getPercentile(double _percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * _percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return getBucketBound(i);
+                }
+            }
+            return getBucketBound(BUCKETS - 1);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.metrics;
+
+import be.romaincambier.lorawan.MType;
+import be.romaincambier.lorawan.ParseStatus;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional instrumentation of the packet classes: latency histograms per
+ * stage and MType, MIC failures per MType and parse failures per
+ * {@link ParseStatus}, or per message for the failures without a status.
+ * <p>
+ * Metrics are enabled with the system property {@code lorawan.metrics}.
+ * The switch is a static final constant, so when it is off the JIT removes
+ * the instrumented branches entirely. Instrumented code reads:
+ * <pre>
+ * long start = Metrics.ENABLED ? System.nanoTime() : 0;
+ * ...
+ * if (Metrics.ENABLED) {
+ *     Metrics.record(Metrics.Stage.MIC, mType, start);
+ * }
+ * </pre>
+ *
+ * @author Romain Cambier
+ */
+public final class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("lorawan.metrics");
+
+    public static enum Stage {
+        PARSE,
+        MIC,
+        DECRYPT
+    }
+
+    private static final LongAdder[] PARSE_FAILURES = new LongAdder[ParseStatus.values().length];
+
+    /**
+     * Maximum number of distinct failure reasons, the others are counted
+     * under {@link #OTHER_REASON}.
+     */
+    public static final int MAX_REASONS = 256;
+    public static final String OTHER_REASON = "other";
+
+    private static final int MTYPES = 8;
+
+    private static final Histogram[] LATENCIES = new Histogram[Stage.values().length * MTYPES];
+    private static final LongAdder[] MIC_FAILURES = new LongAdder[MTYPES];
+    private static final ConcurrentHashMap<String, LongAdder> FAILURES = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < LATENCIES.length; i++) {
+            LATENCIES[i] = new Histogram();
+        }
+        for (int i = 0; i < MTYPES; i++) {
+            MIC_FAILURES[i] = new LongAdder();
+        }
+        for (int i = 0; i < PARSE_FAILURES.length; i++) {
+            PARSE_FAILURES[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    private static int index(Stage _stage, MType _mType) {
+        return _stage.ordinal() * MTYPES + _mType.value();
+    }
+
+    /**
+     * Records the latency of a stage.
+     *
+     * @param _stage the stage
+     * @param _mType the MType of the frame
+     * @param _start the {@link System#nanoTime()} at the start of the stage
+     */
+    public static void record(Stage _stage, MType _mType, long _start) {
+        LATENCIES[index(_stage, _mType)].record(System.nanoTime() - _start);
+    }
+
+    public static void micFailed(MType _mType) {
+        MIC_FAILURES[_mType.value()].increment();
+    }
+
+    public static void failure(ParseStatus _status) {
+        PARSE_FAILURES[_status.ordinal()].increment();
+    }
+
+    /**
+     * @param _reason the message of a failure without status
+     */
+    public static void failure(String _reason) {
+        String reason = _reason == null ? OTHER_REASON : _reason;
+        LongAdder counter = FAILURES.get(reason);
+        if (counter == null) {
+            if (FAILURES.size() >= MAX_REASONS) {
+                reason = OTHER_REASON;
+            }
+            counter = FAILURES.computeIfAbsent(reason, r -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    public static void reset() {
+        for (Histogram histogram : LATENCIES) {
+            histogram.reset();
+        }
+        for (LongAdder counter : MIC_FAILURES) {
+            counter.reset();
+        }
+        for (LongAdder counter : PARSE_FAILURES) {
+            counter.reset();
+        }
+        FAILURES.clear();
+    }
+
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    /**
+     * Copy of the metrics at some point in time, to be scraped.
+     */
+    public static final class Snapshot {
+
+        private final Histogram.Snapshot[] latencies = new Histogram.Snapshot[LATENCIES.length];
+        private final long[] micFailures = new long[MTYPES];
+        private final long[] parseFailures = new long[PARSE_FAILURES.length];
+        private final Map<String, Long> failures;
+
+        private Snapshot() {
+            for (int i = 0; i < LATENCIES.length; i++) {
+                latencies[i] = LATENCIES[i].snapshot();
+            }
+            for (int i = 0; i < MTYPES; i++) {
+                micFailures[i] = MIC_FAILURES[i].sum();
+            }
+            for (int i = 0; i < PARSE_FAILURES.length; i++) {
+                parseFailures[i] = PARSE_FAILURES[i].sum();
+            }
+            Map<String, Long> f = new HashMap<>();
+            for (Map.Entry<String, LongAdder> e : FAILURES.entrySet()) {
+                f.put(e.getKey(), e.getValue().sum());
+            }
+            failures = Collections.unmodifiableMap(f);
+        }
+
+        /**
+         * @param _stage the stage
+         * @param _mType the MType
+         * @return the latencies, in nanoseconds
+         */
+        public Histogram.Snapshot getLatency(Stage _stage, MType _mType) {
+            return latencies[index(_stage, _mType)];
+        }
+
+        /**
+         * @param _stage the stage
+         * @param _mType the MType
+         * @return how many times the stage ran
+         */
+        public long getCount(Stage _stage, MType _mType) {
+            return latencies[index(_stage, _mType)].getCount();
+        }
+
+        public long getMicFailures(MType _mType) {
+            return micFailures[_mType.value()];
+        }
+
+        public long getFailures(ParseStatus _status) {
+            return parseFailures[_status.ordinal()];
+        }
+
+        /**
+         * @return the number of failures without status, per message
+         */
+        public Map<String, Long> getFailures() {
+            return failures;
+        }
+
+        public long getFailureCount() {
+            long count = 0;
+            for (long v : parseFailures) {
+                count += v;
+            }
+            for (long v : failures.values()) {
+                count += v;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.scheduler;
+
+import be.romaincambier.lorawan.DownlinkEncoder;
+import be.romaincambier.lorawan.MACPayload;
+import be.romaincambier.lorawan.MType;
+import be.romaincambier.lorawan.PacketView;
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the Class A downlinks answering uplinks in their RX1 or RX2 window.
+ * <p>
+ * Uplinks are scheduled from any thread through a lock-free queue. A single
+ * worker thread holds them on a hashed timing wheel and, a lead time before
+ * the window, lets the {@link DownlinkSource} fill the downlink, encodes it
+ * and hands it to the {@link GatewaySink}.
+ * <p>
+ * RX1 is used whenever its send time has not passed by more than half the
+ * lead time. Otherwise the downlink falls back to RX2, and counts as a late
+ * RX1, or is counted as missed if RX2 is late too. The jitter is the delay
+ * between the planned send time and the actual one, bounded by the tick
+ * duration when the worker keeps up.
+ *
+ * @author Romain Cambier
+ */
+public final class ClassAScheduler implements Closeable {
+
+    public static final long DEFAULT_RX1_DELAY = TimeUnit.SECONDS.toNanos(1);
+    public static final long DEFAULT_LEAD_TIME = TimeUnit.MILLISECONDS.toNanos(100);
+    public static final long DEFAULT_TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Pending CLOSED = new Pending();
+
+    private static final class Pending {
+
+        private int devAddr;
+        private boolean confirmed;
+        private long gatewayEui;
+        private long tmst;
+        private long received;
+        private int window;
+        private long tick;
+        private Pending next;
+    }
+
+    private final GatewaySink sink;
+    private final DownlinkSource source;
+    private final long rx1Delay;
+    private final long leadTime;
+    private final long tickNanos;
+    private final Pending[] wheel;
+    private final int mask;
+    private final long start;
+    private final AtomicReference<Pending> inbound = new AtomicReference<>();
+    private final DownlinkEncoder encoder = new DownlinkEncoder();
+    private final ByteBuffer frame = ByteBuffer.allocateDirect(256);
+    private final Thread worker;
+    private long currentTick;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder rx1 = new LongAdder();
+    private final LongAdder rx2 = new LongAdder();
+    private final LongAdder lateRx1 = new LongAdder();
+    private final LongAdder missed = new LongAdder();
+    private final LongAdder empty = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder jitterSum = new LongAdder();
+    private final AtomicLong jitterMax = new AtomicLong();
+
+    public ClassAScheduler(GatewaySink _sink, DownlinkSource _source) {
+        this(_sink, _source, DEFAULT_RX1_DELAY, DEFAULT_LEAD_TIME, DEFAULT_TICK);
+    }
+
+    /**
+     * @param _sink receives the encoded downlinks
+     * @param _source fills the downlinks
+     * @param _rx1Delay delay between the end of the uplink and RX1, in
+     * nanoseconds. RX2 opens one second later.
+     * @param _leadTime how long before the window the downlink is handed to
+     * the sink, in nanoseconds
+     * @param _tick resolution of the timing wheel, in nanoseconds
+     */
+    public ClassAScheduler(GatewaySink _sink, DownlinkSource _source, long _rx1Delay, long _leadTime, long _tick) {
+        if (_sink == null) {
+            throw new IllegalArgumentException("Missing sink");
+        }
+        if (_source == null) {
+            throw new IllegalArgumentException("Missing source");
+        }
+        if (_tick <= 0) {
+            throw new IllegalArgumentException("Invalid tick");
+        }
+        if (_leadTime < 0 || _leadTime >= _rx1Delay) {
+            throw new IllegalArgumentException("Invalid leadTime");
+        }
+        sink = _sink;
+        source = _source;
+        rx1Delay = _rx1Delay;
+        leadTime = _leadTime;
+        tickNanos = _tick;
+        // the wheel spans RX2 in a single round
+        long ticks = (_rx1Delay + TimeUnit.SECONDS.toNanos(1)) / _tick + 1;
+        int size = Integer.highestOneBit((int) Math.min(ticks, 1 << 20) - 1) << 1;
+        wheel = new Pending[Math.max(size, 2)];
+        mask = wheel.length - 1;
+        start = System.nanoTime();
+        worker = new Thread(this::run, "class-a-scheduler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules the answer to a data uplink.
+     *
+     * @param _uplink the uplink
+     * @param _received when the uplink ended, from {@link System#nanoTime()}
+     * @param _gatewayEui the gateway which received it
+     * @param _tmst the concentrator timestamp of the uplink, in microseconds
+     * @return false if the scheduler is closed
+     * @throws MalformedPacketException if the MHDR is invalid
+     */
+    public boolean schedule(PhyPayload _uplink, long _received, long _gatewayEui, long _tmst) throws MalformedPacketException {
+        MType mType = _uplink.getMHDR().getMType();
+        if (mType != MType.UNCONF_DATA_UP && mType != MType.CONF_DATA_UP) {
+            throw new IllegalArgumentException("Not a data uplink");
+        }
+        int devAddr = ((MACPayload) _uplink.getMessage()).getFhdr().getDevAddrInt();
+        return schedule(devAddr, mType == MType.CONF_DATA_UP, _received, _gatewayEui, _tmst);
+    }
+
+    public boolean schedule(PacketView _uplink, long _received, long _gatewayEui, long _tmst) {
+        MType mType = _uplink.mType();
+        if (mType != MType.UNCONF_DATA_UP && mType != MType.CONF_DATA_UP) {
+            throw new IllegalArgumentException("Not a data uplink");
+        }
+        return schedule(_uplink.devAddr(), mType == MType.CONF_DATA_UP, _received, _gatewayEui, _tmst);
+    }
+
+    private boolean schedule(int _devAddr, boolean _confirmed, long _received, long _gatewayEui, long _tmst) {
+        Pending pending = new Pending();
+        pending.devAddr = _devAddr;
+        pending.confirmed = _confirmed;
+        pending.received = _received;
+        pending.gatewayEui = _gatewayEui;
+        pending.tmst = _tmst;
+        while (true) {
+            Pending head = inbound.get();
+            if (head == CLOSED) {
+                return false;
+            }
+            pending.next = head;
+            if (inbound.compareAndSet(head, pending)) {
+                scheduled.increment();
+                LockSupport.unpark(worker);
+                return true;
+            }
+        }
+    }
+
+    private long sendTime(Pending _pending, int _window) {
+        return _pending.received + rx1Delay + (_window - 1) * TimeUnit.SECONDS.toNanos(1) - leadTime;
+    }
+
+    private long tickOf(long _nanos) {
+        return (_nanos - start) / tickNanos;
+    }
+
+    private void run() {
+        while (true) {
+            Pending batch = inbound.get();
+            if (batch == CLOSED) {
+                return;
+            }
+            if (batch != null && inbound.compareAndSet(batch, null)) {
+                long now = System.nanoTime();
+                for (Pending pending = batch, next; pending != null; pending = next) {
+                    next = pending.next;
+                    plan(pending, now);
+                }
+            }
+            long target = tickOf(System.nanoTime());
+            while (currentTick <= target) {
+                expire(currentTick++);
+            }
+            long wait = start + currentTick * tickNanos - System.nanoTime();
+            if (wait > 0 && inbound.get() == null) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    private void plan(Pending _pending, long _now) {
+        long maxLateness = leadTime / 2;
+        if (_now - sendTime(_pending, 1) <= maxLateness) {
+            insert(_pending, 1);
+        } else if (_now - sendTime(_pending, 2) <= maxLateness) {
+            lateRx1.increment();
+            insert(_pending, 2);
+        } else {
+            missed.increment();
+        }
+    }
+
+    private void insert(Pending _pending, int _window) {
+        _pending.window = _window;
+        _pending.tick = Math.max(tickOf(sendTime(_pending, _window)), currentTick);
+        int bucket = (int) _pending.tick & mask;
+        _pending.next = wheel[bucket];
+        wheel[bucket] = _pending;
+    }
+
+    private void expire(long _tick) {
+        int bucket = (int) _tick & mask;
+        Pending pending = wheel[bucket];
+        wheel[bucket] = null;
+        while (pending != null) {
+            Pending next = pending.next;
+            if (pending.tick <= _tick) {
+                fire(pending);
+            } else {
+                pending.next = wheel[bucket];
+                wheel[bucket] = pending;
+            }
+            pending = next;
+        }
+    }
+
+    private void fire(Pending _pending) {
+        long now = System.nanoTime();
+        long lateness = now - sendTime(_pending, _pending.window);
+        if (lateness > leadTime / 2) {
+            if (_pending.window == 1) {
+                plan(_pending, now);
+            } else {
+                missed.increment();
+            }
+            return;
+        }
+        long jitter = Math.max(lateness, 0);
+        jitterSum.add(jitter);
+        if (jitter > jitterMax.get()) {
+            jitterMax.set(jitter);
+        }
+        try {
+            encoder.reset().setDevAddr(_pending.devAddr).setAck(_pending.confirmed);
+            if (!source.fill(_pending.devAddr, _pending.confirmed, _pending.window, encoder)) {
+                empty.increment();
+                return;
+            }
+            frame.clear();
+            encoder.encode(frame);
+            frame.flip();
+            long delay = TimeUnit.NANOSECONDS.toMicros(rx1Delay) + (_pending.window - 1) * 1000000L;
+            sink.send(_pending.gatewayEui, (_pending.tmst + delay) & 0xffffffffL, _pending.window, frame);
+            (_pending.window == 1 ? rx1 : rx2).increment();
+        } catch (RuntimeException ex) {
+            failed.increment();
+        }
+    }
+
+    /**
+     * Stops the worker. Pending downlinks are dropped.
+     */
+    @Override
+    public void close() {
+        inbound.set(CLOSED);
+        LockSupport.unpark(worker);
+    }
+
+    public long getScheduledCount() {
+        return scheduled.sum();
+    }
+
+    public long getRx1Count() {
+        return rx1.sum();
+    }
+
+    public long getRx2Count() {
+        return rx2.sum();
+    }
+
+    /**
+     * @return how many downlinks missed RX1 and were sent, or tried, in RX2
+     */
+    public long getLateRx1Count() {
+        return lateRx1.sum();
+    }
+
+    /**
+     * @return how many downlinks missed both windows
+     */
+    public long getMissedCount() {
+        return missed.sum();
+    }
+
+    /**
+     * @return how many uplinks had nothing to answer
+     */
+    public long getEmptyCount() {
+        return empty.sum();
+    }
+
+    /**
+     * @return how many downlinks could not be filled, encoded or sent
+     * because the source or the sink threw
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the mean delay between the planned and actual send times, in
+     * nanoseconds
+     */
+    public long getMeanJitter() {
+        long count = rx1.sum() + rx2.sum() + empty.sum() + failed.sum();
+        return count == 0 ? 0 : jitterSum.sum() / count;
+    }
+
+    public long getMaxJitter() {
+        return jitterMax.get();
+    }
+}
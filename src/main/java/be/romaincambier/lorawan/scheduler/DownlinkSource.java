@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.scheduler;
+
+import be.romaincambier.lorawan.DownlinkEncoder;
+
+/**
+ * Fills the downlink answering an uplink, at the last moment so it carries
+ * the latest pending data.
+ *
+ * @author Romain Cambier
+ */
+public interface DownlinkSource {
+
+    /**
+     * Called on the scheduler thread. The encoder is reset, with the DevAddr
+     * set, and the ACK bit set if the uplink was confirmed. The source sets
+     * the keys, the FCnt and the content.
+     *
+     * @param _devAddr the DevAddr of the uplink
+     * @param _confirmed if the uplink must be acknowledged
+     * @param _window 1 for RX1, 2 for RX2
+     * @param _encoder the encoder of the downlink
+     * @return false if nothing must be sent
+     */
+    boolean fill(int _devAddr, boolean _confirmed, int _window, DownlinkEncoder _encoder);
+}
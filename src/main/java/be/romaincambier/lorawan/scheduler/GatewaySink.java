@@ -0,0 +1,46 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.scheduler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands encoded downlinks to the gateway which received the uplink.
+ *
+ * @author Romain Cambier
+ */
+public interface GatewaySink {
+
+    /**
+     * Called on the scheduler thread, ahead of the receive window by the
+     * lead time of the scheduler.
+     *
+     * @param _gatewayEui the gateway
+     * @param _tmst when the gateway must transmit, in microseconds of its
+     * concentrator clock
+     * @param _window 1 for RX1, 2 for RX2
+     * @param _frame the frame, only valid during the call
+     */
+    void send(long _gatewayEui, long _tmst, int _window, ByteBuffer _frame);
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.session;
+
+import be.romaincambier.lorawan.PacketView;
+import be.romaincambier.lorawan.SessionKeys;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Finds which of the sessions sharing a DevAddr sent an uplink, by trying
+ * their NwkSKeys until the MIC matches.
+ * <p>
+ * Candidates are tried by increasing FCnt distance, then from the most
+ * recently seen, so the right session is usually the first one. Each MIC
+ * uses the 32 bits FCnt reconstructed from the last FCnt of the candidate.
+ * Large candidate sets can be verified in parallel on a
+ * {@link ForkJoinPool}, in which case the order is not guaranteed.
+ *
+ * @author Romain Cambier
+ */
+public final class DevAddrResolver {
+
+    private static final Comparator<Ranked> ORDER = Comparator.<Ranked>comparingInt(r -> r.distance).thenComparing(r -> -r.candidate.lastSeen);
+
+    /**
+     * A session sharing the DevAddr of the uplink.
+     */
+    public static final class Candidate {
+
+        private final SessionKeys keys;
+        private final long lastSeen;
+        private final long lastFCnt;
+
+        /**
+         * @param _keys the session keys
+         * @param _lastSeen when the session last sent a frame, in any
+         * monotonic unit
+         * @param _lastFCnt the last FCnt of the session, or
+         * {@link SessionIndex#NO_FCNT}
+         */
+        public Candidate(SessionKeys _keys, long _lastSeen, long _lastFCnt) {
+            if (_keys == null) {
+                throw new IllegalArgumentException("Missing keys");
+            }
+            keys = _keys;
+            lastSeen = _lastSeen;
+            lastFCnt = _lastFCnt;
+        }
+
+        public SessionKeys getKeys() {
+            return keys;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public long getLastFCnt() {
+            return lastFCnt;
+        }
+    }
+
+    public static final class Resolution {
+
+        private final Candidate match;
+        private final int attempts;
+
+        private Resolution(Candidate _match, int _attempts) {
+            match = _match;
+            attempts = _attempts;
+        }
+
+        /**
+         * @return the session which sent the uplink, null if no MIC matched
+         */
+        public Candidate getMatch() {
+            return match;
+        }
+
+        /**
+         * @return the number of MICs computed
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    private static final class Ranked {
+
+        private final Candidate candidate;
+        private final int distance;
+        private final int fCnt;
+
+        private Ranked(Candidate _candidate, int _distance, int _fCnt) {
+            candidate = _candidate;
+            distance = _distance;
+            fCnt = _fCnt;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder resolved = new LongAdder();
+    private final LongAdder unresolved = new LongAdder();
+
+    /**
+     * Creates a resolver trying candidates sequentially.
+     */
+    public DevAddrResolver() {
+        this(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param _pool the pool used for large candidate sets
+     * @param _parallelThreshold number of candidates from which they are
+     * verified in parallel
+     */
+    public DevAddrResolver(ForkJoinPool _pool, int _parallelThreshold) {
+        if (_parallelThreshold < 1) {
+            throw new IllegalArgumentException("Invalid parallelThreshold");
+        }
+        pool = _pool;
+        parallelThreshold = _parallelThreshold;
+    }
+
+    /**
+     * @param _uplink a data uplink
+     * @param _candidates the sessions using the DevAddr of the uplink
+     * @return the matching session and the number of attempts
+     */
+    public Resolution resolve(PacketView _uplink, List<Candidate> _candidates) {
+        int fCnt = _uplink.fCnt16();
+        Ranked[] ranked = new Ranked[_candidates.size()];
+        for (int i = 0; i < ranked.length; i++) {
+            Candidate candidate = _candidates.get(i);
+            int distance = candidate.lastFCnt == SessionIndex.NO_FCNT ? Integer.MAX_VALUE : (fCnt - (int) candidate.lastFCnt) & 0xffff;
+            ranked[i] = new Ranked(candidate, distance, (int) FrameCounterTracker.reconstruct(candidate.lastFCnt, fCnt));
+        }
+        Arrays.sort(ranked, ORDER);
+        Resolution resolution = pool != null && ranked.length >= parallelThreshold
+                ? resolveParallel(_uplink, ranked)
+                : resolveSequential(_uplink, ranked);
+        attempts.add(resolution.attempts);
+        if (resolution.match != null) {
+            resolved.increment();
+        } else {
+            unresolved.increment();
+        }
+        return resolution;
+    }
+
+    private Resolution resolveSequential(PacketView _uplink, Ranked[] _ranked) {
+        for (int i = 0; i < _ranked.length; i++) {
+            if (_uplink.verifyMic(_ranked[i].candidate.keys.getNwkSKey(), _ranked[i].fCnt)) {
+                return new Resolution(_ranked[i].candidate, i + 1);
+            }
+        }
+        return new Resolution(null, _ranked.length);
+    }
+
+    private Resolution resolveParallel(PacketView _uplink, Ranked[] _ranked) {
+        AtomicInteger tries = new AtomicInteger();
+        OptionalInt match;
+        try {
+            match = pool.submit(() -> IntStream.range(0, _ranked.length).parallel()
+                    .filter(i -> {
+                        tries.incrementAndGet();
+                        return _uplink.verifyMic(_ranked[i].candidate.keys.getNwkSKey(), _ranked[i].fCnt);
+                    })
+                    .findAny()).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while resolving DevAddr", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Could not resolve DevAddr", ex.getCause());
+        }
+        return new Resolution(match.isPresent() ? _ranked[match.getAsInt()].candidate : null, tries.get());
+    }
+
+    /**
+     * @return the total number of MICs computed
+     */
+    public long getAttemptCount() {
+        return attempts.sum();
+    }
+
+    public long getResolvedCount() {
+        return resolved.sum();
+    }
+
+    public long getUnresolvedCount() {
+        return unresolved.sum();
+    }
+}
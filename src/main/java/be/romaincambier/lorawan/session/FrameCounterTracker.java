@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.session;
+
+import be.romaincambier.lorawan.PacketView;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reconstructs the 32 bits FCnt of uplinks from the 16 bits sent on air and
+ * rejects replayed frames.
+ * <p>
+ * The last accepted FCnt of each session is the one stored in the
+ * {@link SessionIndex}. A frame is accepted if its reconstructed FCnt is
+ * ahead of it by at most maxGap, and the stored value is only advanced with
+ * compare-and-set, so the tracker can be shared by decoding threads without
+ * locking. When two threads race on the same session, the highest FCnt
+ * wins and the other frame is rejected.
+ *
+ * @author Romain Cambier
+ */
+public final class FrameCounterTracker {
+
+    public static final int DEFAULT_MAX_GAP = 16384;
+
+    public static final long UNKNOWN_DEVICE = -1;
+    public static final long OUT_OF_WINDOW = -2;
+    public static final long MIC_FAILED = -3;
+
+    private static final long MAX_FCNT = 0xffffffffL;
+
+    private final SessionIndex sessions;
+    private final int maxGap;
+    private final boolean acceptRetransmissions;
+    private final ThreadLocal<SessionIndex.Entry> scratch = ThreadLocal.withInitial(SessionIndex.Entry::new);
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder outOfWindow = new LongAdder();
+    private final LongAdder micFailed = new LongAdder();
+
+    public FrameCounterTracker(SessionIndex _sessions) {
+        this(_sessions, DEFAULT_MAX_GAP, false);
+    }
+
+    /**
+     * @param _sessions the sessions holding the last FCnt of each device
+     * @param _maxGap maximum distance between the last FCnt and the next
+     * one, less than 65536
+     * @param _acceptRetransmissions if a frame with the last FCnt is
+     * accepted again (confirmed uplink retransmissions)
+     */
+    public FrameCounterTracker(SessionIndex _sessions, int _maxGap, boolean _acceptRetransmissions) {
+        if (_sessions == null) {
+            throw new IllegalArgumentException("Missing sessions");
+        }
+        if (_maxGap < 1 || _maxGap > 0xffff) {
+            throw new IllegalArgumentException("Invalid maxGap");
+        }
+        sessions = _sessions;
+        maxGap = _maxGap;
+        acceptRetransmissions = _acceptRetransmissions;
+    }
+
+    /**
+     * Replaces the 16 LSB of the last FCnt by the received ones, adding a
+     * roll-over if the result would go backwards. The result exceeds 32
+     * bits if the counter of the session is exhausted.
+     *
+     * @param _lastFCnt the last FCnt, or {@link SessionIndex#NO_FCNT}
+     * @param _fCnt16 the FCnt of the frame
+     * @return the reconstructed FCnt
+     */
+    public static long reconstruct(long _lastFCnt, int _fCnt16) {
+        long low = _fCnt16 & 0xffff;
+        if (_lastFCnt < 0) {
+            return low;
+        }
+        long fCnt = (_lastFCnt & ~0xffffL) | low;
+        if (fCnt < _lastFCnt) {
+            fCnt += 0x10000;
+        }
+        return fCnt;
+    }
+
+    /**
+     * Reconstructs the FCnt of a frame and checks it against the window,
+     * without accepting it.
+     *
+     * @param _slot a slot returned by {@link SessionIndex#slotOf(int)}
+     * @param _fCnt16 the FCnt of the frame
+     * @return the 32 bits FCnt, or {@link #OUT_OF_WINDOW}
+     */
+    public long check(int _slot, int _fCnt16) {
+        return check(sessions.getLastFCnt(_slot), _fCnt16);
+    }
+
+    private long check(long _lastFCnt, int _fCnt16) {
+        long fCnt = reconstruct(_lastFCnt, _fCnt16);
+        if (fCnt > MAX_FCNT) {
+            return OUT_OF_WINDOW;
+        }
+        if (_lastFCnt == SessionIndex.NO_FCNT) {
+            return fCnt;
+        }
+        if (fCnt == _lastFCnt) {
+            return acceptRetransmissions ? fCnt : OUT_OF_WINDOW;
+        }
+        return fCnt - _lastFCnt > maxGap ? OUT_OF_WINDOW : fCnt;
+    }
+
+    /**
+     * Records a FCnt as the last one of a slot, unless a higher one was
+     * recorded meanwhile.
+     *
+     * @param _slot a slot returned by {@link SessionIndex#slotOf(int)}
+     * @param _generation the generation of the slot when it was looked up
+     * @param _fCnt the 32 bits FCnt, as returned by {@link #check(int, int)}
+     * @return false if the FCnt is not ahead of the recorded one, or if the
+     * slot got another session meanwhile
+     */
+    public boolean advance(int _slot, int _generation, long _fCnt) {
+        while (true) {
+            long last = sessions.getLastFCnt(_slot);
+            if (sessions.getGeneration(_slot) != _generation) {
+                return false;
+            }
+            if (last != SessionIndex.NO_FCNT && last >= _fCnt) {
+                return last == _fCnt && acceptRetransmissions;
+            }
+            if (sessions.compareAndSetLastFCnt(_slot, _generation, last, _fCnt)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Looks up the session of an uplink, checks its FCnt and MIC, then
+     * records its FCnt. The FCnt is only recorded once the MIC is verified,
+     * so forged frames can not move the window.
+     *
+     * @param _uplink a data frame
+     * @return the 32 bits FCnt, or {@link #UNKNOWN_DEVICE},
+     * {@link #OUT_OF_WINDOW} or {@link #MIC_FAILED}
+     */
+    public long accept(PacketView _uplink) {
+        SessionIndex.Entry entry = scratch.get();
+        if (!sessions.get(_uplink.devAddr(), entry)) {
+            return UNKNOWN_DEVICE;
+        }
+        long fCnt = check(entry.getLastFCnt(), _uplink.fCnt16());
+        if (fCnt < 0) {
+            outOfWindow.increment();
+            return fCnt;
+        }
+        if (!_uplink.verifyMic(entry.getNwkSKey(), (int) fCnt)) {
+            micFailed.increment();
+            return MIC_FAILED;
+        }
+        if (!advance(entry.getSlot(), entry.getGeneration(), fCnt)) {
+            outOfWindow.increment();
+            return OUT_OF_WINDOW;
+        }
+        accepted.increment();
+        return fCnt;
+    }
+
+    public int getMaxGap() {
+        return maxGap;
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getOutOfWindowCount() {
+        return outOfWindow.sum();
+    }
+
+    public long getMicFailedCount() {
+        return micFailed.sum();
+    }
+}
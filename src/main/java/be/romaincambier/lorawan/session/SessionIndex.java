@@ -0,0 +1,511 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.session;
+
+import be.romaincambier.lorawan.CryptoContextCache;
+import be.romaincambier.lorawan.FHDR;
+import be.romaincambier.lorawan.FRMPayload;
+import be.romaincambier.lorawan.MACPayload;
+import be.romaincambier.lorawan.PacketView;
+import be.romaincambier.lorawan.PhyPayload;
+import be.romaincambier.lorawan.exceptions.MalformedPacketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Session table keyed by the 32 bits DevAddr.
+ * <p>
+ * Sessions are stored off-heap, so millions of devices cost no heap
+ * objects. Each session lives in a fixed-width slot holding its DevAddr,
+ * user flags, NwkSKey and AppSKey (40 bytes). A separate open-addressing
+ * table maps DevAddrs to slots (8 bytes per entry). Removals shift the
+ * following table entries back instead of leaving tombstones, so lookups of
+ * unknown DevAddrs stay short however many sessions were removed. A slot
+ * does not move while its session exists.
+ * <p>
+ * The last FCnt of each slot is kept in an on-heap {@link AtomicLongArray}
+ * (8 bytes) so it can be updated with CAS without touching the table lock.
+ * It is packed with a generation, bumped whenever the slot gets a new
+ * session, so a CAS based on a stale slot fails instead of updating
+ * another session.
+ * <p>
+ * Lookups are lock-free optimistic reads validated against a
+ * {@link StampedLock}; they only fall back to a read lock if a writer
+ * modified the table meanwhile. Writers are serialized.
+ *
+ * @author Romain Cambier
+ */
+public final class SessionIndex {
+
+    /**
+     * Last FCnt of a session which did not receive any frame yet.
+     */
+    public static final long NO_FCNT = -1;
+
+    private static final int SLOT_SIZE = 40;
+    private static final int DEV_ADDR = 0;
+    private static final int FLAGS = 4;
+    private static final int NWK_S_KEY = 8;
+    private static final int APP_S_KEY = 24;
+    private static final int NEXT_FREE = 0;
+
+    private static final int ENTRY_SIZE = 8;
+    private static final int ENTRY_DEV_ADDR = 0;
+    private static final int ENTRY_SLOT = 4;
+
+    private static final int MAX_ENTRIES = 1 << 25;
+
+    private static final long FCNT_MASK = (1L << 33) - 1;
+
+    private static final ThreadLocal<Entry> SCRATCH = ThreadLocal.withInitial(Entry::new);
+
+    private final ByteBuffer slots;
+    private final ByteBuffer table;
+    private final AtomicLongArray fCnts;
+    private final int mask;
+    private final int maxSessions;
+    private final StampedLock lock = new StampedLock();
+    private final CryptoContextCache cache;
+    private int freeSlot = -1;
+    private int unusedSlot;
+    private volatile int size;
+
+    /**
+     * @param _maxSessions maximum number of sessions
+     */
+    public SessionIndex(int _maxSessions) {
+        this(_maxSessions, CryptoContextCache.shared());
+    }
+
+    /**
+     * @param _maxSessions maximum number of sessions
+     * @param _cache cache whose contexts are invalidated when a session is
+     * replaced or removed
+     */
+    public SessionIndex(int _maxSessions, CryptoContextCache _cache) {
+        if (_maxSessions < 1) {
+            throw new IllegalArgumentException("Invalid maxSessions");
+        }
+        long wanted = (long) _maxSessions * 4 / 3 + 1;
+        if (wanted > MAX_ENTRIES) {
+            throw new IllegalArgumentException("Invalid maxSessions, at most " + (MAX_ENTRIES / 4 * 3) + " are supported");
+        }
+        int entryCount = Integer.highestOneBit((int) wanted - 1) << 1;
+        slots = ByteBuffer.allocateDirect(_maxSessions * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        table = ByteBuffer.allocateDirect(entryCount * ENTRY_SIZE).order(ByteOrder.nativeOrder());
+        fCnts = new AtomicLongArray(_maxSessions);
+        for (int i = 0; i < _maxSessions; i++) {
+            fCnts.set(i, pack(0, NO_FCNT));
+        }
+        mask = entryCount - 1;
+        maxSessions = _maxSessions;
+        cache = _cache;
+    }
+
+    /**
+     * Mutable holder receiving a session, reusable across lookups.
+     */
+    public static final class Entry {
+
+        private final byte[] nwkSKey = new byte[16];
+        private final byte[] appSKey = new byte[16];
+        private int devAddr;
+        private int flags;
+        private int slot;
+        private int generation;
+        private long lastFCnt;
+
+        public int getDevAddr() {
+            return devAddr;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public byte[] getNwkSKey() {
+            return nwkSKey;
+        }
+
+        public byte[] getAppSKey() {
+            return appSKey;
+        }
+
+        /**
+         * @return the slot of the session
+         */
+        public int getSlot() {
+            return slot;
+        }
+
+        /**
+         * @return the generation of the slot when the session was read
+         */
+        public int getGeneration() {
+            return generation;
+        }
+
+        /**
+         * @return the last FCnt, or {@link #NO_FCNT}
+         */
+        public long getLastFCnt() {
+            return lastFCnt;
+        }
+    }
+
+    private static int hash(int _devAddr) {
+        int h = _devAddr * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long pack(int _generation, long _fCnt) {
+        return (long) _generation << 33 | (_fCnt + 1);
+    }
+
+    private static long fCntOf(long _packed) {
+        return (_packed & FCNT_MASK) - 1;
+    }
+
+    private static int generationOf(long _packed) {
+        return (int) (_packed >>> 33);
+    }
+
+    /**
+     * @return the table position of the DevAddr, or -1
+     */
+    private int position(int _devAddr) {
+        for (int i = 0, position = hash(_devAddr) & mask; i <= mask; i++, position = (position + 1) & mask) {
+            int base = position * ENTRY_SIZE;
+            int slot = table.getInt(base + ENTRY_SLOT) - 1;
+            if (slot < 0) {
+                return -1;
+            }
+            if (table.getInt(base + ENTRY_DEV_ADDR) == _devAddr) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private int find(int _devAddr) {
+        int position = position(_devAddr);
+        return position < 0 ? -1 : table.getInt(position * ENTRY_SIZE + ENTRY_SLOT) - 1;
+    }
+
+    /**
+     * @param _devAddr the DevAddr
+     * @return the slot of the session, -1 if there is none. A slot stays
+     * bound to its session until the session is removed or replaced, which
+     * changes the generation of the slot.
+     */
+    public int slotOf(int _devAddr) {
+        long stamp = lock.tryOptimisticRead();
+        int slot = find(_devAddr);
+        if (lock.validate(stamp)) {
+            return slot;
+        }
+        stamp = lock.readLock();
+        try {
+            return find(_devAddr);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies a session into a holder, along with its slot and generation.
+     *
+     * @param _devAddr the DevAddr
+     * @param _entry receives the session
+     * @return false if there is no session for this DevAddr
+     */
+    public boolean get(int _devAddr, Entry _entry) {
+        long stamp = lock.tryOptimisticRead();
+        boolean found = read(_devAddr, _entry);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = read(_devAddr, _entry);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    private boolean read(int _devAddr, Entry _entry) {
+        int slot = find(_devAddr);
+        if (slot < 0) {
+            return false;
+        }
+        int base = slot * SLOT_SIZE;
+        _entry.devAddr = _devAddr;
+        _entry.flags = slots.getInt(base + FLAGS);
+        for (int i = 0; i < 16; i++) {
+            _entry.nwkSKey[i] = slots.get(base + NWK_S_KEY + i);
+            _entry.appSKey[i] = slots.get(base + APP_S_KEY + i);
+        }
+        long packed = fCnts.get(slot);
+        _entry.slot = slot;
+        _entry.generation = generationOf(packed);
+        _entry.lastFCnt = fCntOf(packed);
+        return true;
+    }
+
+    /**
+     * Creates or replaces the session of a DevAddr. A replaced session
+     * restarts with {@link #NO_FCNT} and its cached crypto contexts are
+     * invalidated.
+     *
+     * @param _devAddr the DevAddr
+     * @param _nwkSKey the NwkSKey
+     * @param _appSKey the AppSKey
+     * @param _flags user flags
+     * @return the slot of the session
+     */
+    public int put(int _devAddr, byte[] _nwkSKey, byte[] _appSKey, int _flags) {
+        if (_nwkSKey == null || _nwkSKey.length != 16) {
+            throw new IllegalArgumentException("Invalid nwkSKey");
+        }
+        if (_appSKey == null || _appSKey.length != 16) {
+            throw new IllegalArgumentException("Invalid appSKey");
+        }
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(_devAddr);
+            if (slot >= 0) {
+                invalidate(slot);
+            } else {
+                if (size >= maxSessions) {
+                    throw new IllegalStateException("Session index is full");
+                }
+                if (freeSlot >= 0) {
+                    slot = freeSlot;
+                    freeSlot = slots.getInt(slot * SLOT_SIZE + NEXT_FREE);
+                } else {
+                    slot = unusedSlot++;
+                }
+                int position = hash(_devAddr) & mask;
+                while (table.getInt(position * ENTRY_SIZE + ENTRY_SLOT) != 0) {
+                    position = (position + 1) & mask;
+                }
+                table.putInt(position * ENTRY_SIZE + ENTRY_DEV_ADDR, _devAddr);
+                table.putInt(position * ENTRY_SIZE + ENTRY_SLOT, slot + 1);
+                size++;
+            }
+            int base = slot * SLOT_SIZE;
+            slots.putInt(base + DEV_ADDR, _devAddr);
+            slots.putInt(base + FLAGS, _flags);
+            for (int i = 0; i < 16; i++) {
+                slots.put(base + NWK_S_KEY + i, _nwkSKey[i]);
+                slots.put(base + APP_S_KEY + i, _appSKey[i]);
+            }
+            renew(slot);
+            return slot;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Resets the last FCnt of a slot and bumps its generation.
+     */
+    private void renew(int _slot) {
+        int generation = generationOf(fCnts.get(_slot));
+        fCnts.set(_slot, pack((generation + 1) & 0x7fffffff, NO_FCNT));
+    }
+
+    /**
+     * Updates the user flags of a session.
+     *
+     * @param _devAddr the DevAddr
+     * @param _flags the new flags
+     * @return false if there is no session for this DevAddr
+     */
+    public boolean setFlags(int _devAddr, int _flags) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(_devAddr);
+            if (slot < 0) {
+                return false;
+            }
+            slots.putInt(slot * SLOT_SIZE + FLAGS, _flags);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the session of a DevAddr and invalidates its cached crypto
+     * contexts.
+     *
+     * @param _devAddr the DevAddr
+     * @return false if there was no session for this DevAddr
+     */
+    public boolean remove(int _devAddr) {
+        long stamp = lock.writeLock();
+        try {
+            int position = position(_devAddr);
+            if (position < 0) {
+                return false;
+            }
+            int slot = table.getInt(position * ENTRY_SIZE + ENTRY_SLOT) - 1;
+            invalidate(slot);
+            renew(slot);
+            slots.putInt(slot * SLOT_SIZE + NEXT_FREE, freeSlot);
+            freeSlot = slot;
+            delete(position);
+            size--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a table entry, moving back the following entries of the probe
+     * sequence which would not be found anymore.
+     */
+    private void delete(int _position) {
+        int hole = _position;
+        for (int position = (hole + 1) & mask;; position = (position + 1) & mask) {
+            int base = position * ENTRY_SIZE;
+            int slot = table.getInt(base + ENTRY_SLOT);
+            if (slot == 0) {
+                break;
+            }
+            int devAddr = table.getInt(base + ENTRY_DEV_ADDR);
+            int home = hash(devAddr) & mask;
+            if (((position - home) & mask) >= ((position - hole) & mask)) {
+                table.putInt(hole * ENTRY_SIZE + ENTRY_DEV_ADDR, devAddr);
+                table.putInt(hole * ENTRY_SIZE + ENTRY_SLOT, slot);
+                hole = position;
+            }
+        }
+        table.putInt(hole * ENTRY_SIZE + ENTRY_DEV_ADDR, 0);
+        table.putInt(hole * ENTRY_SIZE + ENTRY_SLOT, 0);
+    }
+
+    private void invalidate(int _slot) {
+        if (cache == null) {
+            return;
+        }
+        int base = _slot * SLOT_SIZE;
+        byte[] key = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            key[i] = slots.get(base + NWK_S_KEY + i);
+        }
+        cache.invalidate(key);
+        for (int i = 0; i < 16; i++) {
+            key[i] = slots.get(base + APP_S_KEY + i);
+        }
+        cache.invalidate(key);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return maxSessions;
+    }
+
+    /**
+     * @param _slot a slot returned by {@link #slotOf(int)}
+     * @return the last FCnt of the slot, or {@link #NO_FCNT}
+     */
+    public long getLastFCnt(int _slot) {
+        return fCntOf(fCnts.get(_slot));
+    }
+
+    /**
+     * @param _slot a slot returned by {@link #slotOf(int)}
+     * @return the current generation of the slot
+     */
+    public int getGeneration(int _slot) {
+        return generationOf(fCnts.get(_slot));
+    }
+
+    /**
+     * Atomically updates the last FCnt of a slot, provided it still holds
+     * the same session.
+     *
+     * @param _slot a slot returned by {@link #slotOf(int)}
+     * @param _generation the generation of the slot when it was looked up
+     * @param _expected the current value
+     * @param _fCnt the new value
+     * @return false if the current value was not _expected, or if the slot
+     * got another session since it was looked up
+     */
+    public boolean compareAndSetLastFCnt(int _slot, int _generation, long _expected, long _fCnt) {
+        return fCnts.compareAndSet(_slot, pack(_generation, _expected), pack(_generation, _fCnt));
+    }
+
+    private static int fCnt(Entry _entry, int _fCnt16) {
+        return (int) FrameCounterTracker.reconstruct(_entry.lastFCnt, _fCnt16);
+    }
+
+    /**
+     * Checks the MIC of a data frame with the NwkSKey of its DevAddr. The
+     * 32 bits FCnt is reconstructed from the last FCnt of the session.
+     *
+     * @param _view the frame
+     * @return false if the device is unknown or the MIC does not match
+     */
+    public boolean verifyMic(PacketView _view) {
+        Entry entry = SCRATCH.get();
+        return get(_view.devAddr(), entry) && _view.verifyMic(entry.nwkSKey, fCnt(entry, _view.fCnt16()));
+    }
+
+    public boolean verifyMic(PhyPayload _phy) throws MalformedPacketException {
+        Entry entry = SCRATCH.get();
+        FHDR fhdr = ((MACPayload) _phy.getMessage()).getFhdr();
+        return get(fhdr.getDevAddrInt(), entry) && _phy.verifyMic(entry.nwkSKey, fCnt(entry, fhdr.getfCnt()));
+    }
+
+    /**
+     * Decrypts the FRMPayload of a data frame with the keys of its DevAddr
+     * and its reconstructed 32 bits FCnt.
+     *
+     * @param _phy the frame
+     * @param _dst where the clear payload is written
+     * @return false if the device is unknown
+     * @throws MalformedPacketException if the frame has an invalid MHDR
+     */
+    public boolean decryptInto(PhyPayload _phy, ByteBuffer _dst) throws MalformedPacketException {
+        Entry entry = SCRATCH.get();
+        MACPayload mac = (MACPayload) _phy.getMessage();
+        if (!get(mac.getFhdr().getDevAddrInt(), entry)) {
+            return false;
+        }
+        FRMPayload payload = mac.getFRMPayload();
+        if (payload != null) {
+            payload.decryptInto(_dst, entry.nwkSKey, entry.appSKey, fCnt(entry, mac.getFhdr().getfCnt()));
+        }
+        return true;
+    }
+}
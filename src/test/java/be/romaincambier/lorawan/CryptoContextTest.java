@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import be.romaincambier.lorawan.join.JoinServer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Known-answer tests of {@link CryptoContext} and of the frame classes built
+ * on it, against RFC 4493 and against references computed with
+ * {@link AesCmac} and the JCE.
+ *
+ * @author Romain Cambier
+ */
+public class CryptoContextTest {
+
+    private static final byte[] RFC4493_KEY = hex("2b7e151628aed2a6abf7158809cf4f3c");
+    private static final byte[] RFC4493_MESSAGE = hex("6bc1bee22e409f96e93d7e117393172a"
+            + "ae2d8a571e03ac9c9eb76fac45af8e51"
+            + "30c81c46a35ce411e5fbc1191a0a52ef"
+            + "f69f2445df4f9b17ad2b417be66c3710");
+
+    private static final byte[] NWK_S_KEY = hex("44024241ed4ce9a68c6a8bc055233fd3");
+    private static final byte[] APP_S_KEY = hex("ec925802ae430ca77fd3dd73cb2cc588");
+    private static final byte[] APP_KEY = hex("2b7e151628aed2a6abf7158809cf4f3c");
+    private static final int DEV_ADDR = 0x26011bda;
+    private static final byte[] CLEAR = "a payload spanning more than one block".getBytes(StandardCharsets.US_ASCII);
+
+    private static byte[] hex(String _hex) {
+        byte[] out = new byte[_hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(_hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    private static byte[] referenceCmac(byte[] _key, byte[] _data) throws Exception {
+        AesCmac cmac = new AesCmac();
+        cmac.init(new SecretKeySpec(_key, "AES"));
+        cmac.updateBlock(_data);
+        return cmac.doFinal();
+    }
+
+    private static byte[] referenceAes(byte[] _key, byte[] _blocks, int _mode) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(_mode, new SecretKeySpec(_key, "AES"));
+        return cipher.doFinal(_blocks);
+    }
+
+    // B0 (0x49) or A_i (0x01) block, with the full 32 bits FCnt
+    private static ByteBuffer block(int _tag, Direction _direction, int _fCnt, int _last) {
+        ByteBuffer bb = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        bb.put((byte) _tag).putInt(0).put(_direction.value()).putInt(DEV_ADDR).putInt(_fCnt).put((byte) 0).put((byte) _last);
+        return bb;
+    }
+
+    // uplink frame with FPort 1, encrypted and signed with the reference implementations
+    private static byte[] referenceFrame(int _fCnt) throws Exception {
+        byte[] encrypted = new byte[CLEAR.length];
+        for (int i = 0; i < CLEAR.length; i += 16) {
+            byte[] s = referenceAes(APP_S_KEY, block(0x01, Direction.UP, _fCnt, i / 16 + 1).array(), Cipher.ENCRYPT_MODE);
+            for (int j = i; j < Math.min(i + 16, CLEAR.length); j++) {
+                encrypted[j] = (byte) (CLEAR[j] ^ s[j - i]);
+            }
+        }
+        ByteBuffer msg = ByteBuffer.allocate(1 + 7 + 1 + encrypted.length).order(ByteOrder.LITTLE_ENDIAN);
+        msg.put((byte) 0x40).putInt(DEV_ADDR).put((byte) 0).putShort((short) _fCnt).put((byte) 1).put(encrypted);
+        ByteBuffer b0 = block(0x49, Direction.UP, _fCnt, msg.capacity());
+        byte[] mic = referenceCmac(NWK_S_KEY, ByteBuffer.allocate(16 + msg.capacity()).put(b0.array()).put(msg.array()).array());
+        return ByteBuffer.allocate(msg.capacity() + 4).put(msg.array()).put(mic, 0, 4).array();
+    }
+
+    private static int micOf(byte[] _frame) {
+        return ByteBuffer.wrap(_frame, _frame.length - 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    @Test
+    public void cmacMatchesRfc4493() throws Exception {
+        int[] lengths = {0, 16, 40, 64};
+        String[] expected = {
+            "bb1d6929e95937287fa37d129b756746",
+            "070a16b46b4d4144f79bdd9dd04a287c",
+            "dfa66747de9ae63030ca32611497c827",
+            "51f0bebf7e3b9d92fc49741779363cfe"
+        };
+        CryptoContext context = new CryptoContext(RFC4493_KEY);
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] mac = new byte[16];
+            context.cmac(RFC4493_MESSAGE, 0, lengths[i], mac);
+            assertArrayEquals(hex(expected[i]), mac);
+            assertArrayEquals(hex(expected[i]), referenceCmac(RFC4493_KEY, Arrays.copyOf(RFC4493_MESSAGE, lengths[i])));
+        }
+    }
+
+    @Test
+    public void cmacOfAnOffsetRange() {
+        byte[] data = new byte[3 + 40];
+        System.arraycopy(RFC4493_MESSAGE, 0, data, 3, 40);
+        byte[] mac = new byte[4];
+        new CryptoContext(RFC4493_KEY).cmac(data, 3, 40, mac);
+        assertArrayEquals(hex("dfa66747"), mac);
+    }
+
+    @Test
+    public void dataFrameAboveFCnt0x8000() throws Exception {
+        int fCnt = 0x8001;
+        byte[] frame = referenceFrame(fCnt);
+        CryptoContext context = new CryptoContext(NWK_S_KEY);
+        assertEquals(micOf(frame), context.dataMic(Direction.UP, DEV_ADDR, fCnt, frame, 0, frame.length - 4));
+        assertEquals(micOf(frame), context.dataMic(Direction.UP, DEV_ADDR, fCnt, ByteBuffer.wrap(frame), 0, frame.length - 4));
+
+        PhyPayload phy = PhyPayload.parse(ByteBuffer.wrap(frame));
+        assertTrue(phy.verifyMic(NWK_S_KEY));
+        assertTrue(phy.verifyMic(NWK_S_KEY, fCnt));
+        FRMPayload payload = ((MACPayload) phy.getMessage()).getFRMPayload();
+        assertArrayEquals(Arrays.copyOfRange(frame, frame.length - 4, frame.length), payload.computeMic(NWK_S_KEY));
+        assertArrayEquals(CLEAR, payload.getClearPayLoad(NWK_S_KEY, APP_S_KEY));
+        assertTrue(new PacketView().wrap(frame, 0, frame.length).verifyMic(NWK_S_KEY));
+
+        byte[] clear = new byte[CLEAR.length];
+        new CryptoContext(APP_S_KEY).xorKeystream(Direction.UP, DEV_ADDR, fCnt, frame, 9, ByteBuffer.wrap(clear), 0, clear.length);
+        assertArrayEquals(CLEAR, clear);
+    }
+
+    @Test
+    public void dataFrameWith32BitsFCnt() throws Exception {
+        int fCnt = 0x0003fffe;
+        byte[] frame = referenceFrame(fCnt);
+        PhyPayload phy = PhyPayload.parse(ByteBuffer.wrap(frame));
+        assertFalse(phy.verifyMic(NWK_S_KEY));
+        assertTrue(phy.verifyMic(NWK_S_KEY, fCnt));
+        assertTrue(new PacketView().wrap(frame, 0, frame.length).verifyMic(NWK_S_KEY, fCnt));
+        FRMPayload payload = ((MACPayload) phy.getMessage()).getFRMPayload();
+        assertArrayEquals(Arrays.copyOfRange(frame, frame.length - 4, frame.length), payload.computeMic(NWK_S_KEY, fCnt));
+        byte[] clear = new byte[CLEAR.length];
+        payload.decryptInto(ByteBuffer.wrap(clear), NWK_S_KEY, APP_S_KEY, fCnt);
+        assertArrayEquals(CLEAR, clear);
+    }
+
+    @Test
+    public void joinRequestMic() throws Exception {
+        byte[] request = hex("00" + "0807060504030201" + "1817161514131211" + "3412" + "00000000");
+        byte[] mic = referenceCmac(APP_KEY, Arrays.copyOf(request, 19));
+        System.arraycopy(mic, 0, request, 19, 4);
+        assertTrue(PhyPayload.parse(ByteBuffer.wrap(request)).verifyMic(APP_KEY));
+        assertTrue(new PacketView().wrap(request, 0, request.length).verifyMic(APP_KEY));
+        assertArrayEquals(Arrays.copyOf(mic, 4), ((JoinRequestPayload) PhyPayload.parse(ByteBuffer.wrap(request)).getMessage()).computeMic(APP_KEY));
+        request[10] ^= 1;
+        assertFalse(PhyPayload.parse(ByteBuffer.wrap(request)).verifyMic(APP_KEY));
+        assertFalse(new PacketView().wrap(request, 0, request.length).verifyMic(APP_KEY));
+    }
+
+    @Test
+    public void joinAcceptRoundTrip() throws Exception {
+        byte[] request = hex("00" + "0807060504030201" + "1817161514131211" + "3412" + "00000000");
+        System.arraycopy(referenceCmac(APP_KEY, Arrays.copyOf(request, 19)), 0, request, 19, 4);
+        byte[] cfList = hex("184f84e85684b85e84886684586e8400");
+        JoinServer server = JoinServer.newBuilder()
+                .setAppKeyLookup(devEUI -> devEUI == 0x1112131415161718L ? APP_KEY : null)
+                .setNetId(0x000013)
+                .setCfList(cfList)
+                .setAppNonce(0x0a0b0c)
+                .build();
+        JoinServer.Join join = new JoinServer.Join();
+        assertEquals(JoinServer.Status.OK, server.process(new PacketView().wrap(request, 0, request.length), DEV_ADDR, join));
+        byte[] accept = Arrays.copyOf(join.getJoinAccept(), join.getJoinAcceptLength());
+        assertEquals(1 + 12 + 16 + 4, accept.length);
+
+        // the device decrypts with AES encrypt
+        byte[] clear = referenceAes(APP_KEY, Arrays.copyOfRange(accept, 1, accept.length), Cipher.ENCRYPT_MODE);
+        ByteBuffer fields = ByteBuffer.wrap(clear).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x0a0b0c, fields.getInt(0) & 0xffffff);
+        assertEquals(0x000013, fields.getInt(3) & 0xffffff);
+        assertEquals(DEV_ADDR, fields.getInt(6));
+        assertArrayEquals(cfList, Arrays.copyOfRange(clear, 12, 28));
+        byte[] signed = new byte[1 + 28];
+        signed[0] = accept[0];
+        System.arraycopy(clear, 0, signed, 1, 28);
+        assertArrayEquals(Arrays.copyOf(referenceCmac(APP_KEY, signed), 4), Arrays.copyOfRange(clear, 28, 32));
+
+        byte[] keyBlock = new byte[16];
+        System.arraycopy(clear, 0, keyBlock, 1, 6);
+        keyBlock[7] = 0x34;
+        keyBlock[8] = 0x12;
+        keyBlock[0] = 0x01;
+        assertArrayEquals(referenceAes(APP_KEY, keyBlock, Cipher.ENCRYPT_MODE), join.getNwkSKey());
+        keyBlock[0] = 0x02;
+        assertArrayEquals(referenceAes(APP_KEY, keyBlock, Cipher.ENCRYPT_MODE), join.getAppSKey());
+
+        PhyPayload phy = PhyPayload.parse(ByteBuffer.wrap(accept));
+        JoinAcceptPayload payload = (JoinAcceptPayload) phy.getMessage();
+        JoinAcceptPayload.ClearPayload parsed = payload.getClearPayload(APP_KEY);
+        assertEquals(DEV_ADDR, parsed.getDevAddrInt());
+        assertArrayEquals(cfList, parsed.getCfList());
+        assertArrayEquals(Arrays.copyOfRange(clear, 28, 32), payload.computeMic(APP_KEY));
+
+        byte[] reencrypted = referenceAes(APP_KEY, clear, Cipher.DECRYPT_MODE);
+        assertArrayEquals(Arrays.copyOfRange(accept, 1, accept.length), reencrypted);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks that {@link PacketView} and {@link PhyPayload} apply the same
+ * structural rules.
+ *
+ * @author Romain Cambier
+ */
+public class PacketViewTest {
+
+    private static final byte[] JOIN_REQUEST = {
+        0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18, 0x34, 0x12, 0x01, 0x02, 0x03, 0x04
+    };
+
+    private static void assertStatus(ParseStatus _expected, byte[] _frame) {
+        assertEquals(_expected, new PacketView().tryWrap(_frame, 0, _frame.length));
+        assertEquals(_expected, PhyPayload.tryParse(ByteBuffer.wrap(_frame), new ParseResult()).getStatus());
+    }
+
+    @Test
+    public void joinRequestLengths() {
+        assertStatus(ParseStatus.TRUNCATED_JOIN_REQUEST, Arrays.copyOf(JOIN_REQUEST, 18));
+        assertStatus(ParseStatus.NO_MIC, Arrays.copyOf(JOIN_REQUEST, 22));
+        assertStatus(ParseStatus.OK, JOIN_REQUEST);
+        assertStatus(ParseStatus.JOIN_REQUEST_TOO_LONG, Arrays.copyOf(JOIN_REQUEST, 24));
+        assertStatus(ParseStatus.JOIN_REQUEST_TOO_LONG, Arrays.copyOf(JOIN_REQUEST, 40));
+    }
+
+    @Test
+    public void joinRequestMicIsAfterTheDevNonce() throws Exception {
+        PacketView view = new PacketView().wrap(JOIN_REQUEST, 0, JOIN_REQUEST.length);
+        PhyPayload phy = PhyPayload.parse(ByteBuffer.wrap(JOIN_REQUEST));
+        assertEquals(19, view.micOffset());
+        assertEquals(0x04030201, view.mic());
+        assertEquals(0x04030201, ByteBuffer.wrap(phy.getMic()).order(ByteOrder.LITTLE_ENDIAN).getInt());
+    }
+}
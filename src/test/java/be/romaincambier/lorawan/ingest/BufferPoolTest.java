@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.ingest;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Romain Cambier
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void acquireReturnsNullWhenExhausted() {
+        BufferPool pool = new BufferPool(2);
+        assertNotNull(pool.acquire());
+        assertNotNull(pool.acquire());
+        assertNull(pool.acquire());
+        assertEquals(0, pool.available());
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        BufferPool pool = new BufferPool(1);
+        ByteBuffer buffer = pool.acquire();
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        ByteBuffer again = pool.acquire();
+        assertEquals(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(BufferPool.BUFFER_SIZE, again.remaining());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseFails() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer buffer = pool.acquire();
+        pool.release(buffer);
+        pool.release(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignBufferIsRejected() {
+        new BufferPool(1).release(ByteBuffer.allocateDirect(BufferPool.BUFFER_SIZE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateIsRejected() {
+        BufferPool pool = new BufferPool(1);
+        pool.release(pool.acquire().duplicate());
+    }
+}
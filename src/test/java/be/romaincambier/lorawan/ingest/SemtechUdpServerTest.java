@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.ingest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Drives a {@link SemtechUdpServer} with a {@link StandInGateway} over the
+ * loopback interface.
+ *
+ * @author Romain Cambier
+ */
+public class SemtechUdpServerTest {
+
+    private static final byte[] FRAME = {
+        0x40, (byte) 0xF1, 0x7D, (byte) 0xBE, 0x49, 0x00, 0x02, 0x00, 0x01, (byte) 0x95, 0x43, 0x78, 0x76, 0x2B, 0x11, (byte) 0xFF, 0x0D
+    };
+
+    private SemtechUdpServer server;
+    private Thread serverThread;
+    private StandInGateway gateway;
+
+    private void start(int _poolSize, SemtechUdpServer.Handler _handler) throws IOException {
+        start(_poolSize, _handler, RxMetadata.CRC_OK, 1);
+    }
+
+    private void start(int _poolSize, SemtechUdpServer.Handler _handler, int _stat, int _rxpkCount) throws IOException {
+        server = new SemtechUdpServer(new InetSocketAddress("127.0.0.1", 0), _handler, _poolSize);
+        serverThread = new Thread(server, "semtech-udp-test");
+        serverThread.start();
+        gateway = new StandInGateway(server.getLocalAddress(), FRAME, _rxpkCount, _stat);
+    }
+
+    @After
+    public void stop() throws IOException, InterruptedException {
+        if (gateway != null) {
+            gateway.close();
+        }
+        if (server != null) {
+            server.close();
+            serverThread.join(5000);
+            assertFalse(serverThread.isAlive());
+        }
+    }
+
+    private static void await(LongSupplier _count, long _expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (_count.getAsLong() != _expected && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(_expected, _count.getAsLong());
+    }
+
+    @Test
+    public void pushDataIsAcknowledgedAndDelivered() throws Exception {
+        List<byte[]> frames = new ArrayList<>();
+        List<Long> gateways = new ArrayList<>();
+        CountDownLatch received = new CountDownLatch(3);
+        start(8, (frame, metadata) -> {
+            byte[] copy = new byte[frame.remaining()];
+            frame.get(copy);
+            frames.add(copy);
+            gateways.add(metadata.getGatewayEui());
+            assertEquals(-35, metadata.getRssi());
+            assertEquals(7, metadata.getSpreadingFactor());
+            server.release(frame);
+            received.countDown();
+        }, RxMetadata.CRC_OK, 3);
+        gateway.push();
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(3, frames.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(FRAME, frames.get(i));
+            assertEquals(StandInGateway.GATEWAY_EUI, (long) gateways.get(i));
+        }
+        assertEquals(1, server.getDatagramCount());
+        assertEquals(3, server.getUplinkCount());
+        assertEquals(8, server.getAvailableBuffers());
+    }
+
+    @Test
+    public void crcFailuresAreNotDelivered() throws Exception {
+        start(4, (frame, metadata) -> {
+            throw new AssertionError("Frame with an invalid CRC delivered");
+        }, RxMetadata.CRC_FAILED, 2);
+        gateway.push();
+        await(server::getCrcErrorCount, 2);
+        assertEquals(0, server.getUplinkCount());
+        assertEquals(4, server.getAvailableBuffers());
+    }
+
+    @Test
+    public void framesAreDroppedWhenEveryBufferIsHeld() throws Exception {
+        start(2, (frame, metadata) -> {
+        }, RxMetadata.CRC_OK, 3);
+        gateway.push();
+        await(server::getDroppedCount, 1);
+        assertEquals(2, server.getUplinkCount());
+        assertEquals(0, server.getAvailableBuffers());
+    }
+
+    @Test
+    public void handlerExceptionDoesNotStopTheServer() throws Exception {
+        start(4, (frame, metadata) -> {
+            server.release(frame);
+            throw new IllegalStateException("Handler failure");
+        });
+        gateway.push();
+        gateway.push();
+        await(server::getHandlerErrorCount, 2);
+        assertTrue(serverThread.isAlive());
+        assertEquals(2, server.getUplinkCount());
+        assertEquals(4, server.getAvailableBuffers());
+    }
+
+    @Test
+    public void pullRespReachesTheGateway() throws Exception {
+        start(1, (frame, metadata) -> server.release(frame));
+        byte[] txpk = "{\"txpk\":{\"imme\":true}}".getBytes(StandardCharsets.US_ASCII);
+        assertFalse(server.sendPullResp(StandInGateway.GATEWAY_EUI, 7, ByteBuffer.wrap(txpk)));
+        gateway.pull();
+        assertNotNull(server.getPullAddress(StandInGateway.GATEWAY_EUI));
+        assertTrue(server.sendPullResp(StandInGateway.GATEWAY_EUI, 7, ByteBuffer.wrap(txpk)));
+        ByteBuffer datagram = ByteBuffer.allocate(128);
+        gateway.receive(datagram);
+        datagram.flip();
+        assertEquals(4 + txpk.length, datagram.remaining());
+        assertEquals(2, datagram.get(0));
+        assertEquals(7, datagram.getShort(1));
+        assertEquals(SemtechUdpServer.PULL_RESP, datagram.get(3));
+        byte[] body = new byte[txpk.length];
+        datagram.position(4);
+        datagram.get(body);
+        assertArrayEquals(txpk, body);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Romain Cambier <me@romaincambier.be>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package be.romaincambier.lorawan.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Local stand-in for a gateway running the Semtech UDP packet forwarder. It
+ * sends PUSH_DATA datagrams carrying fixed frames and waits for their
+ * PUSH_ACK, and can register for downlinks with PULL_DATA. Shared by the
+ * tests and the benchmarks.
+ *
+ * @author Romain Cambier
+ */
+public final class StandInGateway implements Closeable {
+
+    public static final long GATEWAY_EUI = 0xAA555A0000000101L;
+
+    private final DatagramChannel channel;
+    private final ByteBuffer pushData;
+    private final ByteBuffer ack = ByteBuffer.allocate(64);
+    private final ByteBuffer pullData = ByteBuffer.allocate(12);
+    private int token;
+
+    /**
+     * @param _server the address of the server
+     * @param _frame the frame sent in every rxpk
+     * @param _rxpkCount number of rxpk per PUSH_DATA
+     * @throws IOException if the socket can not be opened
+     */
+    public StandInGateway(SocketAddress _server, byte[] _frame, int _rxpkCount) throws IOException {
+        this(_server, _frame, _rxpkCount, RxMetadata.CRC_OK);
+    }
+
+    /**
+     * @param _server the address of the server
+     * @param _frame the frame sent in every rxpk
+     * @param _rxpkCount number of rxpk per PUSH_DATA
+     * @param _stat the CRC status reported for every rxpk
+     * @throws IOException if the socket can not be opened
+     */
+    public StandInGateway(SocketAddress _server, byte[] _frame, int _rxpkCount, int _stat) throws IOException {
+        StringBuilder json = new StringBuilder("{\"rxpk\":[");
+        for (int i = 0; i < _rxpkCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"time\":\"2016-03-31T16:21:17.528002Z\",\"tmst\":3512348611,\"chan\":2,\"rfch\":0,"
+                    + "\"freq\":868.100000,\"stat\":").append(_stat).append(",\"modu\":\"LORA\",\"datr\":\"SF7BW125\",\"codr\":\"4/5\","
+                    + "\"rssi\":-35,\"lsnr\":5.1,\"size\":").append(_frame.length)
+                    .append(",\"data\":\"").append(Base64.getEncoder().encodeToString(_frame)).append("\"}");
+        }
+        byte[] body = json.append("]}").toString().getBytes(StandardCharsets.US_ASCII);
+        pushData = ByteBuffer.allocateDirect(12 + body.length);
+        pushData.put((byte) 2).putShort((short) 0).put((byte) 0x00).putLong(GATEWAY_EUI).put(body).flip();
+        pullData.put((byte) 2).putShort((short) 0).put((byte) 0x02).putLong(GATEWAY_EUI).flip();
+        channel = DatagramChannel.open();
+        channel.connect(_server);
+    }
+
+    /**
+     * Sends a PUSH_DATA and waits for its PUSH_ACK.
+     *
+     * @throws IOException if the exchange fails
+     */
+    public void push() throws IOException {
+        token = (token + 1) & 0xffff;
+        pushData.putShort(1, (short) token);
+        pushData.rewind();
+        channel.write(pushData);
+        awaitAck(0x01);
+    }
+
+    /**
+     * Sends a PULL_DATA and waits for its PULL_ACK.
+     *
+     * @throws IOException if the exchange fails
+     */
+    public void pull() throws IOException {
+        token = (token + 1) & 0xffff;
+        pullData.putShort(1, (short) token);
+        pullData.rewind();
+        channel.write(pullData);
+        awaitAck(0x04);
+    }
+
+    private void awaitAck(int _identifier) throws IOException {
+        do {
+            ack.clear();
+            channel.read(ack);
+        } while (ack.position() < 4 || ack.get(3) != _identifier || (ack.getShort(1) & 0xffff) != token);
+    }
+
+    /**
+     * Waits for the next datagram sent by the server.
+     *
+     * @param _dst receives the datagram
+     * @throws IOException if the datagram can not be read
+     */
+    public void receive(ByteBuffer _dst) throws IOException {
+        channel.read(_dst);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}